@@ -0,0 +1,153 @@
+package pl.edu.agh.iisg.to.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.SqliteProfile;
+import pl.edu.agh.iisg.to.model.Course;
+import pl.edu.agh.iisg.to.model.Grade;
+import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.schema.SchemaMigrator;
+
+/**
+ * Hot paths of the active-record models. Method names and parameters match OrmBenchmark,
+ * so results of both modules can be compared side by side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActiveRecordBenchmark {
+
+    private static final int FIRST_INDEX_NUMBER = 1_000_000;
+
+    private static final int REPORT_COURSES = 10;
+
+    @Param({"1000", "10000"})
+    public int students;
+
+    @Param({"file", "memory"})
+    public String storage;
+
+    @Param({"durable", "throughput", "read-mostly"})
+    public String profile;
+
+    private File database;
+
+    private List<Student> population;
+
+    private Course roster;
+
+    private Student reportStudent;
+
+    private int nextIndexNumber;
+
+    private Course enrollmentCourse;
+
+    private int nextEnrollment;
+
+    private int enrollmentCourses;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        ConnectionProvider.init(jdbcAddress(), SqliteProfile.byName(profile));
+        SchemaMigrator.migrate();
+
+        List<Student> drafts = new ArrayList<>(students);
+        for (int i = 0; i < students; i++) {
+            drafts.add(new Student(0, "Jan", "Nowak", FIRST_INDEX_NUMBER + i));
+        }
+        population = Student.createAll(drafts).inserted();
+        nextIndexNumber = FIRST_INDEX_NUMBER + students;
+
+        roster = Course.create("Roster").get();
+        roster.enrollStudents(population);
+
+        reportStudent = population.get(0);
+        for (int i = 0; i < REPORT_COURSES; i++) {
+            Course course = Course.create("Report " + i).get();
+            Map<Student, Float> grades = new HashMap<>();
+            grades.put(reportStudent, 3.0f + i % 3);
+            Grade.gradeStudents(course, grades);
+            Grade.gradeStudents(course, grades);
+        }
+        enrollmentCourse = Course.create("Enrollment 0").get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        ConnectionProvider.close();
+        if (database != null) {
+            database.delete();
+        }
+    }
+
+    @Benchmark
+    public Optional<Student> createStudent() {
+        return Student.create("Jan", "Kowalski", nextIndexNumber++);
+    }
+
+    @Benchmark
+    public Optional<Student> findByIndexNumber() {
+        return Student.findByIndexNumber(FIRST_INDEX_NUMBER + ThreadLocalRandom.current().nextInt(students));
+    }
+
+    @Benchmark
+    public boolean enrollStudent() {
+        if (nextEnrollment == population.size()) {
+            enrollmentCourse = Course.create("Enrollment " + ++enrollmentCourses).get();
+            nextEnrollment = 0;
+        }
+        return enrollmentCourse.enrollStudent(population.get(nextEnrollment++));
+    }
+
+    @Benchmark
+    public List<Student> studentList() {
+        return roster.studentList();
+    }
+
+    @Benchmark
+    public Map<Course, Float> createReport() {
+        return reportStudent.createReport();
+    }
+
+    @Benchmark
+    public boolean gradeStudent() {
+        return Grade.gradeStudent(reportStudent, roster, 4.0f);
+    }
+
+    private String jdbcAddress() throws IOException {
+        if ("memory".equals(storage)) {
+            return "jdbc:sqlite:file:active-record-benchmark?mode=memory&cache=shared";
+        }
+        database = File.createTempFile("active-record-benchmark", ".db");
+        database.deleteOnExit();
+        return "jdbc:sqlite:" + database.getAbsolutePath();
+    }
+
+}
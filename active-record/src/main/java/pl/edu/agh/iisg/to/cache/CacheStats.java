@@ -0,0 +1,47 @@
+package pl.edu.agh.iisg.to.cache;
+
+public final class CacheStats {
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final int size;
+
+    CacheStats(final long hits, final long misses, final long evictions, final int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double hitRate() {
+        final long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStats[hits=%d, misses=%d, evictions=%d, size=%d, hitRate=%.2f]",
+                hits, misses, evictions, size, hitRate());
+    }
+
+}
@@ -0,0 +1,148 @@
+package pl.edu.agh.iisg.to.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Identity map for immutable entities, indexed both by primary key and by a natural key.
+ * Entities are kept in one LRU by id; the natural key index only points at cached ids and
+ * loses an entry together with its entity, so while an entity is cached every lookup returns
+ * the same instance.
+ * <p>
+ * As with {@link LruCache}, loaded entities should be stored with {@link #putIfUnchanged}.
+ */
+public final class EntityCache<K, T> {
+
+    private final long ttlNanos;
+
+    private final LinkedHashMap<Integer, Entry<K, T>> byId;
+
+    private final Map<K, Integer> idByKey = new HashMap<>();
+
+    private final Function<T, Integer> idOf;
+
+    private final Function<T, K> keyOf;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    public EntityCache(final int maxSize, final long ttlMillis, final Function<T, Integer> idOf, final Function<T, K> keyOf) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.idOf = idOf;
+        this.keyOf = keyOf;
+        this.byId = new LinkedHashMap<Integer, Entry<K, T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Entry<K, T>> eldest) {
+                if (size() > maxSize) {
+                    idByKey.remove(eldest.getValue().key, eldest.getKey());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized Optional<T> getById(final int id) {
+        return lookup(id);
+    }
+
+    public synchronized Optional<T> getByKey(final K key) {
+        return lookup(idByKey.get(key));
+    }
+
+    private Optional<T> lookup(final Integer id) {
+        final Entry<K, T> entry = id == null ? null : byId.get(id);
+        if (entry == null) {
+            misses++;
+            return Optional.empty();
+        }
+        if (System.nanoTime() - entry.createdAt > ttlNanos) {
+            remove(id);
+            evictions++;
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(entry.entity);
+    }
+
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    public synchronized void put(final T entity) {
+        final Integer id = idOf.apply(entity);
+        final K key = keyOf.apply(entity);
+        remove(id);
+        // an entity cached under the same natural key but another id no longer holds that key
+        final Integer previous = idByKey.get(key);
+        if (previous != null) {
+            remove(previous);
+        }
+        byId.put(id, new Entry<>(key, entity));
+        idByKey.put(key, id);
+    }
+
+    public synchronized boolean putIfUnchanged(final T entity, final long stamp) {
+        if (stamp != invalidations) {
+            return false;
+        }
+        put(entity);
+        return true;
+    }
+
+    public synchronized void invalidate(final T entity) {
+        invalidations++;
+        remove(idOf.apply(entity));
+        final Integer byKey = idByKey.get(keyOf.apply(entity));
+        if (byKey != null) {
+            remove(byKey);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations++;
+        byId.clear();
+        idByKey.clear();
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, byId.size());
+    }
+
+    private void remove(final Integer id) {
+        final Entry<K, T> removed = byId.remove(id);
+        if (removed != null) {
+            idByKey.remove(removed.key, id);
+        }
+    }
+
+    private static final class Entry<K, T> {
+
+        private final K key;
+
+        private final T entity;
+
+        private final long createdAt = System.nanoTime();
+
+        private Entry(final K key, final T entity) {
+            this.key = key;
+            this.entity = entity;
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package pl.edu.agh.iisg.to.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe, size-bounded LRU cache with a time-to-live per entry.
+ * <p>
+ * Values loaded from the database should be stored with {@link #putIfUnchanged}
+ * using a {@link #stamp()} taken before the load, so that a load racing with an
+ * invalidation cannot put a stale value back into the cache.
+ */
+public final class LruCache<K, V> {
+
+    private final long ttlNanos;
+
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    public LruCache(final int maxSize, final long ttlMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized Optional<V> get(final K key) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return Optional.empty();
+        }
+        if (System.nanoTime() - entry.createdAt > ttlNanos) {
+            entries.remove(key);
+            evictions++;
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(entry.value);
+    }
+
+    public synchronized void put(final K key, final V value) {
+        entries.put(key, new Entry<>(value));
+    }
+
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    public synchronized boolean putIfUnchanged(final K key, final V value, final long stamp) {
+        if (stamp != invalidations) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    public synchronized void invalidate(final K key) {
+        invalidations++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations++;
+        entries.clear();
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, entries.size());
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+
+        private final long createdAt = System.nanoTime();
+
+        private Entry(final V value) {
+            this.value = value;
+        }
+
+    }
+
+}
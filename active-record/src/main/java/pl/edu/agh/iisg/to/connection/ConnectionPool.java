@@ -0,0 +1,260 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Fixed-size pool of SQLite connections: several readers and a single writer,
+ * since SQLite serializes writes on the database file anyway.
+ */
+public final class ConnectionPool implements AutoCloseable {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String jdbcAddress;
+
+    private final int readPoolSize;
+
+    private final SqliteProfile profile;
+
+    private final boolean readUncommitted;
+
+    private final long checkoutTimeoutMillis;
+
+    private final BlockingQueue<PooledConnection> idleReaders;
+
+    private final BlockingQueue<PooledConnection> idleWriter = new ArrayBlockingQueue<>(1);
+
+    private final AtomicInteger activeReaders = new AtomicInteger();
+
+    private final AtomicInteger activeWriters = new AtomicInteger();
+
+    private final LongAdder checkouts = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder totalWaitNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final LongAdder statementCacheHits = new LongAdder();
+
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    private final Object releaseMonitor = new Object();
+
+    private volatile boolean closed = false;
+
+    public ConnectionPool(final String jdbcAddress, final int readPoolSize, final long checkoutTimeoutMillis) throws SQLException {
+        this(jdbcAddress, readPoolSize, checkoutTimeoutMillis, SqliteProfile.fromSystemProperty());
+    }
+
+    public ConnectionPool(final String jdbcAddress, final int readPoolSize, final long checkoutTimeoutMillis,
+                          final SqliteProfile profile) throws SQLException {
+        this(jdbcAddress, readPoolSize, checkoutTimeoutMillis, profile, false);
+    }
+
+    /**
+     * With readUncommitted, readers do not take table locks. A shared-cache database needs it:
+     * there a reader fails with SQLITE_LOCKED, which the busy timeout does not retry, whenever
+     * the writer holds an open transaction on the same table.
+     */
+    ConnectionPool(final String jdbcAddress, final int readPoolSize, final long checkoutTimeoutMillis,
+                   final SqliteProfile profile, final boolean readUncommitted) throws SQLException {
+        if (readPoolSize < 1) {
+            throw new IllegalArgumentException("Read pool size must be positive: " + readPoolSize);
+        }
+        this.jdbcAddress = jdbcAddress;
+        this.readPoolSize = readPoolSize;
+        this.profile = profile;
+        this.readUncommitted = readUncommitted;
+        this.checkoutTimeoutMillis = checkoutTimeoutMillis;
+        this.idleReaders = new ArrayBlockingQueue<>(readPoolSize);
+        try {
+            idleWriter.add(pooled(true));
+            for (int i = 0; i < readPoolSize; i++) {
+                idleReaders.add(pooled(false));
+            }
+        } catch (SQLException e) {
+            closeAll(idleWriter);
+            closeAll(idleReaders);
+            throw e;
+        }
+    }
+
+    public PooledConnection acquireRead() throws SQLException {
+        return checkout(idleReaders, activeReaders, "read");
+    }
+
+    public PooledConnection acquireWrite() throws SQLException {
+        return checkout(idleWriter, activeWriters, "write");
+    }
+
+    void release(final PooledConnection pooled) {
+        final BlockingQueue<PooledConnection> idle = pooled.isWriter() ? idleWriter : idleReaders;
+        final AtomicInteger active = pooled.isWriter() ? activeWriters : activeReaders;
+        try {
+            if (closed) {
+                closeQuietly(pooled);
+            } else {
+                resetState(pooled.connection());
+                idle.offer(pooled);
+            }
+        } finally {
+            active.decrementAndGet();
+            synchronized (releaseMonitor) {
+                releaseMonitor.notifyAll();
+            }
+        }
+    }
+
+    public PoolMetrics metrics() {
+        return new PoolMetrics(activeReaders.get(), idleReaders.size(), activeWriters.get() > 0, checkouts.sum(),
+                timeouts.sum(), totalWaitNanos.sum(), maxWaitNanos.get(),
+                statementCacheHits.sum(), statementCacheMisses.sum());
+    }
+
+    public String jdbcAddress() {
+        return jdbcAddress;
+    }
+
+    public int readPoolSize() {
+        return readPoolSize;
+    }
+
+    public SqliteProfile profile() {
+        return profile;
+    }
+
+    /**
+     * Stops handing out connections and closes idle ones immediately; borrowed
+     * connections are given up to the checkout timeout to come back before
+     * they are closed on release.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        final long deadline = System.currentTimeMillis() + checkoutTimeoutMillis;
+        synchronized (releaseMonitor) {
+            long remaining;
+            while (activeReaders.get() + activeWriters.get() > 0
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    releaseMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (activeReaders.get() + activeWriters.get() > 0) {
+            logger.info("Closing pool with connections still in use");
+        }
+        closeAll(idleWriter);
+        closeAll(idleReaders);
+    }
+
+    private PooledConnection checkout(final BlockingQueue<PooledConnection> idle, final AtomicInteger active, final String kind) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        final long start = System.nanoTime();
+        final PooledConnection pooled;
+        try {
+            pooled = idle.poll(checkoutTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for " + kind + " connection.", e);
+        }
+        final long waited = System.nanoTime() - start;
+        if (pooled == null) {
+            timeouts.increment();
+            throw new SQLException(String.format("Timed out after %d ms waiting for %s connection.", checkoutTimeoutMillis, kind));
+        }
+        active.incrementAndGet();
+        checkouts.increment();
+        totalWaitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        try {
+            validate(pooled);
+            return pooled;
+        } catch (SQLException e) {
+            // keep the slot: the next checkout will retry opening it
+            idle.offer(pooled);
+            active.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void validate(final PooledConnection pooled) throws SQLException {
+        final Connection connection = pooled.connection();
+        if (!connection.isClosed() && connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+            return;
+        }
+        logger.info("Replacing broken pooled connection");
+        closeQuietly(pooled);
+        pooled.replace(open(pooled.isWriter()));
+    }
+
+    private PooledConnection pooled(final boolean writer) throws SQLException {
+        return new PooledConnection(this, open(writer), writer,
+                new StatementCache(STATEMENT_CACHE_SIZE, statementCacheHits, statementCacheMisses));
+    }
+
+    private Connection open(final boolean writer) throws SQLException {
+        final Connection connection = DriverManager.getConnection(jdbcAddress);
+        try {
+            SqlitePragmas.apply(profile, connection);
+            if (readUncommitted && !writer) {
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("PRAGMA read_uncommitted = 1");
+                }
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    private static void resetState(final Connection connection) {
+        try {
+            if (!connection.isClosed() && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.info("Error while resetting connection: " + e.getMessage());
+        }
+    }
+
+    private static void closeAll(final BlockingQueue<PooledConnection> connections) {
+        final List<PooledConnection> drained = new ArrayList<>();
+        connections.drainTo(drained);
+        drained.forEach(ConnectionPool::closeQuietly);
+    }
+
+    private static void closeQuietly(final PooledConnection pooled) {
+        try {
+            pooled.closePhysical();
+        } catch (SQLException e) {
+            logger.info("Error while closing connection: " + e.getMessage());
+        }
+    }
+
+}
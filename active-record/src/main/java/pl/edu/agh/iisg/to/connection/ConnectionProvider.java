@@ -1,51 +1,311 @@
 package pl.edu.agh.iisg.to.connection;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Logger;
 
+import pl.edu.agh.iisg.to.events.ChangeStream;
+
 public final class ConnectionProvider {
 
     private static final String JDBC_DRIVER = "org.sqlite.JDBC";
 
     private static final String JDBC_ADDRESS = "jdbc:sqlite:active_record.db";
+
+    private static final int DEFAULT_READ_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final long DEFAULT_CHECKOUT_TIMEOUT_MILLIS = 5000;
     
     private static final Logger logger = Logger.getGlobal();
 
-    private static Optional<Connection> connection = Optional.empty();
+    // one pool per shard; a single pool unless initialized with initSharded
+    private static volatile List<ConnectionPool> pools = Collections.emptyList();
+
+    private static volatile Optional<ShardRouter> router = Optional.empty();
+
+    private static final ThreadLocal<Integer> currentShard = ThreadLocal.withInitial(() -> 0);
+
+    private static volatile Optional<InMemoryDatabase> inMemory = Optional.empty();
+
+    private static final List<Runnable> closeHooks = new CopyOnWriteArrayList<>();
+
+    private static final ThreadLocal<PooledConnection> pinned = new ThreadLocal<>();
 
     static {
         init(JDBC_ADDRESS);
     }
 
     public static void init(final String jdbcAddress) {
+        init(jdbcAddress, DEFAULT_READ_POOL_SIZE, DEFAULT_CHECKOUT_TIMEOUT_MILLIS);
+    }
+
+    public static void init(final String jdbcAddress, final SqliteProfile profile) {
+        init(jdbcAddress, DEFAULT_READ_POOL_SIZE, DEFAULT_CHECKOUT_TIMEOUT_MILLIS, profile);
+    }
+
+    public static void init(final String jdbcAddress, final int readPoolSize, final long checkoutTimeoutMillis) {
+        init(jdbcAddress, readPoolSize, checkoutTimeoutMillis, SqliteProfile.fromSystemProperty());
+    }
+
+    public static synchronized void init(final String jdbcAddress, final int readPoolSize, final long checkoutTimeoutMillis,
+                                         final SqliteProfile profile) {
         try {
-            close();
             logger.info("Loading driver");
             Class.forName(JDBC_DRIVER);
-            connection = Optional.of(DriverManager.getConnection(jdbcAddress));
-            logger.info("Connection created");
+            final ConnectionPool created = new ConnectionPool(jdbcAddress, readPoolSize, checkoutTimeoutMillis, profile);
+            retireCurrent();
+            replacePools(Collections.singletonList(created), Optional.empty(), Optional.empty());
+            logger.info(String.format("Connection pool created (%d readers, 1 writer), SQLite profile: %s", readPoolSize, profile));
         } catch (Exception e) {
             logger.info("Error during initialization: " + e.getMessage());
         }
     }
 
+    public static void initInMemory(final Path snapshotFile, final long snapshotIntervalMillis) {
+        initInMemory(snapshotFile, snapshotIntervalMillis, DEFAULT_READ_POOL_SIZE, DEFAULT_CHECKOUT_TIMEOUT_MILLIS,
+                SqliteProfile.fromSystemProperty());
+    }
+
+    /**
+     * Serves the database from memory. It is loaded from the snapshot file if one exists and
+     * written back to it every snapshotIntervalMillis (never if not positive), on snapshot()
+     * and when the pool is closed or replaced. Readers see uncommitted writes in this mode;
+     * the model caches are cleared whenever a transaction rolls back (see QueryExecutor.onRollback).
+     * A new database has no tables; run SchemaMigrator.migrate() after initialization.
+     */
+    public static synchronized void initInMemory(final Path snapshotFile, final long snapshotIntervalMillis, final int readPoolSize,
+                                                 final long checkoutTimeoutMillis, final SqliteProfile profile) {
+        InMemoryDatabase database = null;
+        try {
+            logger.info("Loading driver");
+            Class.forName(JDBC_DRIVER);
+            // the current database may be persisting to the same snapshot file
+            retireCurrent();
+            database = InMemoryDatabase.load(snapshotFile);
+            final ConnectionPool created = new ConnectionPool(database.jdbcAddress(), readPoolSize, checkoutTimeoutMillis, profile, true);
+            database.attach(created, snapshotIntervalMillis);
+            replacePools(Collections.singletonList(created), Optional.of(database), Optional.empty());
+            logger.info(String.format("In-memory connection pool created (%d readers, 1 writer), snapshots to %s every %d ms",
+                    readPoolSize, snapshotFile, snapshotIntervalMillis));
+        } catch (Exception e) {
+            if (database != null) {
+                database.close();
+            }
+            logger.info("Error during initialization: " + e.getMessage());
+        }
+    }
+
+    public static void initSharded(final List<String> jdbcAddresses, final int courseIdBlockSize) {
+        initSharded(jdbcAddresses, courseIdBlockSize, DEFAULT_READ_POOL_SIZE, DEFAULT_CHECKOUT_TIMEOUT_MILLIS,
+                SqliteProfile.fromSystemProperty());
+    }
+
+    /**
+     * Serves one database file per shard, each with its own writer. Course, enrollment and
+     * grade rows are placed by course id and student rows by index number through the
+     * {@link ShardRouter}; shard k allocates course and student ids from k * courseIdBlockSize
+     * once SchemaMigrator.migrate() has run, so every shard but the last holds at most that
+     * many students. Units of work, write-behind grades, the importer, the read replica and
+     * the enrollment index refuse to start on a sharded database.
+     */
+    public static synchronized void initSharded(final List<String> jdbcAddresses, final int courseIdBlockSize, final int readPoolSize,
+                                                final long checkoutTimeoutMillis, final SqliteProfile profile) {
+        final List<ConnectionPool> created = new ArrayList<>();
+        try {
+            logger.info("Loading driver");
+            Class.forName(JDBC_DRIVER);
+            final ShardRouter shardRouter = new ShardRouter(jdbcAddresses.size(), courseIdBlockSize);
+            for (String jdbcAddress : jdbcAddresses) {
+                created.add(new ConnectionPool(jdbcAddress, readPoolSize, checkoutTimeoutMillis, profile));
+            }
+            retireCurrent();
+            replacePools(Collections.unmodifiableList(created), Optional.empty(), Optional.of(shardRouter));
+            logger.info(String.format("Sharded connection pools created (%d shards, %d readers and 1 writer each), SQLite profile: %s",
+                    created.size(), readPoolSize, profile));
+        } catch (Exception e) {
+            created.forEach(ConnectionPool::close);
+            logger.info("Error during initialization: " + e.getMessage());
+        }
+    }
+
+    private static void retireCurrent() {
+        if (!pools.isEmpty()) {
+            runCloseHooks();
+            inMemory.ifPresent(InMemoryDatabase::shutdown);
+        }
+    }
+
+    private static void replacePools(final List<ConnectionPool> created, final Optional<InMemoryDatabase> database,
+                                     final Optional<ShardRouter> shardRouter) {
+        final List<ConnectionPool> previous = pools;
+        final Optional<InMemoryDatabase> previousDatabase = inMemory;
+        pools = created;
+        inMemory = database;
+        router = shardRouter;
+        previous.forEach(ConnectionPool::close);
+        previousDatabase.ifPresent(InMemoryDatabase::close);
+    }
+
     private ConnectionProvider() {
         throw new UnsupportedOperationException();
     }
 
-    public static Connection getConnection() {
-        return connection.orElseThrow(() -> new RuntimeException("Connection is not valid."));
+    public static PooledConnection acquireRead() throws SQLException {
+        final PooledConnection pinnedConnection = pinned.get();
+        return pinnedConnection != null ? pinnedConnection.borrow() : currentPool().acquireRead();
+    }
+
+    public static PooledConnection acquireWrite() throws SQLException {
+        if (ChangeStream.isSubscriberThread()) {
+            // a writer publishing into a full change buffer waits for this subscriber while holding the writer
+            throw new IllegalStateException("Change subscribers cannot write");
+        }
+        final PooledConnection pinnedConnection = pinned.get();
+        return pinnedConnection != null ? pinnedConnection.borrow() : currentPool().acquireWrite();
+    }
+
+    /**
+     * Makes both acquire methods hand out the given connection on the current thread until it is
+     * unpinned; closing what they return then leaves the connection with its owner.
+     */
+    public static void pin(final PooledConnection connection) {
+        pinned.set(connection);
+    }
+
+    public static void unpin() {
+        pinned.remove();
+    }
+
+    public static PoolMetrics metrics() {
+        return currentPool().metrics();
+    }
+
+    public static SqliteProfile profile() {
+        return currentPool().profile();
+    }
+
+    public static int readPoolSize() {
+        return currentPool().readPoolSize();
+    }
+
+    public static int shardCount() {
+        return Math.max(1, pools.size());
+    }
+
+    public static Optional<ShardRouter> router() {
+        return router;
+    }
+
+    /**
+     * Directs the connections acquired by the current thread to the given shard until the
+     * returned scope is closed.
+     */
+    public static ShardScope useShard(final int shard) {
+        if (shard < 0 || shard >= shardCount()) {
+            throw new IllegalArgumentException("No such shard: " + shard);
+        }
+        return new ShardScope(currentShard, shard, null);
+    }
+
+    /**
+     * Directs the current thread to the shard holding the course and keeps the course from
+     * being moved to another shard until the returned scope is closed.
+     */
+    public static ShardScope routeCourse(final int courseId) {
+        if (!router.isPresent()) {
+            return new ShardScope(currentShard, 0, null);
+        }
+        final ShardRouter shardRouter = router.get();
+        final Lock lock = shardRouter.routingLock().readLock();
+        lock.lock();
+        return new ShardScope(currentShard, shardRouter.route(courseId), lock);
+    }
+
+    /**
+     * Keeps every course on its current shard until the returned scope is closed, e.g. while
+     * gathering results from all shards.
+     */
+    public static ShardScope pinRouting() {
+        if (!router.isPresent()) {
+            return new ShardScope(currentShard, currentShard.get(), null);
+        }
+        final Lock lock = router.get().routingLock().readLock();
+        lock.lock();
+        return new ShardScope(currentShard, currentShard.get(), lock);
+    }
+
+    static ConnectionPool shardPool(final int shard) {
+        final List<ConnectionPool> current = pools;
+        if (current.isEmpty()) {
+            throw new RuntimeException("Connection is not valid.");
+        }
+        return current.get(shard);
+    }
+
+    /**
+     * Snapshot statistics of the in-memory database, empty when serving a database file.
+     */
+    public static Optional<SnapshotMetrics> snapshotMetrics() {
+        return inMemory.map(InMemoryDatabase::metrics);
+    }
+
+    public static void snapshot() throws SQLException {
+        inMemory.orElseThrow(() -> new SQLException("Not running an in-memory database.")).snapshot();
+    }
+
+    /**
+     * Registers a one-shot hook run before the current pool is closed or replaced,
+     * e.g. to flush pending writes while connections are still available.
+     */
+    public static void onClose(final Runnable hook) {
+        closeHooks.add(hook);
+    }
+
+    /**
+     * Unregisters a hook whose owner was closed before the pool.
+     */
+    public static void removeCloseHook(final Runnable hook) {
+        closeHooks.remove(hook);
+    }
+
+    public static synchronized void close() throws SQLException {
+        if (!pools.isEmpty()) {
+            retireCurrent();
+            logger.info("Closing connection pool");
+            pools.forEach(ConnectionPool::close);
+            pools = Collections.emptyList();
+            router = Optional.empty();
+            inMemory.ifPresent(InMemoryDatabase::close);
+            inMemory = Optional.empty();
+        }
+    }
+
+    private static void runCloseHooks() {
+        final List<Runnable> hooks = new ArrayList<>(closeHooks);
+        closeHooks.clear();
+        for (Runnable hook : hooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                logger.info("Error in close hook: " + e.getMessage());
+            }
+        }
     }
 
-    public static void close() throws SQLException {
-        if (connection.isPresent()) {
-            logger.info("Closing connection");
-            connection.get().close();
-            connection = Optional.empty();
+    private static ConnectionPool currentPool() {
+        final List<ConnectionPool> current = pools;
+        if (current.isEmpty()) {
+            throw new RuntimeException("Connection is not valid.");
         }
+        final int shard = currentShard.get();
+        // a scope opened under a previous, larger shard set falls back to the first shard
+        return shard < current.size() ? current.get(shard) : current.get(0);
     }
 
 }
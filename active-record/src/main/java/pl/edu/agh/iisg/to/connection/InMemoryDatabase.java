@@ -0,0 +1,158 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Shared-cache in-memory SQLite database persisted through the online backup API.
+ * An anchor connection keeps the database alive while pool connections come and go.
+ * Snapshots are taken on the pool's writer connection, so they never contain a
+ * half-applied write transaction, and are written to a temporary file first and then
+ * moved over the previous snapshot.
+ */
+final class InMemoryDatabase implements AutoCloseable {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final Path snapshotFile;
+
+    private final String jdbcAddress;
+
+    private final Connection anchor;
+
+    private final boolean restored;
+
+    private final LongAdder snapshots = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final AtomicLong lastDurationNanos = new AtomicLong();
+
+    private final AtomicLong maxDurationNanos = new AtomicLong();
+
+    private volatile long persistedAtMillis = System.currentTimeMillis();
+
+    private volatile ConnectionPool pool;
+
+    private ScheduledExecutorService scheduler;
+
+    private InMemoryDatabase(final Path snapshotFile, final String jdbcAddress, final Connection anchor, final boolean restored) {
+        this.snapshotFile = snapshotFile;
+        this.jdbcAddress = jdbcAddress;
+        this.anchor = anchor;
+        this.restored = restored;
+    }
+
+    /**
+     * Creates a new in-memory database, filled from the snapshot file if it exists.
+     */
+    static InMemoryDatabase load(final Path snapshotFile) throws SQLException {
+        final String jdbcAddress = String.format("jdbc:sqlite:file:active-record-memory-%d?mode=memory&cache=shared", instances.incrementAndGet());
+        final Connection anchor = DriverManager.getConnection(jdbcAddress);
+        final boolean restored = Files.exists(snapshotFile);
+        if (restored) {
+            try (final Statement statement = anchor.createStatement()) {
+                statement.executeUpdate("restore from " + quote(snapshotFile));
+            } catch (SQLException e) {
+                anchor.close();
+                throw e;
+            }
+            logger.info("In-memory database restored from " + snapshotFile);
+        }
+        return new InMemoryDatabase(snapshotFile, jdbcAddress, anchor, restored);
+    }
+
+    String jdbcAddress() {
+        return jdbcAddress;
+    }
+
+    synchronized void attach(final ConnectionPool pool, final long snapshotIntervalMillis) {
+        this.pool = pool;
+        if (snapshotIntervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "sqlite-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::scheduledSnapshot, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void snapshot() throws SQLException {
+        final long start = System.nanoTime();
+        final Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (final PooledConnection writer = pool.acquireWrite();
+             final Statement statement = writer.connection().createStatement()) {
+            statement.executeUpdate("backup to " + quote(temporary));
+            Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (SQLException e) {
+            failures.increment();
+            throw e;
+        } catch (IOException e) {
+            failures.increment();
+            throw new SQLException("Cannot replace snapshot " + snapshotFile + ": " + e.getMessage(), e);
+        }
+        final long duration = System.nanoTime() - start;
+        persistedAtMillis = System.currentTimeMillis();
+        snapshots.increment();
+        lastDurationNanos.set(duration);
+        maxDurationNanos.accumulateAndGet(duration, Math::max);
+    }
+
+    SnapshotMetrics metrics() {
+        return new SnapshotMetrics(snapshotFile, restored, snapshots.sum(), failures.sum(), lastDurationNanos.get(),
+                maxDurationNanos.get(), System.currentTimeMillis() - persistedAtMillis);
+    }
+
+    /**
+     * Stops scheduled snapshots and takes a final one; must run while the pool is still open.
+     */
+    synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        try {
+            snapshot();
+        } catch (SQLException e) {
+            logger.info("Final snapshot failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            anchor.close();
+        } catch (SQLException e) {
+            logger.info("Error while closing in-memory database: " + e.getMessage());
+        }
+    }
+
+    private void scheduledSnapshot() {
+        try {
+            snapshot();
+        } catch (SQLException e) {
+            logger.info("Scheduled snapshot failed: " + e.getMessage());
+        }
+    }
+
+    private static String quote(final Path path) {
+        return '"' + path.toAbsolutePath().toString() + '"';
+    }
+
+}
@@ -0,0 +1,85 @@
+package pl.edu.agh.iisg.to.connection;
+
+public final class PoolMetrics {
+
+    private final int activeReaders;
+
+    private final int idleReaders;
+
+    private final boolean writerActive;
+
+    private final long checkouts;
+
+    private final long timeouts;
+
+    private final long totalWaitNanos;
+
+    private final long maxWaitNanos;
+
+    private final long statementCacheHits;
+
+    private final long statementCacheMisses;
+
+    PoolMetrics(final int activeReaders, final int idleReaders, final boolean writerActive, final long checkouts,
+                final long timeouts, final long totalWaitNanos, final long maxWaitNanos,
+                final long statementCacheHits, final long statementCacheMisses) {
+        this.activeReaders = activeReaders;
+        this.idleReaders = idleReaders;
+        this.writerActive = writerActive;
+        this.checkouts = checkouts;
+        this.timeouts = timeouts;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.statementCacheHits = statementCacheHits;
+        this.statementCacheMisses = statementCacheMisses;
+    }
+
+    public int activeReaders() {
+        return activeReaders;
+    }
+
+    public int idleReaders() {
+        return idleReaders;
+    }
+
+    public boolean writerActive() {
+        return writerActive;
+    }
+
+    public long checkouts() {
+        return checkouts;
+    }
+
+    public long timeouts() {
+        return timeouts;
+    }
+
+    public long averageWaitNanos() {
+        return checkouts == 0 ? 0 : totalWaitNanos / checkouts;
+    }
+
+    public long maxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public long statementCacheHits() {
+        return statementCacheHits;
+    }
+
+    public long statementCacheMisses() {
+        return statementCacheMisses;
+    }
+
+    public double statementCacheHitRate() {
+        final long lookups = statementCacheHits + statementCacheMisses;
+        return lookups == 0 ? 0.0 : (double) statementCacheHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PoolMetrics[activeReaders=%d, idleReaders=%d, writerActive=%b, checkouts=%d, timeouts=%d, avgWait=%dns, maxWait=%dns, statementCacheHitRate=%.2f]",
+                activeReaders, idleReaders, writerActive, checkouts, timeouts, averageWaitNanos(), maxWaitNanos,
+                statementCacheHitRate());
+    }
+
+}
@@ -0,0 +1,78 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public final class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+
+    private final boolean writer;
+
+    private final StatementCache statements;
+
+    private Connection connection;
+
+    // a borrowed view shares the owner's connection and statements and is not released on close
+    private final boolean borrowed;
+
+    PooledConnection(final ConnectionPool pool, final Connection connection, final boolean writer, final StatementCache statements) {
+        this(pool, connection, writer, statements, false);
+    }
+
+    private PooledConnection(final ConnectionPool pool, final Connection connection, final boolean writer, final StatementCache statements,
+                             final boolean borrowed) {
+        this.pool = pool;
+        this.connection = connection;
+        this.writer = writer;
+        this.statements = statements;
+        this.borrowed = borrowed;
+    }
+
+    public Connection connection() {
+        return connection;
+    }
+
+    /**
+     * Returns a cached prepared statement for the given SQL template with its parameters cleared.
+     * The statement belongs to the cache and must not be closed by the caller.
+     */
+    public PreparedStatement prepare(final String sql) throws SQLException {
+        return statements.prepare(connection, sql);
+    }
+
+    public boolean isWriter() {
+        return writer;
+    }
+
+    /**
+     * Whether this is a view of a connection pinned to the thread, which other statements of
+     * the thread run on while it is in use.
+     */
+    public boolean isBorrowed() {
+        return borrowed;
+    }
+
+    PooledConnection borrow() {
+        return new PooledConnection(pool, connection, writer, statements, true);
+    }
+
+    void replace(final Connection fresh) {
+        statements.clear();
+        connection = fresh;
+    }
+
+    void closePhysical() throws SQLException {
+        statements.clear();
+        connection.close();
+    }
+
+    @Override
+    public void close() {
+        if (!borrowed) {
+            pool.release(this);
+        }
+    }
+
+}
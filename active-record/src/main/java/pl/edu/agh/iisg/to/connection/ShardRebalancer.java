@@ -0,0 +1,144 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * Moves ranges of course ids, with their enrollments and grades, between shards.
+ */
+public final class ShardRebalancer {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private ShardRebalancer() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Moves the courses with ids in [fromInclusive, toExclusive) to the target shard and returns
+     * how many were moved. Operations routed to any course wait until the move completes. The
+     * range must lie on one shard and must not contain ids that shard may still allocate.
+     * Moved grades get new ids on the target shard.
+     */
+    public static int moveCourses(final int fromInclusive, final int toExclusive, final int targetShard) throws SQLException {
+        final ShardRouter router = ConnectionProvider.router().orElseThrow(() -> new IllegalStateException("Not running sharded"));
+        if (fromInclusive >= toExclusive) {
+            throw new IllegalArgumentException("Empty range: " + fromInclusive + ".." + toExclusive);
+        }
+        if (targetShard < 0 || targetShard >= router.shardCount()) {
+            throw new IllegalArgumentException("No such shard: " + targetShard);
+        }
+        final Lock lock = router.routingLock().writeLock();
+        lock.lock();
+        try {
+            final int sourceShard = router.owner(fromInclusive, toExclusive);
+            if (sourceShard < 0) {
+                throw new IllegalArgumentException("Range spans several shards: " + fromInclusive + ".." + toExclusive);
+            }
+            if (sourceShard == targetShard) {
+                return 0;
+            }
+            try (final PooledConnection source = ConnectionProvider.shardPool(sourceShard).acquireWrite();
+                 final PooledConnection target = ConnectionProvider.shardPool(targetShard).acquireWrite()) {
+                final long allocated = courseSequence(source.connection());
+                final long unallocatedFrom = Math.max(router.blockStart(sourceShard), allocated + 1);
+                if (Math.max(fromInclusive, unallocatedFrom) < Math.min(toExclusive, router.blockEnd(sourceShard))) {
+                    throw new IllegalArgumentException("Range contains course ids not yet allocated by shard " + sourceShard);
+                }
+                final int moved = move(source.connection(), target.connection(), router, fromInclusive, toExclusive, targetShard);
+                logger.info(String.format("Moved %d courses in %d..%d from shard %d to shard %d",
+                        moved, fromInclusive, toExclusive, sourceShard, targetShard));
+                return moved;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int move(final Connection source, final Connection target, final ShardRouter router,
+                            final int fromInclusive, final int toExclusive, final int targetShard) throws SQLException {
+        source.setAutoCommit(false);
+        target.setAutoCommit(false);
+        boolean targetCommitted = false;
+        try {
+            // explicit ids advance the target's sequence into the source's block; it is restored below
+            final long targetSequence = courseSequence(target);
+            final int moved = copy(source, target, "SELECT id, name FROM course WHERE id >= ? AND id < ?",
+                    "INSERT INTO course (id, name) VALUES (?, ?)", 2, fromInclusive, toExclusive);
+            copy(source, target, "SELECT student_id, course_id FROM student_course WHERE course_id >= ? AND course_id < ?",
+                    "INSERT OR IGNORE INTO student_course (student_id, course_id) VALUES (?, ?)", 2, fromInclusive, toExclusive);
+            copy(source, target, "SELECT grade, student_id, course_id FROM grade WHERE course_id >= ? AND course_id < ?",
+                    "INSERT INTO grade (grade, student_id, course_id) VALUES (?, ?, ?)", 3, fromInclusive, toExclusive);
+            try (final PreparedStatement statement = target.prepareStatement("DELETE FROM sqlite_sequence WHERE name = 'course'")) {
+                statement.executeUpdate();
+            }
+            try (final PreparedStatement statement = target.prepareStatement("INSERT INTO sqlite_sequence (name, seq) VALUES ('course', ?)")) {
+                statement.setLong(1, targetSequence);
+                statement.executeUpdate();
+            }
+            delete(source, "DELETE FROM grade WHERE course_id >= ? AND course_id < ?", fromInclusive, toExclusive);
+            delete(source, "DELETE FROM student_course WHERE course_id >= ? AND course_id < ?", fromInclusive, toExclusive);
+            delete(source, "DELETE FROM course WHERE id >= ? AND id < ?", fromInclusive, toExclusive);
+            target.commit();
+            targetCommitted = true;
+            router.assign(fromInclusive, toExclusive, targetShard);
+            source.commit();
+            return moved;
+        } catch (SQLException | RuntimeException e) {
+            if (targetCommitted) {
+                // the range is served by the target already; the source keeps unreachable copies
+                logger.warning("Could not delete moved courses from the source shard: " + e.getMessage());
+            } else {
+                target.rollback();
+            }
+            source.rollback();
+            throw e;
+        } finally {
+            source.setAutoCommit(true);
+            target.setAutoCommit(true);
+        }
+    }
+
+    private static int copy(final Connection source, final Connection target, final String selectSql, final String insertSql,
+                            final int columns, final int fromInclusive, final int toExclusive) throws SQLException {
+        int rows = 0;
+        try (final PreparedStatement select = source.prepareStatement(selectSql);
+             final PreparedStatement insert = target.prepareStatement(insertSql)) {
+            select.setInt(1, fromInclusive);
+            select.setInt(2, toExclusive);
+            try (final ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        insert.setObject(i, resultSet.getObject(i));
+                    }
+                    insert.addBatch();
+                    rows++;
+                }
+            }
+            if (rows > 0) {
+                insert.executeBatch();
+            }
+        }
+        return rows;
+    }
+
+    private static void delete(final Connection connection, final String sql, final int fromInclusive, final int toExclusive) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, fromInclusive);
+            statement.setInt(2, toExclusive);
+            statement.executeUpdate();
+        }
+    }
+
+    private static long courseSequence(final Connection connection) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement("SELECT seq FROM sqlite_sequence WHERE name = 'course'");
+             final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maps course ids to shards by range. Initially shard k owns the block of ids starting at
+ * k * blockSize, which is also where it allocates new course ids, and the last shard owns
+ * everything above; {@link ShardRebalancer} reassigns ranges afterwards.
+ * <p>
+ * Students are partitioned by index number and never move; each shard allocates student ids
+ * from its own block as well, so a student id alone also identifies its shard.
+ */
+public final class ShardRouter {
+
+    private final int shardCount;
+
+    private final int blockSize;
+
+    // held shared while an operation runs against a routed shard, exclusively while ranges move
+    private final ReadWriteLock routingLock = new ReentrantReadWriteLock();
+
+    // range start -> shard, replaced as a whole on every change
+    private volatile NavigableMap<Integer, Integer> ranges;
+
+    ShardRouter(final int shardCount, final int blockSize) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        if (blockSize < 1 || (long) blockSize * shardCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid course id block size: " + blockSize);
+        }
+        this.shardCount = shardCount;
+        this.blockSize = blockSize;
+        final NavigableMap<Integer, Integer> initial = new TreeMap<>();
+        initial.put(Integer.MIN_VALUE, 0);
+        for (int shard = 1; shard < shardCount; shard++) {
+            initial.put(blockStart(shard), shard);
+        }
+        this.ranges = initial;
+    }
+
+    public int route(final int courseId) {
+        return ranges.floorEntry(courseId).getValue();
+    }
+
+    public int routeStudent(final int indexNumber) {
+        return Math.floorMod(indexNumber, shardCount);
+    }
+
+    public int routeStudentId(final int studentId) {
+        return Math.max(0, Math.min(studentId / blockSize, shardCount - 1));
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * First course or student id allocated by the given shard.
+     */
+    public int blockStart(final int shard) {
+        return shard * blockSize;
+    }
+
+    /**
+     * End (exclusive) of the block of course or student ids allocated by the given shard.
+     */
+    public int blockEnd(final int shard) {
+        return shard == shardCount - 1 ? Integer.MAX_VALUE : (shard + 1) * blockSize;
+    }
+
+    /**
+     * Returns the current ranges as range start to shard.
+     */
+    public Map<Integer, Integer> ranges() {
+        return Collections.unmodifiableMap(ranges);
+    }
+
+    /**
+     * Returns the shard holding every id of the range, or -1 if the range spans several shards.
+     */
+    public int owner(final int fromInclusive, final int toExclusive) {
+        final NavigableMap<Integer, Integer> current = ranges;
+        final int shard = current.floorEntry(fromInclusive).getValue();
+        for (int value : current.subMap(fromInclusive, false, toExclusive, false).values()) {
+            if (value != shard) {
+                return -1;
+            }
+        }
+        return shard;
+    }
+
+    ReadWriteLock routingLock() {
+        return routingLock;
+    }
+
+    void assign(final int fromInclusive, final int toExclusive, final int shard) {
+        final NavigableMap<Integer, Integer> updated = new TreeMap<>(ranges);
+        final int following = updated.floorEntry(toExclusive).getValue();
+        updated.subMap(fromInclusive, true, toExclusive, true).clear();
+        updated.put(fromInclusive, shard);
+        updated.put(toExclusive, following);
+        // merge neighbouring ranges of the same shard
+        Integer previous = null;
+        for (Map.Entry<Integer, Integer> entry : new TreeMap<>(updated).entrySet()) {
+            if (entry.getValue().equals(previous)) {
+                updated.remove(entry.getKey());
+            }
+            previous = entry.getValue();
+        }
+        ranges = updated;
+    }
+
+}
@@ -0,0 +1,40 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Selects the shard used by the current thread; closing it restores the previous one and
+ * releases the routing lock if the scope holds it. Scopes must be closed on the thread that
+ * opened them, in reverse order.
+ */
+public final class ShardScope implements AutoCloseable {
+
+    private final ThreadLocal<Integer> currentShard;
+
+    private final int previousShard;
+
+    private final int shard;
+
+    private final Lock routingLock;
+
+    ShardScope(final ThreadLocal<Integer> currentShard, final int shard, final Lock routingLock) {
+        this.currentShard = currentShard;
+        this.previousShard = currentShard.get();
+        this.shard = shard;
+        this.routingLock = routingLock;
+        currentShard.set(shard);
+    }
+
+    public int shard() {
+        return shard;
+    }
+
+    @Override
+    public void close() {
+        currentShard.set(previousShard);
+        if (routingLock != null) {
+            routingLock.unlock();
+        }
+    }
+
+}
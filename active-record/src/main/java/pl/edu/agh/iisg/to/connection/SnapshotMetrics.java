@@ -0,0 +1,74 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.nio.file.Path;
+
+public final class SnapshotMetrics {
+
+    private final Path snapshotFile;
+
+    private final boolean restored;
+
+    private final long snapshots;
+
+    private final long failures;
+
+    private final long lastDurationNanos;
+
+    private final long maxDurationNanos;
+
+    private final long stalenessMillis;
+
+    SnapshotMetrics(final Path snapshotFile, final boolean restored, final long snapshots, final long failures,
+                    final long lastDurationNanos, final long maxDurationNanos, final long stalenessMillis) {
+        this.snapshotFile = snapshotFile;
+        this.restored = restored;
+        this.snapshots = snapshots;
+        this.failures = failures;
+        this.lastDurationNanos = lastDurationNanos;
+        this.maxDurationNanos = maxDurationNanos;
+        this.stalenessMillis = stalenessMillis;
+    }
+
+    public Path snapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Whether the database was loaded from an existing snapshot at startup.
+     */
+    public boolean restored() {
+        return restored;
+    }
+
+    public long snapshots() {
+        return snapshots;
+    }
+
+    public long failures() {
+        return failures;
+    }
+
+    public long lastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    public long maxDurationNanos() {
+        return maxDurationNanos;
+    }
+
+    /**
+     * Time since the snapshot file last matched the database, i.e. since the last
+     * successful snapshot or, before the first one, since the database was loaded.
+     * Writes made within this window are lost if the process dies.
+     */
+    public long stalenessMillis() {
+        return stalenessMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SnapshotMetrics[file=%s, restored=%b, snapshots=%d, failures=%d, lastDuration=%dus, maxDuration=%dus, staleness=%dms]",
+                snapshotFile, restored, snapshots, failures, lastDurationNanos / 1000, maxDurationNanos / 1000, stalenessMillis);
+    }
+
+}
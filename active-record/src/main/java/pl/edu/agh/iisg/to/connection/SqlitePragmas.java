@@ -0,0 +1,33 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Applies the pragmas of a {@link SqliteProfile} to a newly opened connection.
+ */
+public final class SqlitePragmas {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private SqlitePragmas() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void apply(final SqliteProfile profile, final Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + profile.busyTimeoutMillis());
+            statement.execute("PRAGMA journal_mode = " + profile.journalMode());
+            statement.execute("PRAGMA synchronous = " + profile.synchronous());
+            statement.execute("PRAGMA mmap_size = " + profile.mmapSize());
+            statement.execute("PRAGMA cache_size = " + profile.cacheSize());
+            statement.execute("PRAGMA temp_store = " + profile.tempStore());
+        } catch (SQLException e) {
+            logger.info(String.format("Cannot apply SQLite profile %s: %s", profile.profileName(), e.getMessage()));
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package pl.edu.agh.iisg.to.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.query.QueryHelper;
+
+/**
+ * LRU cache of prepared statements owned by a single pooled connection.
+ * Not thread safe - a pooled connection is only used by the thread that checked it out.
+ */
+final class StatementCache {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    StatementCache(final int capacity, final LongAdder hits, final LongAdder misses) {
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    PreparedStatement prepare(final Connection connection, final String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && reset(statement)) {
+            hits.increment();
+            return statement;
+        }
+        misses.increment();
+        statement = QueryHelper.prepareStatement(connection, sql);
+        statements.put(sql, statement);
+        return statement;
+    }
+
+    // the driver finalizes a statement whose execution failed, so it has to be prepared again
+    private static boolean reset(final PreparedStatement statement) {
+        try {
+            statement.clearParameters();
+            return true;
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return false;
+        }
+    }
+
+    void clear() {
+        statements.values().forEach(StatementCache::closeQuietly);
+        statements.clear();
+    }
+
+    private static void closeQuietly(final PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.info("Error while closing cached statement: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+
+/**
+ * Asynchronous front of {@link QueryExecutor}. Writes are executed one at a time, in
+ * submission order, by a single writer thread fed from a bounded queue; a full queue
+ * blocks the submitting thread for up to {@link #ENQUEUE_TIMEOUT_MILLIS} before the
+ * write is rejected. Reads run on a pool sized like the pool of read connections.
+ */
+public final class AsyncQueryExecutor {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    public static final int WRITE_QUEUE_CAPACITY = 1024;
+
+    public static final long ENQUEUE_TIMEOUT_MILLIS = 5000;
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+
+    private static ThreadPoolExecutor writer;
+
+    private static ExecutorService readers;
+
+    private AsyncQueryExecutor() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static <T> CompletableFuture<T> query(final String sqlTemplate, final ResultSetHandler<T> handler, final Object... params) {
+        return read(() -> QueryExecutor.query(sqlTemplate, handler, params));
+    }
+
+    public static CompletableFuture<Integer> insert(final String sqlTemplate, final Object... params) {
+        return write(() -> QueryExecutor.insert(sqlTemplate, params));
+    }
+
+    public static CompletableFuture<Integer> update(final String sqlTemplate, final Object... params) {
+        return write(() -> QueryExecutor.update(sqlTemplate, params));
+    }
+
+    public static CompletableFuture<BatchResult<Integer>> insertBatch(final String sqlTemplate, final List<Object[]> rows, final int chunkSize) {
+        return write(() -> QueryExecutor.insertBatch(sqlTemplate, rows, chunkSize));
+    }
+
+    public static <T> CompletableFuture<T> read(final SqlCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> unchecked(call), readers());
+    }
+
+    public static <T> CompletableFuture<T> write(final SqlCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> unchecked(call), writer());
+    }
+
+    public static synchronized int pendingWrites() {
+        return writer == null ? 0 : writer.getQueue().size() + writer.getActiveCount();
+    }
+
+    /**
+     * Lets queued writes finish and stops the worker threads; they are started again on next use.
+     * Called automatically before the connection pool is closed.
+     */
+    public static synchronized void shutdown() {
+        if (writer != null) {
+            awaitTermination(writer, "writer");
+            writer = null;
+        }
+        if (readers != null) {
+            awaitTermination(readers, "reader");
+            readers = null;
+        }
+    }
+
+    private static synchronized ExecutorService writer() {
+        if (writer == null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(WRITE_QUEUE_CAPACITY), daemonThreads("sqlite-writer"),
+                    (task, executor) -> {
+                        try {
+                            if (executor.isShutdown() || !executor.getQueue().offer(task, ENQUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                                throw new RejectedExecutionException("Write queue is full");
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for the write queue", e);
+                        }
+                    });
+            registerShutdownHook();
+        }
+        return writer;
+    }
+
+    private static synchronized ExecutorService readers() {
+        if (readers == null) {
+            readers = new ThreadPoolExecutor(ConnectionProvider.readPoolSize(), ConnectionProvider.readPoolSize(), 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), daemonThreads("sqlite-reader"));
+            registerShutdownHook();
+        }
+        return readers;
+    }
+
+    private static void registerShutdownHook() {
+        ConnectionProvider.onClose(AsyncQueryExecutor::shutdown);
+    }
+
+    private static void awaitTermination(final ExecutorService executor, final String kind) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.info("Async " + kind + " did not finish in time");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T unchecked(final SqlCall<T> call) {
+        try {
+            return call.call();
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,67 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiFunction;
+
+/**
+ * Per-row outcome of a batched write, in the order the rows were submitted.
+ */
+public final class BatchResult<T> {
+
+    public enum Status {
+        INSERTED, DUPLICATE, FAILED
+    }
+
+    private final List<Status> statuses;
+
+    private final List<T> values;
+
+    BatchResult(final List<Status> statuses, final List<T> values) {
+        this.statuses = Collections.unmodifiableList(statuses);
+        this.values = Collections.unmodifiableList(values);
+    }
+
+    public static <T> BatchResult<T> failed(final int rows) {
+        return new BatchResult<>(new ArrayList<>(Collections.nCopies(rows, Status.FAILED)),
+                new ArrayList<>(Collections.<T>nCopies(rows, null)));
+    }
+
+    public int size() {
+        return statuses.size();
+    }
+
+    public Status status(final int row) {
+        return statuses.get(row);
+    }
+
+    public Optional<T> value(final int row) {
+        return Optional.ofNullable(values.get(row));
+    }
+
+    public List<T> inserted() {
+        final List<T> inserted = new ArrayList<>();
+        for (int i = 0; i < statuses.size(); i++) {
+            if (statuses.get(i) == Status.INSERTED) {
+                inserted.add(values.get(i));
+            }
+        }
+        return inserted;
+    }
+
+    public int count(final Status status) {
+        return Collections.frequency(statuses, status);
+    }
+
+    public <R> BatchResult<R> map(final BiFunction<Integer, T, R> mapper) {
+        final List<R> mapped = new ArrayList<>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            final T value = values.get(i);
+            mapped.add(value == null ? null : mapper.apply(i, value));
+        }
+        return new BatchResult<>(new ArrayList<>(statuses), mapped);
+    }
+
+}
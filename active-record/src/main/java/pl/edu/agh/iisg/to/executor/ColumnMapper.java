@@ -0,0 +1,67 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps rows by column position. The positions of the named columns are resolved from
+ * the result set metadata on the first execution of each SQL template and reused
+ * afterwards, so rows are read without looking columns up by name.
+ */
+public final class ColumnMapper<T> {
+
+    @FunctionalInterface
+    public interface Mapping<T> {
+
+        /**
+         * Maps the current row; columns[i] is the position of the i-th named column.
+         */
+        T map(ResultSet resultSet, int[] columns) throws SQLException;
+
+    }
+
+    private final Mapping<T> mapping;
+
+    private final String[] columns;
+
+    private final ConcurrentMap<String, int[]> positions = new ConcurrentHashMap<>();
+
+    public ColumnMapper(final Mapping<T> mapping, final String... columns) {
+        this.mapping = mapping;
+        this.columns = columns.clone();
+    }
+
+    /**
+     * Returns a mapper for rows of the given result set, produced by the given template.
+     */
+    public RowMapper<T> compile(final String sqlTemplate, final ResultSet resultSet) throws SQLException {
+        int[] resolved = positions.get(sqlTemplate);
+        if (resolved == null) {
+            resolved = resolve(resultSet.getMetaData());
+            positions.putIfAbsent(sqlTemplate, resolved);
+        }
+        final int[] columnPositions = resolved;
+        return rs -> mapping.map(rs, columnPositions);
+    }
+
+    private int[] resolve(final ResultSetMetaData metaData) throws SQLException {
+        final int[] resolved = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            resolved[i] = find(metaData, columns[i]);
+        }
+        return resolved;
+    }
+
+    private static int find(final ResultSetMetaData metaData, final String column) throws SQLException {
+        for (int position = 1; position <= metaData.getColumnCount(); position++) {
+            if (column.equalsIgnoreCase(metaData.getColumnLabel(position))) {
+                return position;
+            }
+        }
+        throw new SQLException("No such column in result set: " + column);
+    }
+
+}
@@ -0,0 +1,13 @@
+package pl.edu.agh.iisg.to.executor;
+
+@FunctionalInterface
+public interface CommitListener {
+
+    /**
+     * Called once per inserted row after its transaction committed and before the writer
+     * connection is released, so listeners of successive writes run in commit order.
+     * The row holds the parameters the statement was bound with.
+     */
+    void committed(Object[] row, int id);
+
+}
@@ -0,0 +1,87 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+
+/**
+ * Lazily maps rows of an open result set. Holds its read connection until the
+ * rows are exhausted or the cursor is closed, whichever comes first.
+ */
+final class Cursor<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    private final PooledConnection connection;
+
+    // null when the statement belongs to the connection's cache
+    private final PreparedStatement statement;
+
+    private final ResultSet resultSet;
+
+    private final RowMapper<T> mapper;
+
+    private final String sqlTemplate;
+
+    private final long startNanos;
+
+    private long rows = 0;
+
+    private boolean closed = false;
+
+    Cursor(final PooledConnection connection, final PreparedStatement statement, final ResultSet resultSet, final RowMapper<T> mapper,
+           final String sqlTemplate, final long startNanos) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.mapper = mapper;
+        this.sqlTemplate = sqlTemplate;
+        this.startNanos = startNanos;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (!resultSet.next()) {
+                close();
+                return false;
+            }
+            rows++;
+            action.accept(mapper.map(resultSet));
+            return true;
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException("Cannot read next row: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        QueryMetrics.record(sqlTemplate, startNanos, rows);
+        try {
+            resultSet.close();
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            LOGGER.info("Error while closing cursor: " + e.getMessage());
+        } finally {
+            connection.close();
+        }
+    }
+
+}
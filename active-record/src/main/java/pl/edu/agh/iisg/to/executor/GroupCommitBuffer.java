@@ -0,0 +1,146 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+
+/**
+ * Write-behind buffer for a single insert template. Submitted rows are committed together
+ * in one transaction once {@code maxBatchSize} rows are waiting or {@code maxDelayMillis}
+ * has passed, trading durability latency for fewer fsyncs. Every row gets a future completed
+ * with its generated id after the group commit. Pending rows are flushed when the buffer is
+ * closed, which also happens automatically before the connection pool is closed.
+ */
+public final class GroupCommitBuffer implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    private final String sqlTemplate;
+
+    private final int maxBatchSize;
+
+    private final CommitListener listener;
+
+    private final List<Object[]> pendingRows = new ArrayList<>();
+
+    private final List<CompletableFuture<Integer>> pendingFutures = new ArrayList<>();
+
+    private final Object flushLock = new Object();
+
+    private final ScheduledExecutorService flusher;
+
+    private final Runnable closeHook = this::close;
+
+    private volatile boolean closed = false;
+
+    public GroupCommitBuffer(final String sqlTemplate, final int maxBatchSize, final long maxDelayMillis) {
+        this(sqlTemplate, maxBatchSize, maxDelayMillis, (row, id) -> { });
+    }
+
+    /**
+     * Creates a buffer whose listener is notified of every row of a group once it is committed.
+     */
+    public GroupCommitBuffer(final String sqlTemplate, final int maxBatchSize, final long maxDelayMillis, final CommitListener listener) {
+        if (maxBatchSize < 1 || maxDelayMillis < 1) {
+            throw new IllegalArgumentException("Batch size and delay must be positive");
+        }
+        this.sqlTemplate = sqlTemplate;
+        this.maxBatchSize = maxBatchSize;
+        this.listener = listener;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "group-commit-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+        ConnectionProvider.onClose(closeHook);
+    }
+
+    public CompletableFuture<Integer> submit(final Object... row) {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Group commit buffer is closed"));
+                return future;
+            }
+            pendingRows.add(row);
+            pendingFutures.add(future);
+            // scheduled under the lock so close() cannot shut the flusher down in between;
+            // once closed, its final flush commits the row instead
+            if (pendingRows.size() >= maxBatchSize) {
+                flusher.execute(this::flushQuietly);
+            }
+        }
+        return future;
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            final List<Object[]> rows;
+            final List<CompletableFuture<Integer>> futures;
+            synchronized (this) {
+                if (pendingRows.isEmpty()) {
+                    return;
+                }
+                rows = new ArrayList<>(pendingRows);
+                futures = new ArrayList<>(pendingFutures);
+                pendingRows.clear();
+                pendingFutures.clear();
+            }
+            try {
+                final BatchResult<Integer> result = QueryExecutor.insertBatch(sqlTemplate, rows, rows.size(), listener);
+                for (int i = 0; i < futures.size(); i++) {
+                    if (result.status(i) == BatchResult.Status.INSERTED) {
+                        futures.get(i).complete(result.value(i).get());
+                    } else {
+                        futures.get(i).completeExceptionally(new SQLException("Row was not inserted: " + result.status(i)));
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                futures.forEach(future -> future.completeExceptionally(e));
+            }
+        }
+    }
+
+    public synchronized int pending() {
+        return pendingRows.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        ConnectionProvider.removeCloseHook(closeHook);
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.info("Group commit failed: " + e.getMessage());
+        }
+    }
+
+}
@@ -1,65 +1,63 @@
 package pl.edu.agh.iisg.to.executor;
 
 import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.query.QueryHelper;
+import pl.edu.agh.iisg.to.query.SqlTemplate;
+import pl.edu.agh.iisg.to.schema.SchemaMigrator;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class QueryExecutor {
 
     private static final Logger LOGGER = Logger.getGlobal();
 
+    public static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+
+    public static final int DEFAULT_FETCH_SIZE = 256;
+
+    public static final String SLOW_QUERY_THRESHOLD_PROPERTY = "query.slow.threshold.millis";
+
+    private static final CommitListener NO_LISTENER = (row, id) -> { };
+
+    private static final List<Runnable> rollbackHooks = new CopyOnWriteArrayList<>();
+
     private QueryExecutor() {
         throw new UnsupportedOperationException();
     }
 
     static {
         try {
-            LOGGER.info("Creating table Student");
-            create("CREATE TABLE IF NOT EXISTS student (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "first_name VARCHAR(50) NOT NULL, " +
-                    "last_name VARCHAR(50) NOT NULL, " +
-                    "index_number int NOT NULL, " +
-                    "UNIQUE (index_number) " +
-                    ");");
-            LOGGER.info("Creating table Course");
-            create("CREATE TABLE IF NOT EXISTS course (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "name VARCHAR(50) NOT NULL, " +
-                    "UNIQUE (name) " +
-                    ");");
-            LOGGER.info("Creating table Student_Course");
-            create("CREATE TABLE IF NOT EXISTS student_course (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "student_id INT NOT NULL, " +
-                    "course_id INT NOT NULL, " +
-                    "FOREIGN KEY(student_id) references student (id), " +
-                    "FOREIGN KEY(course_id) references course (id), " +
-                    "UNIQUE (student_id, course_id)" +
-                    ");");
-            LOGGER.info("Creating table Grade");
-            create("CREATE TABLE IF NOT EXISTS grade (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "grade REAL NOT NULL, " +
-                    "student_id INT NOT NULL, " +
-                    "course_id INT NOT NULL, " +
-                    "FOREIGN KEY(student_id) references student (id), " +
-                    "FOREIGN KEY(course_id) references course (id) " +
-                    ");");
-
+            SchemaMigrator.migrate();
         } catch (SQLException e) {
-            LOGGER.info("Error during create tables: " + e.getMessage());
+            LOGGER.info("Error during schema migration: " + e.getMessage());
             throw new RuntimeException("Cannot create tables");
         }
     }
 
     public static int createAndObtainId(final String insertSql) throws SQLException {
-        try (final PreparedStatement statement = ConnectionProvider.getConnection().prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
+        try (final PooledConnection connection = ConnectionProvider.acquireWrite();
+             final PreparedStatement statement = connection.connection().prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
+            final long start = QueryMetrics.start();
             statement.execute();
+            QueryMetrics.recordRaw(insertSql, start, statement.getUpdateCount());
             try (final ResultSet resultSet = statement.getGeneratedKeys()) {
                 return readIdFromResultSet(resultSet);
             }
@@ -71,31 +69,439 @@ public final class QueryExecutor {
     }
 
     public static void create(final String insertSql) throws SQLException {
-        try (final PreparedStatement statement = ConnectionProvider.getConnection().prepareStatement(insertSql)) {
+        try (final PooledConnection connection = ConnectionProvider.acquireWrite();
+             final PreparedStatement statement = connection.connection().prepareStatement(insertSql)) {
+            final long start = QueryMetrics.start();
             statement.execute();
+            QueryMetrics.recordRaw(insertSql, start, statement.getUpdateCount());
+        }
+    }
+
+    public static <T> T query(final String sqlTemplate, final ResultSetHandler<T> handler, final Object... params) throws SQLException {
+        try (final PooledConnection connection = ConnectionProvider.acquireRead()) {
+            final PreparedStatement statement = connection.prepare(sqlTemplate);
+            QueryHelper.bind(statement, params);
+            final long start = QueryMetrics.start();
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                final T result = handler.handle(resultSet);
+                QueryMetrics.record(sqlTemplate, start, rowsOf(result));
+                return result;
+            }
+        }
+    }
+
+    public static <T> Optional<T> queryFirst(final String sqlTemplate, final ColumnMapper<T> mapper, final Object... params) throws SQLException {
+        return query(sqlTemplate, rs -> rs.next() ? Optional.of(mapper.compile(sqlTemplate, rs).map(rs)) : Optional.empty(), params);
+    }
+
+    public static <T> List<T> queryList(final String sqlTemplate, final ColumnMapper<T> mapper, final Object... params) throws SQLException {
+        return query(sqlTemplate, rs -> {
+            final RowMapper<T> row = mapper.compile(sqlTemplate, rs);
+            final List<T> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(row.map(rs));
+            }
+            return result;
+        }, params);
+    }
+
+    /**
+     * Runs a keyset query whose template ends with {@code LIMIT ?}; the limit is bound after
+     * the given parameters, one above the page size to detect a following page.
+     */
+    public static <T> Page<T> queryPage(final String sqlTemplate, final ColumnMapper<T> mapper, final int limit,
+            final Function<T, String> tokenOf, final Object... params) throws SQLException {
+        return Page.of(queryPageRows(sqlTemplate, mapper, limit, params), limit, tokenOf);
+    }
+
+    /**
+     * Reads the up to {@code limit + 1} rows of a page without building it, e.g. to merge the
+     * pages of several shards.
+     */
+    public static <T> List<T> queryPageRows(final String sqlTemplate, final ColumnMapper<T> mapper, final int limit,
+            final Object... params) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + limit);
         }
+        final Object[] bound = Arrays.copyOf(params, params.length + 1);
+        bound[params.length] = limit + 1;
+        return queryList(sqlTemplate, mapper, bound);
+    }
+
+    /**
+     * Streams the mapped rows of the query without materializing them. The stream
+     * holds a pooled read connection until it is exhausted or closed, so callers that
+     * may stop early must close it, preferably with try-with-resources.
+     */
+    public static <T> Stream<T> stream(final String sqlTemplate, final RowMapper<T> mapper, final int fetchSize, final Object... params) throws SQLException {
+        return openStream(sqlTemplate, rs -> mapper, fetchSize, params);
     }
 
-    public static ResultSet read(final String sql) throws SQLException {
-        final Statement statement = ConnectionProvider.getConnection().createStatement();
-        final ResultSet resultSet = statement.executeQuery(sql);
-        LOGGER.info(String.format("Query: %s executed.", sql));
-        return resultSet;
+    public static <T> Stream<T> stream(final String sqlTemplate, final ColumnMapper<T> mapper, final int fetchSize, final Object... params) throws SQLException {
+        return openStream(sqlTemplate, rs -> mapper.compile(sqlTemplate, rs), fetchSize, params);
+    }
+
+    private static <T> Stream<T> openStream(final String sqlTemplate, final ResultSetHandler<RowMapper<T>> mapperFactory, final int fetchSize, final Object... params) throws SQLException {
+        final PooledConnection connection = ConnectionProvider.acquireRead();
+        PreparedStatement owned = null;
+        try {
+            // on a pinned connection another query of the same SQL would re-execute a cached statement under the cursor
+            if (connection.isBorrowed()) {
+                owned = QueryHelper.prepareStatement(connection.connection(), sqlTemplate);
+            }
+            final PreparedStatement statement = owned != null ? owned : connection.prepare(sqlTemplate);
+            QueryHelper.bind(statement, params);
+            statement.setFetchSize(fetchSize);
+            final long start = QueryMetrics.start();
+            final ResultSet resultSet = statement.executeQuery();
+            final RowMapper<T> mapper;
+            try {
+                mapper = mapperFactory.handle(resultSet);
+            } catch (SQLException | RuntimeException e) {
+                resultSet.close();
+                throw e;
+            }
+            final Cursor<T> cursor = new Cursor<>(connection, owned, resultSet, mapper, sqlTemplate, start);
+            return StreamSupport.stream(cursor, false).onClose(cursor::close);
+        } catch (SQLException | RuntimeException e) {
+            if (owned != null) {
+                owned.close();
+            }
+            connection.close();
+            throw e;
+        }
+    }
+
+    public static int insert(final String sqlTemplate, final Object... params) throws SQLException {
+        return insert(sqlTemplate, NO_LISTENER, params);
+    }
+
+    /**
+     * Like {@link #insert(String, Object...)}, notifying the listener once the row is committed;
+     * nothing is reported when the statement inserted no row.
+     */
+    public static int insert(final String sqlTemplate, final CommitListener listener, final Object... params) throws SQLException {
+        try (final PooledConnection connection = ConnectionProvider.acquireWrite()) {
+            final PreparedStatement statement = connection.prepare(sqlTemplate);
+            QueryHelper.bind(statement, params);
+            final long start = QueryMetrics.start();
+            final int changed = statement.executeUpdate();
+            QueryMetrics.record(sqlTemplate, start, changed);
+            final int id;
+            try (final ResultSet resultSet = statement.getGeneratedKeys()) {
+                id = readIdFromResultSet(resultSet);
+            }
+            if (changed > 0) {
+                notifyCommitted(listener, params, id);
+            }
+            return id;
+        }
+    }
+
+    public static int update(final String sqlTemplate, final Object... params) throws SQLException {
+        try (final PooledConnection connection = ConnectionProvider.acquireWrite()) {
+            final PreparedStatement statement = connection.prepare(sqlTemplate);
+            QueryHelper.bind(statement, params);
+            final long start = QueryMetrics.start();
+            final int changed = statement.executeUpdate();
+            QueryMetrics.record(sqlTemplate, start, changed);
+            return changed;
+        }
+    }
+
+    /**
+     * Template variants of the methods above: the values are checked against the template's
+     * slots and bound to its placeholders, and its SQL is used as compiled.
+     */
+    public static <T> T query(final SqlTemplate template, final ResultSetHandler<T> handler, final Object... values) throws SQLException {
+        return query(template.sql(), handler, template.args(values));
+    }
+
+    public static <T> Optional<T> queryFirst(final SqlTemplate template, final ColumnMapper<T> mapper, final Object... values) throws SQLException {
+        return queryFirst(template.sql(), mapper, template.args(values));
+    }
+
+    public static <T> List<T> queryList(final SqlTemplate template, final ColumnMapper<T> mapper, final Object... values) throws SQLException {
+        return queryList(template.sql(), mapper, template.args(values));
+    }
+
+    public static <T> Page<T> queryPage(final SqlTemplate template, final ColumnMapper<T> mapper, final int limit,
+            final Function<T, String> tokenOf, final Object... values) throws SQLException {
+        return queryPage(template.sql(), mapper, limit, tokenOf, template.args(values));
+    }
+
+    public static <T> List<T> queryPageRows(final SqlTemplate template, final ColumnMapper<T> mapper, final int limit,
+            final Object... values) throws SQLException {
+        return queryPageRows(template.sql(), mapper, limit, template.args(values));
+    }
+
+    public static <T> Stream<T> stream(final SqlTemplate template, final ColumnMapper<T> mapper, final int fetchSize, final Object... values) throws SQLException {
+        return stream(template.sql(), mapper, fetchSize, template.args(values));
+    }
+
+    public static int insert(final SqlTemplate template, final Object... values) throws SQLException {
+        return insert(template.sql(), template.args(values));
+    }
+
+    public static int insert(final SqlTemplate template, final CommitListener listener, final Object... values) throws SQLException {
+        return insert(template.sql(), listener, template.args(values));
+    }
+
+    public static int update(final SqlTemplate template, final Object... values) throws SQLException {
+        return update(template.sql(), template.args(values));
+    }
+
+    public static BatchResult<Integer> insertBatch(final SqlTemplate template, final List<Object[]> rows, final int chunkSize) throws SQLException {
+        return insertBatch(template, rows, chunkSize, NO_LISTENER);
+    }
+
+    public static BatchResult<Integer> insertBatch(final SqlTemplate template, final List<Object[]> rows, final int chunkSize,
+            final CommitListener listener) throws SQLException {
+        final List<Object[]> bound = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            bound.add(template.args(row));
+        }
+        return insertBatch(template.sql(), bound, chunkSize, listener);
+    }
+
+    /**
+     * Executes the template once per row using JDBC batching, committing one transaction per chunk.
+     * Templates are expected to use INSERT OR IGNORE, so a row reporting no change is a duplicate key.
+     * OR IGNORE would also skip NOT NULL violations, so rows holding a null are reported as FAILED
+     * without being executed; it skips CHECK violations too, so it must not be used on tables with
+     * CHECK constraints. A chunk that fails as a whole is rolled back and its rows are reported as FAILED.
+     * The returned values are the generated ids of inserted rows. Inside a {@link UnitOfWork}
+     * every chunk is a savepoint of the unit instead.
+     */
+    public static BatchResult<Integer> insertBatch(final String sqlTemplate, final List<Object[]> rows, final int chunkSize) throws SQLException {
+        return insertBatch(sqlTemplate, rows, chunkSize, NO_LISTENER);
+    }
+
+    /**
+     * Like {@link #insertBatch(String, List, int)}, notifying the listener of the inserted rows
+     * of every chunk once that chunk is committed.
+     */
+    public static BatchResult<Integer> insertBatch(final String sqlTemplate, final List<Object[]> rows, final int chunkSize,
+            final CommitListener listener) throws SQLException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        final List<BatchResult.Status> statuses = new ArrayList<>(rows.size());
+        final List<Integer> ids = new ArrayList<>(rows.size());
+        final boolean inUnit = UnitOfWork.isActive();
+        try (final PooledConnection pooled = ConnectionProvider.acquireWrite()) {
+            final Connection connection = pooled.connection();
+            if (!inUnit) {
+                connection.setAutoCommit(false);
+            }
+            try {
+                for (int from = 0; from < rows.size(); from += chunkSize) {
+                    final List<Object[]> chunk = rows.subList(from, Math.min(rows.size(), from + chunkSize));
+                    final PreparedStatement statement = pooled.prepare(sqlTemplate);
+                    final long start = QueryMetrics.start();
+                    final UnitOfWork savepoint = inUnit ? UnitOfWork.begin() : null;
+                    try {
+                        int batched = 0;
+                        for (Object[] row : chunk) {
+                            if (!hasNull(row)) {
+                                QueryHelper.bind(statement, row);
+                                statement.addBatch();
+                                batched++;
+                            }
+                        }
+                        final int[] counts = batched > 0 ? statement.executeBatch() : new int[0];
+                        final int lastId = lastInsertId(connection);
+                        if (savepoint != null) {
+                            savepoint.commit();
+                        } else {
+                            connection.commit();
+                        }
+                        QueryMetrics.record(sqlTemplate, start, collectChunk(chunk, counts, lastId, statuses, ids));
+                        for (int row = from; row < from + chunk.size(); row++) {
+                            if (statuses.get(row) == BatchResult.Status.INSERTED) {
+                                notifyCommitted(listener, rows.get(row), ids.get(row));
+                            }
+                        }
+                    } catch (SQLException e) {
+                        QueryMetrics.record(sqlTemplate, start, 0);
+                        LOGGER.info("Batch chunk failed: " + e.getMessage());
+                        statement.clearBatch();
+                        if (savepoint != null) {
+                            savepoint.close();
+                        } else {
+                            connection.rollback();
+                            rolledBack();
+                        }
+                        for (int i = 0; i < chunk.size(); i++) {
+                            statuses.add(BatchResult.Status.FAILED);
+                            ids.add(null);
+                        }
+                    }
+                }
+            } finally {
+                if (!inUnit) {
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+        return new BatchResult<>(statuses, ids);
+    }
+
+    // ids are handed out sequentially because the chunk runs in one transaction on the single writer connection
+    private static int collectChunk(final List<Object[]> chunk, final int[] counts, final int lastId,
+            final List<BatchResult.Status> statuses, final List<Integer> ids) {
+        int inserted = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                inserted++;
+            }
+        }
+        int nextId = lastId - inserted + 1;
+        int executed = 0;
+        for (Object[] row : chunk) {
+            if (hasNull(row)) {
+                statuses.add(BatchResult.Status.FAILED);
+                ids.add(null);
+            } else if (counts[executed++] > 0) {
+                statuses.add(BatchResult.Status.INSERTED);
+                ids.add(nextId++);
+            } else {
+                statuses.add(BatchResult.Status.DUPLICATE);
+                ids.add(null);
+            }
+        }
+        return inserted;
+    }
+
+    private static boolean hasNull(final Object[] row) {
+        for (Object value : row) {
+            if (value == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the write is already committed, so a failing listener must not make it look failed to the caller;
+    // inside a unit of work the listener waits for the unit to commit
+    private static void notifyCommitted(final CommitListener listener, final Object[] row, final int id) {
+        UnitOfWork.afterCommit(() -> {
+            try {
+                listener.committed(row, id);
+            } catch (RuntimeException e) {
+                LOGGER.warning("Commit listener failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private static int lastInsertId(final Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("SELECT last_insert_rowid()")) {
+            return readIdFromResultSet(resultSet);
+        }
+    }
+
+    /**
+     * Runs the work in one transaction on the writer connection. The transaction is
+     * committed when the work returns and rolled back when it throws. Inside a
+     * {@link UnitOfWork} the work runs in a savepoint of the unit instead.
+     */
+    public static <T> T inTransaction(final TransactionWork<T> work) throws SQLException {
+        if (UnitOfWork.isActive()) {
+            return UnitOfWork.execute(() -> {
+                try (final PooledConnection pooled = ConnectionProvider.acquireWrite()) {
+                    return work.execute(pooled);
+                }
+            });
+        }
+        try (final PooledConnection pooled = ConnectionProvider.acquireWrite()) {
+            final Connection connection = pooled.connection();
+            connection.setAutoCommit(false);
+            try {
+                final T result = work.execute(pooled);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                rolledBack();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Registers an action run after every rollback, of a transaction, a batch chunk or a
+     * {@link UnitOfWork}. Readers of an in-memory database and statements inside a unit see
+     * uncommitted rows, so caches filled from them must be dropped when those rows go away.
+     */
+    public static void onRollback(final Runnable hook) {
+        rollbackHooks.add(hook);
+    }
+
+    static void rolledBack() {
+        for (Runnable hook : rollbackHooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                LOGGER.warning("Rollback hook failed: " + e.getMessage());
+            }
+        }
     }
 
     public static void delete(final String sql) throws SQLException {
         executeUpdate(sql);
     }
 
-    private static void executeUpdate(final String... sql) throws SQLException {
-        try (final Statement statement = ConnectionProvider.getConnection().createStatement()) {
-            ConnectionProvider.getConnection().setAutoCommit(false);
-            for (String s : sql) {
-                statement.executeUpdate(s);
-                LOGGER.info(String.format("Query: %s executed.", s));
+    public static void executeUpdate(final String... sql) throws SQLException {
+        inTransaction(pooled -> {
+            try (final Statement statement = pooled.connection().createStatement()) {
+                for (String s : sql) {
+                    final long start = QueryMetrics.start();
+                    QueryMetrics.recordRaw(s, start, statement.executeUpdate(s));
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine(String.format("Query: %s executed.", s));
+                    }
+                }
             }
-            ConnectionProvider.getConnection().commit();
-            ConnectionProvider.getConnection().setAutoCommit(true);
+            return null;
+        });
+    }
+
+    /**
+     * Latency, call and row statistics per normalized SQL template since start-up
+     * or the last reset, ordered by template.
+     */
+    public static Map<String, QueryStatistics> statistics() {
+        return QueryMetrics.snapshot();
+    }
+
+    public static void resetStatistics() {
+        QueryMetrics.reset();
+    }
+
+    /**
+     * Logs statements slower than the threshold as warnings; a negative value turns the
+     * slow-query log off. Defaults to the query.slow.threshold.millis system property.
+     */
+    public static void slowQueryThreshold(final long millis) {
+        QueryMetrics.slowQueryThreshold(millis);
+    }
+
+    private static long rowsOf(final Object result) {
+        if (result == null) {
+            return 0;
+        }
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof Map) {
+            return ((Map<?, ?>) result).size();
+        }
+        if (result instanceof Optional) {
+            return ((Optional<?>) result).isPresent() ? 1 : 0;
         }
+        return 1;
     }
 }
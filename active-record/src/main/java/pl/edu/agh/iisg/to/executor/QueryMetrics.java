@@ -0,0 +1,97 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Per-template latency, call and row counters of QueryExecutor. Parameterized
+ * templates are used as keys as they are; SQL with inlined literals is normalized
+ * first, so that statements differing only in values share their statistics.
+ */
+final class QueryMetrics {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static volatile long slowQueryThresholdNanos = toThresholdNanos(Long.getLong(QueryExecutor.SLOW_QUERY_THRESHOLD_PROPERTY, -1L));
+
+    private QueryMetrics() {
+        throw new UnsupportedOperationException();
+    }
+
+    static long start() {
+        return System.nanoTime();
+    }
+
+    static void record(final String template, final long startNanos, final long rows) {
+        final long elapsed = System.nanoTime() - startNanos;
+        Entry entry = entries.get(template);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(template, key -> new Entry());
+        }
+        entry.latency.record(elapsed);
+        entry.rows.add(rows);
+        final long threshold = slowQueryThresholdNanos;
+        if (threshold >= 0 && elapsed > threshold && LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.warning(String.format("Slow query (%d ms, %d rows): %s",
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), rows, template));
+        }
+    }
+
+    static void recordRaw(final String sql, final long startNanos, final long rows) {
+        record(normalize(sql), startNanos, rows);
+    }
+
+    static String normalize(final String sql) {
+        final String withoutStrings = STRING_LITERAL.matcher(sql).replaceAll("?");
+        final String withoutNumbers = NUMBER_LITERAL.matcher(withoutStrings).replaceAll("?");
+        return WHITESPACE.matcher(withoutNumbers).replaceAll(" ").trim();
+    }
+
+    static Map<String, QueryStatistics> snapshot() {
+        final Map<String, QueryStatistics> result = new TreeMap<>();
+        entries.forEach((template, entry) -> result.put(template, entry.snapshot(template)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    static void reset() {
+        entries.clear();
+    }
+
+    static void slowQueryThreshold(final long millis) {
+        slowQueryThresholdNanos = toThresholdNanos(millis);
+    }
+
+    private static long toThresholdNanos(final long millis) {
+        return millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static final class Entry {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private final LongAdder rows = new LongAdder();
+
+        private QueryStatistics snapshot(final String template) {
+            return new QueryStatistics(template, latency.count(), rows.sum(), latency.totalNanos(),
+                    latency.percentileNanos(50), latency.percentileNanos(99), latency.maxNanos());
+        }
+
+    }
+
+}
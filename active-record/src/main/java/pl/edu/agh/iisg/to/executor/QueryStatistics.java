@@ -0,0 +1,75 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point-in-time statistics of one normalized SQL template. Row counts are rows
+ * returned for queries and rows changed for updates.
+ */
+public final class QueryStatistics {
+
+    private final String template;
+
+    private final long calls;
+
+    private final long rows;
+
+    private final long totalNanos;
+
+    private final long p50Nanos;
+
+    private final long p99Nanos;
+
+    private final long maxNanos;
+
+    QueryStatistics(final String template, final long calls, final long rows, final long totalNanos,
+                    final long p50Nanos, final long p99Nanos, final long maxNanos) {
+        this.template = template;
+        this.calls = calls;
+        this.rows = rows;
+        this.totalNanos = totalNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public String template() {
+        return template;
+    }
+
+    public long calls() {
+        return calls;
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    public long averageNanos() {
+        return calls == 0 ? 0 : totalNanos / calls;
+    }
+
+    public long p50Nanos() {
+        return p50Nanos;
+    }
+
+    public long p99Nanos() {
+        return p99Nanos;
+    }
+
+    public long maxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryStatistics[calls=%d, rows=%d, p50=%dus, p99=%dus, max=%dus, sql=%s]",
+                calls, rows, TimeUnit.NANOSECONDS.toMicros(p50Nanos), TimeUnit.NANOSECONDS.toMicros(p99Nanos),
+                TimeUnit.NANOSECONDS.toMicros(maxNanos), template);
+    }
+
+}
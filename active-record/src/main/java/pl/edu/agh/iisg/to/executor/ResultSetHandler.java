@@ -0,0 +1,11 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface ResultSetHandler<T> {
+
+    T handle(ResultSet resultSet) throws SQLException;
+
+}
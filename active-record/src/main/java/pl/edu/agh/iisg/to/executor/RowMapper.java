@@ -0,0 +1,14 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface RowMapper<T> {
+
+    /**
+     * Maps the current row of the result set; must not move the cursor.
+     */
+    T map(ResultSet resultSet) throws SQLException;
+
+}
@@ -0,0 +1,176 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.ShardRouter;
+import pl.edu.agh.iisg.to.connection.ShardScope;
+
+/**
+ * Runs calls against the shard that owns their data. Courses, enrollments and grades are
+ * routed by course id, students by index number, or by id once they have one. Without
+ * sharding every call runs directly against the single database.
+ */
+public final class Shards {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    private static final AtomicInteger nextCourseShard = new AtomicInteger();
+
+    private static final AtomicInteger gatherThreads = new AtomicInteger();
+
+    private static final ExecutorService gatherers = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "shard-gather-" + gatherThreads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Shards() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static boolean isSharded() {
+        return ConnectionProvider.router().isPresent();
+    }
+
+    public static <T> T onShard(final int shard, final SqlCall<T> call) throws SQLException {
+        try (final ShardScope scope = ConnectionProvider.useShard(shard)) {
+            return call.call();
+        }
+    }
+
+    public static <T> T forCourse(final int courseId, final SqlCall<T> call) throws SQLException {
+        if (!isSharded()) {
+            return call.call();
+        }
+        try (final ShardScope scope = ConnectionProvider.routeCourse(courseId)) {
+            return call.call();
+        }
+    }
+
+    /**
+     * Runs a course insert on the next shard in round-robin order; the new id comes from
+     * that shard's block and therefore routes back to it.
+     */
+    public static <T> T forNewCourse(final SqlCall<T> call) throws SQLException {
+        if (!isSharded()) {
+            return call.call();
+        }
+        return onShard(Math.floorMod(nextCourseShard.getAndIncrement(), ConnectionProvider.shardCount()), call);
+    }
+
+    /**
+     * Runs the call on the shard owning the student with the given index number.
+     */
+    public static <T> T forStudent(final int indexNumber, final SqlCall<T> call) throws SQLException {
+        if (!isSharded()) {
+            return call.call();
+        }
+        return onShard(ConnectionProvider.router().get().routeStudent(indexNumber), call);
+    }
+
+    public static <T> T forStudentId(final int studentId, final SqlCall<T> call) throws SQLException {
+        if (!isSharded()) {
+            return call.call();
+        }
+        return onShard(studentShard(studentId), call);
+    }
+
+    public static int courseShard(final int courseId) {
+        return ConnectionProvider.router().map(router -> router.route(courseId)).orElse(0);
+    }
+
+    public static int studentShard(final int studentId) {
+        return ConnectionProvider.router().map(router -> router.routeStudentId(studentId)).orElse(0);
+    }
+
+    /**
+     * Runs a batch of student rows, split by the index number in the given column, on the
+     * shards owning them, and returns the per-row results in the order of the given rows.
+     * Each shard's part commits on its own; the rows of a part that fails as a whole are
+     * reported as FAILED without affecting the other parts.
+     */
+    public static <T> BatchResult<T> forStudentRows(final List<Object[]> rows, final int indexColumn,
+                                                    final Function<List<Object[]>, SqlCall<BatchResult<T>>> batch) throws SQLException {
+        if (!isSharded()) {
+            return batch.apply(rows).call();
+        }
+        final ShardRouter router = ConnectionProvider.router().get();
+        final Map<Integer, List<Integer>> rowsByShard = new TreeMap<>();
+        for (int row = 0; row < rows.size(); row++) {
+            rowsByShard.computeIfAbsent(router.routeStudent((Integer) rows.get(row)[indexColumn]), shard -> new ArrayList<>()).add(row);
+        }
+        final List<BatchResult.Status> statuses = new ArrayList<>(Collections.nCopies(rows.size(), BatchResult.Status.FAILED));
+        final List<T> values = new ArrayList<>(Collections.<T>nCopies(rows.size(), null));
+        for (Map.Entry<Integer, List<Integer>> shard : rowsByShard.entrySet()) {
+            final List<Integer> indexes = shard.getValue();
+            final List<Object[]> part = new ArrayList<>(indexes.size());
+            for (int row : indexes) {
+                part.add(rows.get(row));
+            }
+            final BatchResult<T> result;
+            try {
+                result = onShard(shard.getKey(), batch.apply(part));
+            } catch (SQLException e) {
+                LOGGER.warning("Batch failed on shard " + shard.getKey() + ": " + e.getMessage());
+                continue;
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                statuses.set(indexes.get(i), result.status(i));
+                values.set(indexes.get(i), result.value(i).orElse(null));
+            }
+        }
+        return new BatchResult<>(statuses, values);
+    }
+
+    /**
+     * Runs the call on every shard in parallel and returns the results in shard order. Courses
+     * are not moved between shards while it runs.
+     */
+    public static <T> List<T> scatter(final SqlCall<T> call) throws SQLException {
+        if (!isSharded()) {
+            return Collections.singletonList(call.call());
+        }
+        try (final ShardScope pinned = ConnectionProvider.pinRouting()) {
+            final int shards = ConnectionProvider.shardCount();
+            final List<Future<T>> futures = new ArrayList<>(shards);
+            for (int shard = 1; shard < shards; shard++) {
+                final int target = shard;
+                futures.add(gatherers.submit(() -> onShard(target, call)));
+            }
+            final List<T> results = new ArrayList<>(shards);
+            results.add(onShard(0, call));
+            for (Future<T> future : futures) {
+                results.add(await(future));
+            }
+            return results;
+        }
+    }
+
+    private static <T> T await(final Future<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while gathering shard results", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Shard query failed", e.getCause());
+        }
+    }
+
+}
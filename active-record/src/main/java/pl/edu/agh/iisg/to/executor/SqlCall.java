@@ -0,0 +1,10 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface SqlCall<T> {
+
+    T call() throws SQLException;
+
+}
@@ -0,0 +1,16 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.SQLException;
+
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+
+@FunctionalInterface
+public interface TransactionWork<T> {
+
+    /**
+     * Runs inside a transaction on the given writer connection, which must not be
+     * closed or have its auto-commit mode changed.
+     */
+    T execute(PooledConnection connection) throws SQLException;
+
+}
@@ -0,0 +1,185 @@
+package pl.edu.agh.iisg.to.executor;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+
+/**
+ * A transaction spanning several model operations on the current thread. The outermost unit
+ * takes the writer connection and pins it to the thread, so every statement issued until it
+ * ends, reads included, runs on that connection and sees the unit's own writes; the work is
+ * committed or rolled back once. A unit begun inside another one is a savepoint of it.
+ * <p>
+ * Other writers wait for the unit to end, and operations handed to other threads, such as
+ * the async executor or a write-behind buffer, do not join it. Caches, replicas and change
+ * events are updated through {@link #afterCommit} only once the outermost unit commits.
+ * Units are not supported on sharded databases.
+ */
+public final class UnitOfWork implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    private final UnitOfWork parent;
+
+    private final PooledConnection connection;
+
+    // null for the outermost unit
+    private final Savepoint savepoint;
+
+    private final List<Runnable> afterCommit = new ArrayList<>();
+
+    private boolean ended = false;
+
+    private UnitOfWork(final UnitOfWork parent, final PooledConnection connection, final Savepoint savepoint) {
+        this.parent = parent;
+        this.connection = connection;
+        this.savepoint = savepoint;
+    }
+
+    public static UnitOfWork begin() throws SQLException {
+        final UnitOfWork parent = current.get();
+        final UnitOfWork unit;
+        if (parent != null) {
+            unit = new UnitOfWork(parent, parent.connection, parent.connection.connection().setSavepoint());
+        } else {
+            if (Shards.isSharded()) {
+                throw new IllegalStateException("A unit of work cannot span shards");
+            }
+            final PooledConnection writer = ConnectionProvider.acquireWrite();
+            try {
+                writer.connection().setAutoCommit(false);
+            } catch (SQLException e) {
+                writer.close();
+                throw e;
+            }
+            ConnectionProvider.pin(writer);
+            unit = new UnitOfWork(null, writer, null);
+        }
+        current.set(unit);
+        return unit;
+    }
+
+    /**
+     * Runs the work in a unit of its own, committed when the work returns and rolled back
+     * when it throws.
+     */
+    public static <T> T execute(final SqlCall<T> work) throws SQLException {
+        try (final UnitOfWork unit = begin()) {
+            final T result = work.call();
+            unit.commit();
+            return result;
+        }
+    }
+
+    public static boolean isActive() {
+        return current.get() != null;
+    }
+
+    /**
+     * Runs the action once the current unit's outermost transaction has committed, before the
+     * writer connection is released; it is dropped if that unit or a savepoint around it rolls
+     * back. Without a unit the action runs immediately.
+     */
+    public static void afterCommit(final Runnable action) {
+        final UnitOfWork unit = current.get();
+        if (unit == null) {
+            action.run();
+        } else {
+            unit.afterCommit.add(action);
+        }
+    }
+
+    public void commit() throws SQLException {
+        checkCurrent();
+        if (savepoint != null) {
+            connection.connection().releaseSavepoint(savepoint);
+            parent.afterCommit.addAll(afterCommit);
+            end();
+            return;
+        }
+        // when the commit fails the unit stays open and is rolled back on close
+        connection.connection().commit();
+        try {
+            for (Runnable action : afterCommit) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warning("After-commit action failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Rolls the unit back unless it was committed. Inner units left open are rolled back and
+     * closed with it, and once the writer is released an IllegalStateException reports them.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (ended) {
+            return;
+        }
+        final UnitOfWork innermost = current.get();
+        if (!encloses(innermost)) {
+            throw new IllegalStateException("Only the innermost open unit of work can be ended");
+        }
+        for (UnitOfWork inner = innermost; inner != this; inner = inner.parent) {
+            inner.ended = true;
+        }
+        current.set(this);
+        try {
+            if (savepoint != null) {
+                connection.connection().rollback(savepoint);
+                connection.connection().releaseSavepoint(savepoint);
+            } else {
+                connection.connection().rollback();
+            }
+        } finally {
+            end();
+            QueryExecutor.rolledBack();
+        }
+        if (innermost != this) {
+            throw new IllegalStateException("A unit of work was closed while an inner unit was still open");
+        }
+    }
+
+    private boolean encloses(final UnitOfWork unit) {
+        for (UnitOfWork candidate = unit; candidate != null; candidate = candidate.parent) {
+            if (candidate == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkCurrent() {
+        if (ended || current.get() != this) {
+            throw new IllegalStateException("Only the innermost open unit of work can be ended");
+        }
+    }
+
+    private void end() throws SQLException {
+        ended = true;
+        if (parent != null) {
+            current.set(parent);
+            return;
+        }
+        current.remove();
+        ConnectionProvider.unpin();
+        try {
+            connection.connection().setAutoCommit(true);
+        } finally {
+            connection.close();
+        }
+    }
+
+}
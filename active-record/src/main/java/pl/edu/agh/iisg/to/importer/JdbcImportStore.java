@@ -0,0 +1,181 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.Shards;
+import pl.edu.agh.iisg.to.executor.UnitOfWork;
+import pl.edu.agh.iisg.to.model.Course;
+import pl.edu.agh.iisg.to.query.QueryHelper;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndex;
+import pl.edu.agh.iisg.to.replica.ReadReplica;
+import pl.edu.agh.iisg.to.stats.GradeStatistics;
+
+/**
+ * Writes import chunks through the statement cache of the writer connection.
+ */
+public final class JdbcImportStore implements ImportStore {
+
+    // lookups always bind a full batch, padding with the first key, so that each runs one cached statement
+    private static final String PLACEHOLDERS = String.join(", ", Collections.nCopies(KeyResolver.LOOKUP_BATCH_SIZE, "?"));
+
+    private static final String FIND_STUDENTS_SQL = "SELECT index_number, id FROM student WHERE index_number IN (" + PLACEHOLDERS + ")";
+
+    private static final String FIND_COURSES_SQL = "SELECT name, id FROM course WHERE name IN (" + PLACEHOLDERS + ")";
+
+    private static final String INSERT_STUDENT_SQL = "INSERT INTO student (first_name, last_name, index_number) VALUES (?, ?, ?)";
+
+    private static final String INSERT_COURSE_SQL = "INSERT INTO course (name) VALUES (?)";
+
+    private static final String ENROLL_SQL = "INSERT OR IGNORE INTO student_course (student_id, course_id) VALUES (?, ?)";
+
+    private static final String GRADE_SQL = "INSERT INTO grade (grade, student_id, course_id) VALUES (?, ?, ?)";
+
+    private static final String SAVE_CHECKPOINT_SQL = "INSERT OR REPLACE INTO import_checkpoint (name, line, updated_at) VALUES (?, ?, CURRENT_TIMESTAMP)";
+
+    // replica, index and statistics updates of the current chunk, applied only once it has committed
+    private final List<Runnable> pending = new ArrayList<>();
+
+    @Override
+    public long checkpoint(final String importName) throws SQLException {
+        checkNotSharded();
+        return QueryExecutor.query("SELECT line FROM import_checkpoint WHERE name = ?",
+                rs -> rs.next() ? rs.getLong(1) : 0L, importName);
+    }
+
+    @Override
+    public <T> T write(final ImportWork<T> work) throws SQLException {
+        checkNotSharded();
+        pending.clear();
+        return QueryExecutor.inTransaction(connection -> work.write(new JdbcImportTransaction(connection, pending)));
+    }
+
+    @Override
+    public void committed() {
+        Course.invalidateRosterCache();
+        // inside a unit of work the chunk is a savepoint, so the updates wait for the unit
+        final List<Runnable> chunk = new ArrayList<>(pending);
+        pending.clear();
+        UnitOfWork.afterCommit(() -> {
+            Course.invalidateRosterCache();
+            chunk.forEach(Runnable::run);
+        });
+    }
+
+    private static void checkNotSharded() {
+        if (Shards.isSharded()) {
+            throw new IllegalStateException("Imports cannot be routed to shards");
+        }
+    }
+
+    private static final class JdbcImportTransaction implements ImportTransaction {
+
+        private final PooledConnection connection;
+
+        private final List<Runnable> pending;
+
+        private JdbcImportTransaction(final PooledConnection connection, final List<Runnable> pending) {
+            this.connection = connection;
+            this.pending = pending;
+        }
+
+        @Override
+        public Map<Integer, Integer> findStudentIds(final Collection<Integer> indexNumbers) throws SQLException {
+            final Map<Integer, Integer> ids = new HashMap<>();
+            try (final ResultSet resultSet = lookup(FIND_STUDENTS_SQL, indexNumbers)) {
+                while (resultSet.next()) {
+                    ids.put(resultSet.getInt(1), resultSet.getInt(2));
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public Map<String, Integer> findCourseIds(final Collection<String> names) throws SQLException {
+            final Map<String, Integer> ids = new HashMap<>();
+            try (final ResultSet resultSet = lookup(FIND_COURSES_SQL, names)) {
+                while (resultSet.next()) {
+                    ids.put(resultSet.getString(1), resultSet.getInt(2));
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public int insertStudent(final String firstName, final String lastName, final int indexNumber) throws SQLException {
+            final int id = insert(INSERT_STUDENT_SQL, firstName, lastName, indexNumber);
+            pending.add(() -> ReadReplica.current().ifPresent(r -> r.addStudent(id, firstName, lastName, indexNumber)));
+            return id;
+        }
+
+        @Override
+        public int insertCourse(final String name) throws SQLException {
+            final int id = insert(INSERT_COURSE_SQL, name);
+            pending.add(() -> ReadReplica.current().ifPresent(r -> r.addCourse(id)));
+            return id;
+        }
+
+        @Override
+        public boolean enroll(final int studentId, final int courseId) throws SQLException {
+            final PreparedStatement statement = connection.prepare(ENROLL_SQL);
+            QueryHelper.bind(statement, studentId, courseId);
+            if (statement.executeUpdate() == 0) {
+                return false;
+            }
+            pending.add(() -> {
+                ReadReplica.current().ifPresent(r -> r.addEnrollment(courseId, studentId));
+                EnrollmentIndex.current().ifPresent(i -> i.add(courseId, studentId));
+            });
+            return true;
+        }
+
+        @Override
+        public void grade(final int studentId, final int courseId, final float grade) throws SQLException {
+            final PreparedStatement statement = connection.prepare(GRADE_SQL);
+            QueryHelper.bind(statement, grade, studentId, courseId);
+            statement.executeUpdate();
+            pending.add(() -> GradeStatistics.current().ifPresent(s -> s.record(courseId, grade)));
+        }
+
+        @Override
+        public void saveCheckpoint(final String importName, final long line) throws SQLException {
+            final PreparedStatement statement = connection.prepare(SAVE_CHECKPOINT_SQL);
+            QueryHelper.bind(statement, importName, line);
+            statement.executeUpdate();
+        }
+
+        private ResultSet lookup(final String sql, final Collection<?> keys) throws SQLException {
+            final Object[] params = new Object[KeyResolver.LOOKUP_BATCH_SIZE];
+            final Iterator<?> iterator = keys.iterator();
+            final Object padding = iterator.next();
+            params[0] = padding;
+            for (int i = 1; i < params.length; i++) {
+                params[i] = iterator.hasNext() ? iterator.next() : padding;
+            }
+            final PreparedStatement statement = connection.prepare(sql);
+            QueryHelper.bind(statement, params);
+            return statement.executeQuery();
+        }
+
+        private int insert(final String sql, final Object... params) throws SQLException {
+            final PreparedStatement statement = connection.prepare(sql);
+            QueryHelper.bind(statement, params);
+            statement.executeUpdate();
+            try (final ResultSet resultSet = statement.getGeneratedKeys()) {
+                return QueryHelper.readIdFromResultSet(resultSet);
+            }
+        }
+
+    }
+
+}
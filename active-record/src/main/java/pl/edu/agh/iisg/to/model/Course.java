@@ -1,13 +1,36 @@
 package pl.edu.agh.iisg.to.model;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import pl.edu.agh.iisg.to.cache.CacheStats;
+import pl.edu.agh.iisg.to.cache.EntityCache;
+import pl.edu.agh.iisg.to.cache.LruCache;
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.ShardScope;
+import pl.edu.agh.iisg.to.events.ChangeStream;
+import pl.edu.agh.iisg.to.events.EnrollmentEvent;
+import pl.edu.agh.iisg.to.executor.BatchResult;
+import pl.edu.agh.iisg.to.executor.ColumnMapper;
 import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.Shards;
+import pl.edu.agh.iisg.to.executor.UnitOfWork;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.paging.PageToken;
+import pl.edu.agh.iisg.to.query.Column;
+import pl.edu.agh.iisg.to.query.Condition;
+import pl.edu.agh.iisg.to.query.Insert;
+import pl.edu.agh.iisg.to.query.Select;
+import pl.edu.agh.iisg.to.query.SqlTemplate;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndex;
+import pl.edu.agh.iisg.to.replica.ReadReplica;
 
 public class Course {
 
@@ -15,13 +38,74 @@ public class Course {
     
     private static final Logger logger = Logger.getGlobal();
 
+    private static final String ROSTER_PAGE = "roster";
+
+    private static final String ENROLLMENT_TABLE_NAME = "student_course";
+
+    static final Column<Integer> ID = Column.of(TABLE_NAME, Columns.ID, Integer.class);
+
+    static final Column<String> NAME = Column.of(TABLE_NAME, Columns.NAME, String.class);
+
+    private static final Column<Integer> ENROLLED_STUDENT = Column.of(ENROLLMENT_TABLE_NAME, "student_id", Integer.class);
+
+    private static final Column<Integer> ENROLLED_COURSE = Column.of(ENROLLMENT_TABLE_NAME, "course_id", Integer.class);
+
+    private static final SqlTemplate INSERT = Insert.into(TABLE_NAME).columns(NAME).compile();
+
+    // sharded, the id is taken from the shard's sequence: AUTOINCREMENT alone would continue
+    // above courses moved in from another shard's block
+    private static final String INSERT_FROM_SEQUENCE_SQL = "INSERT INTO " + TABLE_NAME + " (id, name) SELECT seq + 1, ? FROM sqlite_sequence WHERE name = '" + TABLE_NAME + "'";
+
+    private static final SqlTemplate FIND_BY_ID = Select.from(TABLE_NAME).where(ID.eq()).compile();
+
+    private static final SqlTemplate FIND_BY_NAME = Select.from(TABLE_NAME).where(NAME.eq()).compile();
+
+    private static final SqlTemplate ENROLL = Insert.into(ENROLLMENT_TABLE_NAME).columns(ENROLLED_STUDENT, ENROLLED_COURSE).compile();
+
+    private static final SqlTemplate ENROLL_NEW = Insert.into(ENROLLMENT_TABLE_NAME).orIgnore().columns(ENROLLED_STUDENT, ENROLLED_COURSE).compile();
+
+    private static final SqlTemplate IS_ENROLLED = Select.from(ENROLLMENT_TABLE_NAME).columns(ENROLLED_STUDENT)
+            .where(ENROLLED_STUDENT.eq().and(ENROLLED_COURSE.eq())).compile();
+
+    private static final SqlTemplate ROSTER = roster(ENROLLED_COURSE.eq()).compile();
+
+    // sharded, students live on the shards owning their index numbers, so rosters read only ids
+    private static final SqlTemplate ROSTER_IDS = Select.from(ENROLLMENT_TABLE_NAME).columns(ENROLLED_STUDENT)
+            .where(ENROLLED_COURSE.eq()).orderBy(ENROLLED_STUDENT.asc()).compile();
+
+    private static final SqlTemplate ROSTER_IDS_AFTER = Select.from(ENROLLMENT_TABLE_NAME).columns(ENROLLED_STUDENT)
+            .where(ENROLLED_COURSE.eq().and(ENROLLED_STUDENT.gt())).orderBy(ENROLLED_STUDENT.asc()).paged().compile();
+
+    private static final ColumnMapper<Integer> STUDENT_ID_MAPPER = new ColumnMapper<>((rs, c) -> rs.getInt(c[0]), "student_id");
+
+    private static final SqlTemplate ROSTER_PAGE_AFTER = roster(ENROLLED_COURSE.eq().and(ENROLLED_STUDENT.gt()))
+            .orderBy(ENROLLED_STUDENT.asc()).paged().compile();
+
+    private static final int ROSTER_CACHE_SIZE = 1024;
+
+    private static final long ROSTER_CACHE_TTL_MILLIS = 60_000;
+
+    private static final int CACHE_SIZE = 1024;
+
+    private static final long CACHE_TTL_MILLIS = 300_000;
+
+    private static final EntityCache<String, Course> cache = new EntityCache<>(CACHE_SIZE, CACHE_TTL_MILLIS, Course::id, Course::name);
+
+    private static final LruCache<Integer, List<Student>> rosterCache = new LruCache<>(ROSTER_CACHE_SIZE, ROSTER_CACHE_TTL_MILLIS);
+
+    private static final Object SHARDED_CREATE = new Object();
+
+    // rows read before a rollback, inside a unit of work or from an in-memory database, may no longer exist
+    static {
+        QueryExecutor.onRollback(Course::clearCache);
+    }
+
+    static final ColumnMapper<Course> MAPPER = new ColumnMapper<>((rs, c) -> new Course(rs.getInt(c[0]), rs.getString(c[1])),
+            Columns.ID, Columns.NAME);
+
     private final int id;
 
     private final String name;
-    
-    private List<Student> enrolledStudents;
-    
-    private boolean isStudentsListDownloaded = false;
 
     private Course(final int id, final String name) {
         this.id = id;
@@ -29,32 +113,83 @@ public class Course {
     }
 
     public static Optional<Course> create(final String name) {
-    	String insertSql = String.format("INSERT INTO %s (name) VALUES ('%s');", TABLE_NAME, name);
-		try {
-			int id = QueryExecutor.createAndObtainId(insertSql);
-	        return Course.findById(id);
+        try {
+            int id = Shards.isSharded() ? insertSharded(name) : QueryExecutor.insert(INSERT, name);
+            Course created = CreateVerification.verify(new Course(id, name),
+                    () -> Shards.forCourse(id, () -> QueryExecutor.queryFirst(FIND_BY_ID, MAPPER, id)));
+            UnitOfWork.afterCommit(() -> {
+                cache.put(created);
+                ReadReplica.current().ifPresent(r -> r.addCourse(id));
+            });
+            return Optional.of(created);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Optional.empty();
+    }
+
+    // UNIQUE(name) only holds within a shard, so the name is looked up on every shard first;
+    // creates are serialized and courses cannot move until the insert is done
+    private static int insertSharded(final String name) throws SQLException {
+        synchronized (SHARDED_CREATE) {
+            try (ShardScope pinned = ConnectionProvider.pinRouting()) {
+                if (findRouted(name).isPresent()) {
+                    throw new SQLException("Course name already exists: " + name);
+                }
+                return Shards.forNewCourse(() -> QueryExecutor.insert(INSERT_FROM_SEQUENCE_SQL, name));
+            }
+        }
+    }
+
+    public static Optional<Course> findById(final int id) {
+    	Optional<Course> cached = cache.getById(id);
+    	if (cached.isPresent()) {
+    		return cached;
+    	}
+    	try {
+    		long stamp = cache.stamp();
+			Optional<Course> course = Shards.forCourse(id, () -> QueryExecutor.queryFirst(FIND_BY_ID, MAPPER, id));
+			course.ifPresent(c -> cache.putIfUnchanged(c, stamp));
+			return course;
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
-        return Optional.empty();
+		return Optional.empty();
     }
 
-    public static Optional<Course> findById(final int id) {
-    	String findByIdSql = String.format("SELECT * FROM %s WHERE id = %d", TABLE_NAME, id);
-        
+    public static Optional<Course> findByName(final String name) {
+    	Optional<Course> cached = cache.getByKey(name);
+    	if (cached.isPresent()) {
+    		return cached;
+    	}
     	try {
-			ResultSet rs = QueryExecutor.read(findByIdSql);
-	        return Optional.of(new Course(rs.getInt("id"), rs.getString("name")));
+    		long stamp = cache.stamp();
+			Optional<Course> course = findRouted(name);
+			course.ifPresent(c -> cache.putIfUnchanged(c, stamp));
+			return course;
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 		return Optional.empty();
     }
 
+    // a copy left behind on the source shard of a failed move is not routed to and is skipped
+    private static Optional<Course> findRouted(final String name) throws SQLException {
+        List<Optional<Course>> found = Shards.scatter(() -> QueryExecutor.queryFirst(FIND_BY_NAME, MAPPER, name));
+        for (int shard = 0; shard < found.size(); shard++) {
+            Optional<Course> course = found.get(shard);
+            if (course.isPresent() && Shards.courseShard(course.get().id()) == shard) {
+                return course;
+            }
+        }
+        return Optional.empty();
+    }
+
     public boolean enrollStudent(final Student student) {
-        String enrollStudentSql = String.format("INSERT INTO student_course (student_id, course_id) VALUES (%d, %d)", student.id(), this.id);
         try {
-            QueryExecutor.create(enrollStudentSql);
+            Shards.forCourse(this.id, () -> QueryExecutor.insert(ENROLL, this::publishEnrollment, student.id(), this.id));
+            invalidateRoster();
+            UnitOfWork.afterCommit(() -> replicateEnrollment(student.id()));
             return true;
         }
         catch (SQLException e) {
@@ -63,24 +198,171 @@ public class Course {
         return false;
     }
 
+    public BatchResult<Student> enrollStudents(final Collection<Student> students) {
+        return enrollStudents(students, QueryExecutor.DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    public BatchResult<Student> enrollStudents(final Collection<Student> students, final int chunkSize) {
+        List<Student> source = new ArrayList<>(students);
+        List<Object[]> rows = new ArrayList<>(source.size());
+        for (Student student : source) {
+            rows.add(new Object[] { student.id(), this.id });
+        }
+        try {
+            BatchResult<Student> result = Shards.forCourse(this.id, () -> QueryExecutor.insertBatch(ENROLL_NEW, rows, chunkSize, this::publishEnrollment))
+                    .map((row, id) -> source.get(row));
+            UnitOfWork.afterCommit(() -> result.inserted().forEach(s -> replicateEnrollment(s.id())));
+            return result;
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        finally {
+            invalidateRoster();
+        }
+        return BatchResult.failed(source.size());
+    }
+
+    // until the current unit commits, other threads may cache the roster again without its enrollments
+    private void invalidateRoster() {
+        rosterCache.invalidate(this.id);
+        if (UnitOfWork.isActive()) {
+            UnitOfWork.afterCommit(() -> rosterCache.invalidate(this.id));
+        }
+    }
+
+    public boolean isEnrolled(final Student student) {
+        Optional<EnrollmentIndex> index = EnrollmentIndex.current();
+        if (index.isPresent()) {
+            return index.get().isEnrolled(this.id, student.id());
+        }
+        try {
+            return Shards.forCourse(this.id, () -> QueryExecutor.query(IS_ENROLLED, rs -> rs.next(), student.id(), this.id));
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // rows are bound as (student_id, course_id)
+    private void publishEnrollment(final Object[] row, final int rowId) {
+        ChangeStream.publish(new EnrollmentEvent((Integer) row[0], this.id));
+    }
+
+    private void replicateEnrollment(final int studentId) {
+        ReadReplica.current().ifPresent(r -> r.addEnrollment(this.id, studentId));
+        EnrollmentIndex.current().ifPresent(i -> i.add(this.id, studentId));
+    }
+
     public List<Student> studentList() {
-    	String findStudentListSql = String.format("SELECT s.id, first_name, last_name, index_number FROM student_course sc JOIN student s ON sc.student_id = s.id WHERE course_id = %d", this.id);
-        List<Student> resultList = new LinkedList<>();
+        Optional<List<Student>> replicated = ReadReplica.current().flatMap(r -> r.studentList(this.id));
+        if (replicated.isPresent()) {
+            return replicated.get();
+        }
         try {
-            ResultSet rs = QueryExecutor.read(findStudentListSql);
-            while (rs.next()) {
-                resultList.add(new Student(rs.getInt("id"), rs.getString("first_name"), rs.getString("last_name"), rs.getInt("index_number")));
-            }
+            return readStudentList();
         }
         catch (SQLException e) {
             e.printStackTrace();
         }
-    	return resultList;
+    	return new ArrayList<>();
     }
     
+    /**
+     * Returns the first page of the roster ordered by student id; later pages are read with
+     * the returned token, seeking on the student_course primary key instead of skipping rows.
+     */
+    public Page<Student> studentPage(final int limit) {
+        return studentPage(limit, 0);
+    }
+
+    public Page<Student> studentPage(final int limit, final String token) {
+        return studentPage(limit, (Integer) PageToken.decode(ROSTER_PAGE, token)[0]);
+    }
+
+    private Page<Student> studentPage(final int limit, final int afterStudentId) {
+        try {
+            if (Shards.isSharded()) {
+                List<Integer> ids = Shards.forCourse(this.id, () -> QueryExecutor.queryPageRows(ROSTER_IDS_AFTER, STUDENT_ID_MAPPER, limit, this.id, afterStudentId));
+                return Page.of(Student.findAllById(ids), limit, s -> PageToken.encode(ROSTER_PAGE, s.id()));
+            }
+            return Shards.forCourse(this.id, () -> QueryExecutor.queryPage(ROSTER_PAGE_AFTER, Student.MAPPER, limit,
+                    s -> PageToken.encode(ROSTER_PAGE, s.id()), this.id, afterStudentId));
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Page.empty();
+    }
+
     public List<Student> cachedStudentsList() {
-    	//TODO implement
-		return enrolledStudents;
+        Optional<List<Student>> cached = rosterCache.get(this.id);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        try {
+            long stamp = rosterCache.stamp();
+            List<Student> roster = Collections.unmodifiableList(readStudentList());
+            rosterCache.putIfUnchanged(this.id, roster, stamp);
+            return roster;
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Collections.emptyList();
+    }
+
+    public static CacheStats rosterCacheStats() {
+        return rosterCache.stats();
+    }
+
+    public static void invalidateRosterCache() {
+        rosterCache.invalidateAll();
+    }
+
+    public static void evictFromCache(final Course course) {
+        cache.invalidate(course);
+        rosterCache.invalidate(course.id());
+    }
+
+    public static void clearCache() {
+        cache.invalidateAll();
+        rosterCache.invalidateAll();
+    }
+
+    public static CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Lazily streams the roster; the stream holds a read connection until it is
+     * exhausted or closed. Sharded, the roster is read at once.
+     */
+    public Stream<Student> students() throws SQLException {
+        return students(QueryExecutor.DEFAULT_FETCH_SIZE);
+    }
+
+    public Stream<Student> students(final int fetchSize) throws SQLException {
+        if (Shards.isSharded()) {
+            return readStudentList().stream();
+        }
+        return Shards.forCourse(this.id, () -> QueryExecutor.stream(ROSTER, Student.MAPPER, fetchSize, this.id));
+    }
+
+    private static Select roster(final Condition condition) {
+        return Select.from(ENROLLMENT_TABLE_NAME).columns(Student.ID, Student.FIRST_NAME, Student.LAST_NAME, Student.INDEX_NUMBER)
+                .join(Student.TABLE_NAME, ENROLLED_STUDENT.eq(Student.ID))
+                .where(condition);
+    }
+
+    private List<Student> readStudentList() throws SQLException {
+        if (Shards.isSharded()) {
+            return Student.findAllById(Shards.forCourse(this.id, () -> QueryExecutor.queryList(ROSTER_IDS, STUDENT_ID_MAPPER, this.id)));
+        }
+        try (Stream<Student> students = students()) {
+            return students.collect(Collectors.toList());
+        }
     }
 
     public int id() {
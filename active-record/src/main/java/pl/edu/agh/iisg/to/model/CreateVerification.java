@@ -0,0 +1,47 @@
+package pl.edu.agh.iisg.to.model;
+
+import java.sql.SQLException;
+import java.util.Optional;
+
+import pl.edu.agh.iisg.to.executor.SqlCall;
+
+/**
+ * Opt-in check of the create paths. Entities are normally built from the bound values
+ * and the generated key; when verification is enabled, each created entity is also
+ * read back and compared with the stored row. Meant for tests, where it can be turned
+ * on with the activerecord.verify.creates system property.
+ */
+public final class CreateVerification {
+
+    public static final String PROPERTY = "activerecord.verify.creates";
+
+    private static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+
+    private CreateVerification() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static <T> T verify(final T created, final SqlCall<Optional<T>> reread) throws SQLException {
+        if (!enabled) {
+            return created;
+        }
+        Optional<T> stored = reread.call();
+        if (!stored.isPresent() || !stored.get().equals(created)) {
+            throw new IllegalStateException("Created entity does not match its stored row");
+        }
+        return created;
+    }
+
+}
@@ -1,9 +1,106 @@
 package pl.edu.agh.iisg.to.model;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.executor.AsyncQueryExecutor;
+import pl.edu.agh.iisg.to.events.ChangeStream;
+import pl.edu.agh.iisg.to.events.GradeEvent;
+import pl.edu.agh.iisg.to.executor.BatchResult;
+import pl.edu.agh.iisg.to.executor.ColumnMapper;
+import pl.edu.agh.iisg.to.executor.CommitListener;
+import pl.edu.agh.iisg.to.executor.GroupCommitBuffer;
+import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.Shards;
+import pl.edu.agh.iisg.to.executor.UnitOfWork;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.paging.PageToken;
+import pl.edu.agh.iisg.to.query.Column;
+import pl.edu.agh.iisg.to.query.Insert;
+import pl.edu.agh.iisg.to.query.Select;
+import pl.edu.agh.iisg.to.query.Slot;
+import pl.edu.agh.iisg.to.query.SqlTemplate;
+import pl.edu.agh.iisg.to.stats.GradeStatistics;
+
 public class Grade {
 
+    private static final Logger LOGGER = Logger.getGlobal();
+
     public static final String TABLE_NAME = "grade";
 
+    public static final String AVERAGE_TABLE_NAME = "student_course_average";
+
+    static final Column<Integer> ID = Column.of(TABLE_NAME, Columns.ID, Integer.class);
+
+    static final Column<Float> GRADE = Column.of(TABLE_NAME, Columns.GRADE, Float.class);
+
+    static final Column<Integer> STUDENT_ID = Column.of(TABLE_NAME, Columns.STUDENT_ID, Integer.class);
+
+    static final Column<Integer> COURSE_ID = Column.of(TABLE_NAME, Columns.COURSE_ID, Integer.class);
+
+    private static final SqlTemplate INSERT = Insert.into(TABLE_NAME).columns(GRADE, STUDENT_ID, COURSE_ID).compile();
+
+    private static final SqlTemplate BY_COURSE = Select.from(TABLE_NAME).columns(ID, GRADE).where(COURSE_ID.eq()).compile();
+
+    private static final SqlTemplate FIRST_COURSE_PAGE = Select.from(TABLE_NAME).columns(ID, GRADE).where(COURSE_ID.eq())
+            .orderBy(GRADE.asc(), ID.asc()).paged().compile();
+
+    private static final SqlTemplate NEXT_COURSE_PAGE = nextCoursePage();
+
+    private static final ColumnMapper<Grade> MAPPER = new ColumnMapper<>((rs, c) -> new Grade(rs.getInt(c[0]), rs.getFloat(c[1])),
+            Columns.ID, Columns.GRADE);
+
+    private static final String COURSE_PAGE = "grades-by-course";
+
+    // rows are bound as INSERT's (grade, student_id, course_id)
+    private static final CommitListener GRADE_COMMITTED = (row, id) -> {
+        GradeStatistics.current().ifPresent(s -> s.record((Integer) row[2], (Float) row[0]));
+        ChangeStream.publish(new GradeEvent(id, (Integer) row[1], (Integer) row[2], (Float) row[0]));
+    };
+
+    private static final String INSERT_AVERAGE_TRIGGER = "grade_average_insert";
+
+    private static final String DELETE_AVERAGE_TRIGGER = "grade_average_delete";
+
+    private static final String COUNT_AVERAGE_TRIGGERS = "SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND name IN ('"
+            + INSERT_AVERAGE_TRIGGER + "', '" + DELETE_AVERAGE_TRIGGER + "')";
+
+    private static final String[] ENABLE_AVERAGES = {
+            "DELETE FROM " + AVERAGE_TABLE_NAME,
+            "INSERT INTO " + AVERAGE_TABLE_NAME + " (student_id, course_id, grade_sum, grade_count) " +
+                    "SELECT student_id, course_id, SUM(grade), COUNT(*) FROM grade GROUP BY student_id, course_id",
+            "CREATE TRIGGER IF NOT EXISTS " + INSERT_AVERAGE_TRIGGER + " AFTER INSERT ON grade BEGIN " +
+                    "INSERT OR IGNORE INTO " + AVERAGE_TABLE_NAME + " (student_id, course_id, grade_sum, grade_count) VALUES (NEW.student_id, NEW.course_id, 0, 0); " +
+                    "UPDATE " + AVERAGE_TABLE_NAME + " SET grade_sum = grade_sum + NEW.grade, grade_count = grade_count + 1 " +
+                    "WHERE student_id = NEW.student_id AND course_id = NEW.course_id; " +
+                    "END",
+            "CREATE TRIGGER IF NOT EXISTS " + DELETE_AVERAGE_TRIGGER + " AFTER DELETE ON grade BEGIN " +
+                    "UPDATE " + AVERAGE_TABLE_NAME + " SET grade_sum = grade_sum - OLD.grade, grade_count = grade_count - 1 " +
+                    "WHERE student_id = OLD.student_id AND course_id = OLD.course_id; " +
+                    "DELETE FROM " + AVERAGE_TABLE_NAME + " WHERE student_id = OLD.student_id AND course_id = OLD.course_id AND grade_count <= 0; " +
+                    "END"
+    };
+
+    // read from sqlite_master on first use after the pool is (re)initialized, so it always
+    // matches the triggers in the database; null until then
+    private static volatile Boolean materializedAverages;
+
+    private static final Runnable FORGET_MATERIALIZED_AVERAGES = () -> materializedAverages = null;
+
+    private static volatile GroupCommitBuffer writeBehind;
+
+    private static final AtomicLong writeBehindFailures = new AtomicLong();
+
     private final int id;
 
     private final float grade;
@@ -14,9 +111,218 @@ public class Grade {
     }
 
     public static boolean gradeStudent(final Student student, final Course course, final float grade) {
-    	String gradeStudentSql = String.format("INSERT INTO grade");
-    	
-    	return true;
+    	GroupCommitBuffer buffer = writeBehind;
+    	if (buffer != null && !buffer.isClosed() && !UnitOfWork.isActive()) {
+    		CompletableFuture<Integer> queued = buffer.submit(grade, student.id(), course.id());
+    		queued.whenComplete((id, e) -> {
+    			if (e != null) {
+    				writeBehindFailures.incrementAndGet();
+    				LOGGER.warning("Write-behind grade was not inserted: " + e.getMessage());
+    			}
+    		});
+    		// the buffer may have been closed since the check above
+    		return !queued.isCompletedExceptionally();
+    	}
+    	try {
+    		Shards.forCourse(course.id(), () -> QueryExecutor.insert(INSERT, GRADE_COMMITTED, grade, student.id(), course.id()));
+    		return true;
+    	}
+    	catch (SQLException e) {
+    		e.printStackTrace();
+    	}
+    	return false;
+    }
+
+    /**
+     * Like {@link #gradeStudent}, but returns as soon as the grade is queued. The future completes
+     * once the grade is committed, which in write-behind mode happens with the next group commit.
+     * Inside a {@link UnitOfWork} the grade is written in the unit before returning.
+     */
+    public static CompletableFuture<Grade> gradeStudentAsync(final Student student, final Course course, final float grade) {
+        if (UnitOfWork.isActive()) {
+            CompletableFuture<Grade> written = new CompletableFuture<>();
+            try {
+                int gradeId = QueryExecutor.insert(INSERT, GRADE_COMMITTED, grade, student.id(), course.id());
+                written.complete(new Grade(gradeId, grade));
+            } catch (SQLException e) {
+                written.completeExceptionally(e);
+            }
+            return written;
+        }
+        GroupCommitBuffer buffer = writeBehind;
+        CompletableFuture<Integer> id = buffer != null && !buffer.isClosed()
+                ? buffer.submit(grade, student.id(), course.id())
+                : AsyncQueryExecutor.write(() -> Shards.forCourse(course.id(), () -> QueryExecutor.insert(INSERT, GRADE_COMMITTED, grade, student.id(), course.id())));
+        return id.thenApply(gradeId -> new Grade(gradeId, grade));
+    }
+
+    /**
+     * Switches gradeStudent to write-behind mode: grades are buffered and committed in groups of up to
+     * maxBatchSize rows, at the latest maxDelayMillis after being queued. Grades accepted in this mode
+     * are lost if the process dies before the next group commit.
+     */
+    public static synchronized void enableWriteBehind(final int maxBatchSize, final long maxDelayMillis) {
+        if (Shards.isSharded()) {
+            throw new IllegalStateException("Write-behind grades cannot be routed to shards");
+        }
+        disableWriteBehind();
+        writeBehind = new GroupCommitBuffer(INSERT.sql(), maxBatchSize, maxDelayMillis, GRADE_COMMITTED);
+    }
+
+    public static synchronized void disableWriteBehind() {
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+    }
+
+    /**
+     * Number of grades accepted by gradeStudent in write-behind mode whose group insert failed.
+     */
+    public static long writeBehindFailures() {
+        return writeBehindFailures.get();
+    }
+
+    public static void flushWriteBehind() {
+        GroupCommitBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Rebuilds student_course_average from the grade table and installs triggers that keep it
+     * up to date on every grade insert and delete, so reports become a primary key lookup.
+     * Shards that already have the triggers are left as they are.
+     */
+    public static synchronized void enableMaterializedAverages() throws SQLException {
+        Shards.scatter(() -> QueryExecutor.inTransaction(connection -> {
+            if (averageTriggers(connection.connection()) < 2) {
+                try (final Statement statement = connection.connection().createStatement()) {
+                    for (String sql : ENABLE_AVERAGES) {
+                        statement.executeUpdate(sql);
+                    }
+                }
+            }
+            return null;
+        }));
+        rememberMaterializedAverages(true);
+    }
+
+    public static synchronized void disableMaterializedAverages() throws SQLException {
+        Shards.scatter(() -> {
+            QueryExecutor.executeUpdate(
+                    "DROP TRIGGER IF EXISTS " + INSERT_AVERAGE_TRIGGER,
+                    "DROP TRIGGER IF EXISTS " + DELETE_AVERAGE_TRIGGER);
+            return null;
+        });
+        rememberMaterializedAverages(false);
+    }
+
+    /**
+     * Whether every shard keeps student_course_average up to date, as found in the database.
+     */
+    public static boolean materializedAveragesEnabled() {
+        final Boolean enabled = materializedAverages;
+        if (enabled != null) {
+            return enabled;
+        }
+        try {
+            return detectMaterializedAverages();
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static synchronized boolean detectMaterializedAverages() throws SQLException {
+        boolean enabled = true;
+        for (int triggers : Shards.scatter(() -> QueryExecutor.query(COUNT_AVERAGE_TRIGGERS, rs -> rs.next() ? rs.getInt(1) : 0))) {
+            enabled &= triggers == 2;
+        }
+        rememberMaterializedAverages(enabled);
+        return enabled;
+    }
+
+    private static int averageTriggers(final Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet rs = statement.executeQuery(COUNT_AVERAGE_TRIGGERS)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // forgotten when the pool is closed or replaced, since the next database may differ
+    private static void rememberMaterializedAverages(final boolean enabled) {
+        materializedAverages = enabled;
+        ConnectionProvider.removeCloseHook(FORGET_MATERIALIZED_AVERAGES);
+        ConnectionProvider.onClose(FORGET_MATERIALIZED_AVERAGES);
+    }
+
+    public static BatchResult<Grade> gradeStudents(final Course course, final Map<Student, Float> grades) {
+        return gradeStudents(course, grades, QueryExecutor.DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    public static BatchResult<Grade> gradeStudents(final Course course, final Map<Student, Float> grades, final int chunkSize) {
+        List<Float> values = new ArrayList<>(grades.size());
+        List<Object[]> rows = new ArrayList<>(grades.size());
+        for (Map.Entry<Student, Float> entry : grades.entrySet()) {
+            values.add(entry.getValue());
+            rows.add(new Object[] { entry.getValue(), entry.getKey().id(), course.id() });
+        }
+        try {
+            return Shards.forCourse(course.id(), () -> QueryExecutor.insertBatch(INSERT, rows, chunkSize, GRADE_COMMITTED))
+                    .map((row, id) -> new Grade(id, values.get(row)));
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return BatchResult.failed(rows.size());
+    }
+
+    /**
+     * Lazily streams the grades given in the course; the stream holds a read connection
+     * until it is exhausted or closed.
+     */
+    public static Stream<Grade> streamByCourse(final Course course) throws SQLException {
+        return streamByCourse(course, QueryExecutor.DEFAULT_FETCH_SIZE);
+    }
+
+    public static Stream<Grade> streamByCourse(final Course course, final int fetchSize) throws SQLException {
+        return Shards.forCourse(course.id(), () -> QueryExecutor.stream(BY_COURSE, MAPPER, fetchSize, course.id()));
+    }
+
+    /**
+     * Returns the first page of the grades given in the course, ordered by grade and id;
+     * later pages are read with the returned token and seek on grade_course_idx.
+     */
+    public static Page<Grade> pageByCourse(final Course course, final int limit) {
+        return readPage(course, FIRST_COURSE_PAGE, limit, course.id());
+    }
+
+    public static Page<Grade> pageByCourse(final Course course, final int limit, final String token) {
+        Object[] after = PageToken.decode(COURSE_PAGE, token);
+        return readPage(course, NEXT_COURSE_PAGE, limit, course.id(), after[0], after[1]);
+    }
+
+    private static SqlTemplate nextCoursePage() {
+        Slot<Float> grade = GRADE.slot();
+        return Select.from(TABLE_NAME).columns(ID, GRADE)
+                .where(COURSE_ID.eq().and(GRADE.ge(grade)).and(GRADE.gt(grade).or(ID.gt())))
+                .orderBy(GRADE.asc(), ID.asc())
+                .paged()
+                .compile();
+    }
+
+    private static Page<Grade> readPage(final Course course, final SqlTemplate template, final int limit, final Object... values) {
+        try {
+            return Shards.forCourse(course.id(),
+                    () -> QueryExecutor.queryPage(template, MAPPER, limit, g -> PageToken.encode(COURSE_PAGE, g.grade, g.id), values));
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Page.empty();
     }
 
     public int id() {
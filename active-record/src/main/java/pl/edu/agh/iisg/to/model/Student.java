@@ -1,17 +1,86 @@
 package pl.edu.agh.iisg.to.model;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Function;
 
+import pl.edu.agh.iisg.to.cache.CacheStats;
+import pl.edu.agh.iisg.to.cache.EntityCache;
+import pl.edu.agh.iisg.to.executor.BatchResult;
+import pl.edu.agh.iisg.to.executor.ColumnMapper;
 import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.RowMapper;
+import pl.edu.agh.iisg.to.executor.Shards;
+import pl.edu.agh.iisg.to.executor.UnitOfWork;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.paging.PageToken;
+import pl.edu.agh.iisg.to.query.Column;
+import pl.edu.agh.iisg.to.query.Insert;
+import pl.edu.agh.iisg.to.query.Select;
+import pl.edu.agh.iisg.to.query.Slot;
+import pl.edu.agh.iisg.to.query.SqlTemplate;
+import pl.edu.agh.iisg.to.replica.ReadReplica;
 
 public class Student {
 
 	public static final String TABLE_NAME = "student";
 
+	private static final int CACHE_SIZE = 10_000;
+
+	private static final long CACHE_TTL_MILLIS = 300_000;
+
+	private static final String NAME_PAGE = "students-by-name";
+
+	static final Column<Integer> ID = Column.of(TABLE_NAME, Columns.ID, Integer.class);
+
+	static final Column<String> FIRST_NAME = Column.of(TABLE_NAME, Columns.FIRST_NAME, String.class);
+
+	static final Column<String> LAST_NAME = Column.of(TABLE_NAME, Columns.LAST_NAME, String.class);
+
+	static final Column<Integer> INDEX_NUMBER = Column.of(TABLE_NAME, Columns.INDEX_NUMBER, Integer.class);
+
+	private static final SqlTemplate INSERT = Insert.into(TABLE_NAME).columns(FIRST_NAME, LAST_NAME, INDEX_NUMBER).compile();
+
+	private static final SqlTemplate INSERT_NEW = Insert.into(TABLE_NAME).orIgnore().columns(FIRST_NAME, LAST_NAME, INDEX_NUMBER).compile();
+
+	// lookups always bind a full batch, padding with the first id, so that each runs one cached statement
+	private static final int LOOKUP_BATCH_SIZE = 64;
+
+	private static final String FIND_BY_IDS_SQL = "SELECT id, first_name, last_name, index_number FROM " + TABLE_NAME
+			+ " WHERE id IN (" + String.join(", ", Collections.nCopies(LOOKUP_BATCH_SIZE, "?")) + ")";
+
+	private static final SqlTemplate FIND_BY_ID = Select.from(TABLE_NAME).where(ID.eq()).compile();
+
+	private static final SqlTemplate FIND_BY_INDEX_NUMBER = Select.from(TABLE_NAME).where(INDEX_NUMBER.eq()).compile();
+
+	private static final SqlTemplate FIRST_NAME_PAGE = Select.from(TABLE_NAME).orderBy(LAST_NAME.asc(), FIRST_NAME.asc(), ID.asc()).paged().compile();
+
+	private static final SqlTemplate NEXT_NAME_PAGE = nextNamePage();
+
+	private static final Comparator<Student> NAME_ORDER = Comparator.comparing(Student::lastName)
+			.thenComparing(Student::firstName).thenComparingInt(Student::id);
+
+	private static final EntityCache<Integer, Student> cache = new EntityCache<>(CACHE_SIZE, CACHE_TTL_MILLIS, Student::id, Student::indexNumber);
+
+	// rows read before a rollback, inside a unit of work or from an in-memory database, may no longer exist
+	static {
+		QueryExecutor.onRollback(Student::clearCache);
+	}
+
+	static final ColumnMapper<Student> MAPPER = new ColumnMapper<>(
+			(rs, c) -> new Student(rs.getInt(c[0]), rs.getString(c[1]), rs.getString(c[2]), rs.getInt(c[3])),
+			Columns.ID, Columns.FIRST_NAME, Columns.LAST_NAME, Columns.INDEX_NUMBER);
+
+	private static final ColumnMapper<Float> AVERAGE_MAPPER = new ColumnMapper<>((rs, c) -> rs.getFloat(c[0]), "average");
+
 	private final int id;
 
 	private final String firstName;
@@ -28,10 +97,15 @@ public class Student {
 	}
 
 	public static Optional<Student> create(final String firstName, final String lastName, final int indexNumber) {
-		String insertSql = String.format("INSERT INTO %s (first_name, last_name, index_number) VALUES ('%s', '%s', %d);", TABLE_NAME, firstName, lastName, indexNumber); // TODO implement
 		try {
-			int id = QueryExecutor.createAndObtainId(insertSql);
-			return findById(id);
+			int id = Shards.forStudent(indexNumber, () -> QueryExecutor.insert(INSERT, firstName, lastName, indexNumber));
+			Student created = CreateVerification.verify(new Student(id, firstName, lastName, indexNumber),
+					() -> Shards.forStudent(indexNumber, () -> QueryExecutor.queryFirst(FIND_BY_ID, MAPPER, id)));
+			UnitOfWork.afterCommit(() -> {
+				cache.put(created);
+				ReadReplica.current().ifPresent(r -> r.addStudent(id, firstName, lastName, indexNumber));
+			});
+			return Optional.of(created);
 		}
 		catch (SQLException e) {
 			e.printStackTrace();
@@ -39,11 +113,91 @@ public class Student {
 		return Optional.empty();
 	}
 
+	public static BatchResult<Student> createAll(final Collection<Student> students) {
+		return createAll(students, QueryExecutor.DEFAULT_BATCH_CHUNK_SIZE);
+	}
+
+	/**
+	 * Inserts the given students in chunked transactions; their ids are ignored and replaced by
+	 * the generated ones. Students whose index number is already taken are reported as DUPLICATE.
+	 * Sharded, each shard inserts the students it owns.
+	 */
+	public static BatchResult<Student> createAll(final Collection<Student> students, final int chunkSize) {
+		List<Student> source = new ArrayList<>(students);
+		List<Object[]> rows = new ArrayList<>(source.size());
+		for (Student student : source) {
+			rows.add(new Object[] { student.firstName, student.lastName, student.indexNumber });
+		}
+		try {
+			return Shards.forStudentRows(rows, 2, part -> () -> QueryExecutor.insertBatch(INSERT_NEW, part, chunkSize)).map((row, id) -> {
+				Student student = source.get(row);
+				Student created = new Student(id, student.firstName, student.lastName, student.indexNumber);
+				UnitOfWork.afterCommit(() -> {
+					cache.put(created);
+					ReadReplica.current().ifPresent(r -> r.addStudent(id, student.firstName, student.lastName, student.indexNumber));
+				});
+				return created;
+			});
+		}
+		catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return BatchResult.failed(source.size());
+	}
+
+	/**
+	 * Returns the students with the given ids in the order of the ids, skipping ids with no
+	 * student; sharded, each shard is only asked for the students it holds.
+	 */
+	static List<Student> findAllById(final List<Integer> ids) throws SQLException {
+		Map<Integer, Student> found = new HashMap<>();
+		Map<Integer, List<Integer>> missingByShard = new TreeMap<>();
+		for (int id : ids) {
+			Optional<Student> cached = cache.getById(id);
+			if (cached.isPresent()) {
+				found.put(id, cached.get());
+			} else {
+				missingByShard.computeIfAbsent(Shards.studentShard(id), shard -> new ArrayList<>()).add(id);
+			}
+		}
+		long stamp = cache.stamp();
+		for (Map.Entry<Integer, List<Integer>> shard : missingByShard.entrySet()) {
+			List<Integer> missing = shard.getValue();
+			for (int from = 0; from < missing.size(); from += LOOKUP_BATCH_SIZE) {
+				Object[] batch = new Object[LOOKUP_BATCH_SIZE];
+				for (int i = 0; i < LOOKUP_BATCH_SIZE; i++) {
+					batch[i] = missing.get(from + i < missing.size() ? from + i : from);
+				}
+				for (Student student : Shards.onShard(shard.getKey(), () -> QueryExecutor.queryList(FIND_BY_IDS_SQL, MAPPER, batch))) {
+					found.put(student.id, student);
+					cache.putIfUnchanged(student, stamp);
+				}
+			}
+		}
+		List<Student> students = new ArrayList<>(ids.size());
+		for (int id : ids) {
+			Student student = found.get(id);
+			if (student != null) {
+				students.add(student);
+			}
+		}
+		return students;
+	}
+
 	public static Optional<Student> findByIndexNumber(final int indexNumber) {
-		String findByIndexNumberSql = String.format("SELECT * FROM student WHERE index_number = %d", indexNumber);
+		Optional<ReadReplica> replica = ReadReplica.current();
+		if (replica.isPresent()) {
+			return replica.get().findByIndexNumber(indexNumber);
+		}
+		Optional<Student> cached = cache.getByKey(indexNumber);
+		if (cached.isPresent()) {
+			return cached;
+		}
 		try {
-			ResultSet rs = QueryExecutor.read(findByIndexNumberSql);
-			return Optional.of(new Student(rs.getInt("id"), rs.getString("first_name"), rs.getString("last_name"), rs.getInt("index_number")));
+			long stamp = cache.stamp();
+			Optional<Student> student = Shards.forStudent(indexNumber, () -> QueryExecutor.queryFirst(FIND_BY_INDEX_NUMBER, MAPPER, indexNumber));
+			student.ifPresent(s -> cache.putIfUnchanged(s, stamp));
+			return student;
 		}
 		catch (SQLException e) {
 			e.printStackTrace();
@@ -51,22 +205,111 @@ public class Student {
 		return Optional.empty();
 	}
 
+	/**
+	 * Returns the first page of students ordered by last name, first name and id; later pages
+	 * are read with the returned token and seek on student_name_idx. Sharded, every shard
+	 * reads a page and the pages are merged.
+	 */
+	public static Page<Student> pageByName(final int limit) {
+		return readPage(FIRST_NAME_PAGE, limit);
+	}
+
+	public static Page<Student> pageByName(final int limit, final String token) {
+		Object[] after = PageToken.decode(NAME_PAGE, token);
+		return readPage(NEXT_NAME_PAGE, limit, after[0], after[1], after[2]);
+	}
+
+	// seeks past (last name, first name, id) with a leading range on last_name so student_name_idx is used
+	private static SqlTemplate nextNamePage() {
+		Slot<String> lastName = LAST_NAME.slot();
+		Slot<String> firstName = FIRST_NAME.slot();
+		Slot<Integer> id = ID.slot();
+		return Select.from(TABLE_NAME)
+				.where(LAST_NAME.ge(lastName).and(LAST_NAME.gt(lastName).or(FIRST_NAME.gt(firstName)).or(FIRST_NAME.eq(firstName).and(ID.gt(id)))))
+				.orderBy(LAST_NAME.asc(), FIRST_NAME.asc(), ID.asc())
+				.paged()
+				.compile();
+	}
+
+	private static Page<Student> readPage(final SqlTemplate template, final int limit, final Object... values) {
+		Function<Student, String> tokenOf = s -> PageToken.encode(NAME_PAGE, s.lastName, s.firstName, s.id);
+		try {
+			if (!Shards.isSharded()) {
+				return QueryExecutor.queryPage(template, MAPPER, limit, tokenOf, values);
+			}
+			List<Student> fetched = new ArrayList<>();
+			for (List<Student> part : Shards.scatter(() -> QueryExecutor.queryPageRows(template, MAPPER, limit, values))) {
+				fetched.addAll(part);
+			}
+			fetched.sort(NAME_ORDER);
+			return Page.of(fetched.subList(0, Math.min(fetched.size(), limit + 1)), limit, tokenOf);
+		}
+		catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return Page.empty();
+	}
+
 	public Map<Course, Float> createReport() {
-		// TODO additional task
+		String reportSql = Grade.materializedAveragesEnabled()
+				? "SELECT c.id AS id, c.name AS name, a.grade_sum / a.grade_count AS average FROM " + Grade.AVERAGE_TABLE_NAME + " a "
+						+ "JOIN course c ON c.id = a.course_id WHERE a.student_id = ?"
+				: "SELECT c.id AS id, c.name AS name, AVG(g.grade) AS average FROM grade g "
+						+ "JOIN course c ON c.id = g.course_id WHERE g.student_id = ? GROUP BY c.id, c.name";
+		try {
+			// each course and its grades live on one shard, so the partial reports are disjoint
+			Map<Course, Float> report = new HashMap<>();
+			for (Map<Course, Float> part : Shards.scatter(() -> QueryExecutor.query(reportSql, rs -> {
+				RowMapper<Course> course = Course.MAPPER.compile(reportSql, rs);
+				RowMapper<Float> average = AVERAGE_MAPPER.compile(reportSql, rs);
+				Map<Course, Float> partial = new HashMap<>();
+				while (rs.next()) {
+					partial.put(course.map(rs), average.map(rs));
+				}
+				return partial;
+			}, this.id))) {
+				report.putAll(part);
+			}
+			return report;
+		}
+		catch (SQLException e) {
+			e.printStackTrace();
+		}
 		return Collections.emptyMap();
 	}
 	
 	public static Optional<Student> findById(final int id) {
-		String findByIdSql = String.format("SELECT * FROM student WHERE id = %d", id);
+		Optional<ReadReplica> replica = ReadReplica.current();
+		if (replica.isPresent()) {
+			return replica.get().findById(id);
+		}
+		Optional<Student> cached = cache.getById(id);
+		if (cached.isPresent()) {
+			return cached;
+		}
 		try {
-			ResultSet rs = QueryExecutor.read(findByIdSql);
-	        return Optional.of(new Student(rs.getInt("id"), rs.getString("first_name"), rs.getString("last_name"), rs.getInt("index_number")));
+			long stamp = cache.stamp();
+			Optional<Student> student = Shards.forStudentId(id, () -> QueryExecutor.queryFirst(FIND_BY_ID, MAPPER, id));
+			student.ifPresent(s -> cache.putIfUnchanged(s, stamp));
+			return student;
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 		return Optional.empty();
 	}
 
+	public static void evictFromCache(final Student student) {
+		cache.invalidate(student);
+	}
+
+	public static void clearCache() {
+		cache.invalidateAll();
+	}
+
+	public static CacheStats cacheStats() {
+		return cache.stats();
+	}
+
 	public int id() {
 		return id;
 	}
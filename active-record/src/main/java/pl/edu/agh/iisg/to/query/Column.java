@@ -0,0 +1,100 @@
+package pl.edu.agh.iisg.to.query;
+
+/**
+ * A typed column of a table. Comparisons take a slot of the same type, or create a fresh
+ * one when called without arguments, so values never end up in the SQL text.
+ */
+public final class Column<T> {
+
+    private final String table;
+
+    private final String name;
+
+    private final Class<T> type;
+
+    private Column(final String table, final String name, final Class<T> type) {
+        this.table = table;
+        this.name = name;
+        this.type = type;
+    }
+
+    public static <T> Column<T> of(final String table, final String name, final Class<T> type) {
+        return new Column<>(table, name, type);
+    }
+
+    public String table() {
+        return table;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Class<T> type() {
+        return type;
+    }
+
+    public Slot<T> slot() {
+        return Slot.of(type);
+    }
+
+    public Condition eq() {
+        return eq(slot());
+    }
+
+    public Condition eq(final Slot<T> value) {
+        return new Condition.Comparison(this, "=", value);
+    }
+
+    public Condition eq(final Column<T> other) {
+        return new Condition.Comparison(this, "=", other);
+    }
+
+    public Condition gt() {
+        return gt(slot());
+    }
+
+    public Condition gt(final Slot<T> value) {
+        return new Condition.Comparison(this, ">", value);
+    }
+
+    public Condition ge() {
+        return ge(slot());
+    }
+
+    public Condition ge(final Slot<T> value) {
+        return new Condition.Comparison(this, ">=", value);
+    }
+
+    public Condition lt() {
+        return lt(slot());
+    }
+
+    public Condition lt(final Slot<T> value) {
+        return new Condition.Comparison(this, "<", value);
+    }
+
+    public Condition le() {
+        return le(slot());
+    }
+
+    public Condition le(final Slot<T> value) {
+        return new Condition.Comparison(this, "<=", value);
+    }
+
+    public Order asc() {
+        return new Order(this, false);
+    }
+
+    public Order desc() {
+        return new Order(this, true);
+    }
+
+    void render(final StringBuilder sql, final boolean qualified) {
+        if (qualified) {
+            sql.append(table).append('.');
+        }
+        sql.append(name);
+    }
+
+}
@@ -0,0 +1,96 @@
+package pl.edu.agh.iisg.to.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A WHERE or JOIN condition built from column comparisons; nested AND and OR groups are
+ * parenthesized when rendered.
+ */
+public abstract class Condition {
+
+    Condition() {
+    }
+
+    public Condition and(final Condition other) {
+        return Compound.of(" AND ", this, other);
+    }
+
+    public Condition or(final Condition other) {
+        return Compound.of(" OR ", this, other);
+    }
+
+    abstract void render(StringBuilder sql, boolean qualified, List<Slot<?>> placeholders, boolean nested);
+
+    static final class Comparison extends Condition {
+
+        private final Column<?> column;
+
+        private final String operator;
+
+        // a Slot or a Column
+        private final Object operand;
+
+        Comparison(final Column<?> column, final String operator, final Object operand) {
+            this.column = column;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        void render(final StringBuilder sql, final boolean qualified, final List<Slot<?>> placeholders, final boolean nested) {
+            column.render(sql, qualified);
+            sql.append(' ').append(operator).append(' ');
+            if (operand instanceof Column) {
+                ((Column<?>) operand).render(sql, qualified);
+            } else {
+                sql.append('?');
+                placeholders.add((Slot<?>) operand);
+            }
+        }
+
+    }
+
+    private static final class Compound extends Condition {
+
+        private final String operator;
+
+        private final List<Condition> parts;
+
+        private Compound(final String operator, final List<Condition> parts) {
+            this.operator = operator;
+            this.parts = Collections.unmodifiableList(parts);
+        }
+
+        // a AND b AND c is kept as one group rather than nesting (a AND b) AND c
+        static Compound of(final String operator, final Condition first, final Condition second) {
+            final List<Condition> parts = new ArrayList<>();
+            if (first instanceof Compound && ((Compound) first).operator.equals(operator)) {
+                parts.addAll(((Compound) first).parts);
+            } else {
+                parts.add(first);
+            }
+            parts.add(second);
+            return new Compound(operator, parts);
+        }
+
+        @Override
+        void render(final StringBuilder sql, final boolean qualified, final List<Slot<?>> placeholders, final boolean nested) {
+            if (nested) {
+                sql.append('(');
+            }
+            for (int i = 0; i < parts.size(); i++) {
+                if (i > 0) {
+                    sql.append(operator);
+                }
+                parts.get(i).render(sql, qualified, placeholders, true);
+            }
+            if (nested) {
+                sql.append(')');
+            }
+        }
+
+    }
+
+}
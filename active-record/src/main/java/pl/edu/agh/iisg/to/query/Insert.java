@@ -0,0 +1,62 @@
+package pl.edu.agh.iisg.to.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the shape of an INSERT with one slot per column, bound in column order.
+ */
+public final class Insert extends QueryShape {
+
+    private final String table;
+
+    private final List<Column<?>> columns = new ArrayList<>();
+
+    private boolean ignoreDuplicates;
+
+    private Insert(final String table) {
+        this.table = table;
+    }
+
+    public static Insert into(final String table) {
+        return new Insert(table);
+    }
+
+    public Insert columns(final Column<?>... columns) {
+        this.columns.addAll(Arrays.asList(columns));
+        return this;
+    }
+
+    /**
+     * Renders INSERT OR IGNORE, which skips rows violating a unique constraint, but also rows
+     * violating a NOT NULL or CHECK constraint; QueryExecutor.insertBatch rejects null values
+     * before executing such a template.
+     */
+    public Insert orIgnore() {
+        this.ignoreDuplicates = true;
+        return this;
+    }
+
+    public SqlTemplate compile() {
+        return QueryHelper.compile(this);
+    }
+
+    @Override
+    String render(final List<Slot<?>> placeholders) {
+        final StringBuilder sql = new StringBuilder(ignoreDuplicates ? "INSERT OR IGNORE INTO " : "INSERT INTO ");
+        sql.append(table).append(" (");
+        final StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            columns.get(i).render(sql, false);
+            values.append('?');
+            placeholders.add(columns.get(i).slot());
+        }
+        return sql.append(") VALUES (").append(values).append(')').toString();
+    }
+
+}
@@ -0,0 +1,21 @@
+package pl.edu.agh.iisg.to.query;
+
+public final class Order {
+
+    private final Column<?> column;
+
+    private final boolean descending;
+
+    Order(final Column<?> column, final boolean descending) {
+        this.column = column;
+        this.descending = descending;
+    }
+
+    void render(final StringBuilder sql, final boolean qualified) {
+        column.render(sql, qualified);
+        if (descending) {
+            sql.append(" DESC");
+        }
+    }
+
+}
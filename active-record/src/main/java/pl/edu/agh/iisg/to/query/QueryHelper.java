@@ -1,18 +1,44 @@
 package pl.edu.agh.iisg.to.query;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-
-import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class QueryHelper {
 
-	public static PreparedStatement prepareStatement(String query) throws SQLException {
-		return ConnectionProvider.getConnection().prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+	private static final ConcurrentMap<String, SqlTemplate> templates = new ConcurrentHashMap<>();
+
+	public static PreparedStatement prepareStatement(Connection connection, String query) throws SQLException {
+		return connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
 	}
 	
+	public static void bind(PreparedStatement statement, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			statement.setObject(i + 1, params[i]);
+		}
+	}
+
+	/**
+	 * Renders the query shape once into a parameterized template. Shapes rendering the same SQL
+	 * with the same slot layout share one template, and so one cached statement per connection.
+	 */
+	static SqlTemplate compile(final QueryShape shape) {
+		List<Slot<?>> placeholders = new ArrayList<>();
+		SqlTemplate compiled = new SqlTemplate(shape.render(placeholders), placeholders);
+		SqlTemplate existing = templates.putIfAbsent(compiled.key(), compiled);
+		return existing != null ? existing : compiled;
+	}
+
+	public static int compiledTemplates() {
+		return templates.size();
+	}
+
 	public static int readIdFromResultSet(final ResultSet resultSet) throws SQLException {
         return resultSet.next() ? resultSet.getInt(1) : -1;
     }
@@ -0,0 +1,12 @@
+package pl.edu.agh.iisg.to.query;
+
+import java.util.List;
+
+abstract class QueryShape {
+
+    /**
+     * Renders the SQL, adding the slot of every placeholder in order of appearance.
+     */
+    abstract String render(List<Slot<?>> placeholders);
+
+}
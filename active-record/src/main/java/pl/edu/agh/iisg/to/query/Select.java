@@ -0,0 +1,101 @@
+package pl.edu.agh.iisg.to.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the shape of a SELECT. Columns are qualified with their table name once the query
+ * has a join; without columns every column is selected.
+ */
+public final class Select extends QueryShape {
+
+    private final String table;
+
+    private final List<Column<?>> columns = new ArrayList<>();
+
+    private final List<String> joinedTables = new ArrayList<>();
+
+    private final List<Condition> joinConditions = new ArrayList<>();
+
+    private final List<Order> orders = new ArrayList<>();
+
+    private Condition where;
+
+    private boolean paged;
+
+    private Select(final String table) {
+        this.table = table;
+    }
+
+    public static Select from(final String table) {
+        return new Select(table);
+    }
+
+    public Select columns(final Column<?>... columns) {
+        this.columns.addAll(Arrays.asList(columns));
+        return this;
+    }
+
+    public Select join(final String table, final Condition on) {
+        joinedTables.add(table);
+        joinConditions.add(on);
+        return this;
+    }
+
+    public Select where(final Condition condition) {
+        this.where = condition;
+        return this;
+    }
+
+    public Select orderBy(final Order... orders) {
+        this.orders.addAll(Arrays.asList(orders));
+        return this;
+    }
+
+    /**
+     * Ends the query with a LIMIT placeholder that is not a slot: it is bound by
+     * {@code QueryExecutor.queryPage}.
+     */
+    public Select paged() {
+        this.paged = true;
+        return this;
+    }
+
+    public SqlTemplate compile() {
+        return QueryHelper.compile(this);
+    }
+
+    @Override
+    String render(final List<Slot<?>> placeholders) {
+        final boolean qualified = !joinedTables.isEmpty();
+        final StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns.isEmpty()) {
+            sql.append('*');
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            columns.get(i).render(sql, qualified);
+        }
+        sql.append(" FROM ").append(table);
+        for (int i = 0; i < joinedTables.size(); i++) {
+            sql.append(" JOIN ").append(joinedTables.get(i)).append(" ON ");
+            joinConditions.get(i).render(sql, qualified, placeholders, false);
+        }
+        if (where != null) {
+            sql.append(" WHERE ");
+            where.render(sql, qualified, placeholders, false);
+        }
+        for (int i = 0; i < orders.size(); i++) {
+            sql.append(i == 0 ? " ORDER BY " : ", ");
+            orders.get(i).render(sql, qualified);
+        }
+        if (paged) {
+            sql.append(" LIMIT ?");
+        }
+        return sql.toString();
+    }
+
+}
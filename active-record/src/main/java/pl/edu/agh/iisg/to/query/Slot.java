@@ -0,0 +1,23 @@
+package pl.edu.agh.iisg.to.query;
+
+/**
+ * A typed bind parameter of a query. A slot used in several places of one query takes a
+ * single value, bound to all of its placeholders.
+ */
+public final class Slot<T> {
+
+    private final Class<T> type;
+
+    private Slot(final Class<T> type) {
+        this.type = type;
+    }
+
+    public static <T> Slot<T> of(final Class<T> type) {
+        return new Slot<>(type);
+    }
+
+    public Class<T> type() {
+        return type;
+    }
+
+}
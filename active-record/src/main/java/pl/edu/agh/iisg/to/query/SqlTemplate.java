@@ -0,0 +1,75 @@
+package pl.edu.agh.iisg.to.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled query: its SQL and the layout of its slots. Values are passed once per slot,
+ * in order of the slot's first placeholder, and are type-checked and spread over the
+ * placeholders without touching the SQL.
+ */
+public final class SqlTemplate {
+
+    private final String sql;
+
+    private final Class<?>[] types;
+
+    // slot index of every placeholder, or null when each slot has exactly one placeholder
+    private final int[] positions;
+
+    SqlTemplate(final String sql, final List<Slot<?>> placeholders) {
+        final List<Slot<?>> slots = new ArrayList<>();
+        final int[] layout = new int[placeholders.size()];
+        for (int i = 0; i < layout.length; i++) {
+            int slot = slots.indexOf(placeholders.get(i));
+            if (slot < 0) {
+                slot = slots.size();
+                slots.add(placeholders.get(i));
+            }
+            layout[i] = slot;
+        }
+        this.sql = sql;
+        this.types = new Class<?>[slots.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = slots.get(i).type();
+        }
+        this.positions = slots.size() == layout.length ? null : layout;
+    }
+
+    public String sql() {
+        return sql;
+    }
+
+    public int slotCount() {
+        return types.length;
+    }
+
+    /**
+     * Returns the parameters to bind, one per placeholder, for the given slot values; null is
+     * accepted for any slot and bound as SQL NULL.
+     */
+    public Object[] args(final Object... values) {
+        if (values.length != types.length) {
+            throw new IllegalArgumentException("Expected " + types.length + " values, got " + values.length + " for: " + sql);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && !types[i].isInstance(values[i])) {
+                throw new IllegalArgumentException("Value " + i + " is not a " + types[i].getSimpleName() + " for: " + sql);
+            }
+        }
+        if (positions == null) {
+            return values;
+        }
+        final Object[] bound = new Object[positions.length];
+        for (int i = 0; i < bound.length; i++) {
+            bound[i] = values[positions[i]];
+        }
+        return bound;
+    }
+
+    String key() {
+        return sql + '|' + Arrays.toString(positions) + '|' + Arrays.toString(types);
+    }
+
+}
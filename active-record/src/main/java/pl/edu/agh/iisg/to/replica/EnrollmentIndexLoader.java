@@ -0,0 +1,41 @@
+package pl.edu.agh.iisg.to.replica;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.Shards;
+
+/**
+ * Loads the {@link EnrollmentIndex} on the writer connection and installs it before the
+ * writer is released, so no enrollment committed meanwhile is missed.
+ */
+public final class EnrollmentIndexLoader {
+
+    // one hook for all loads, so enabling again does not pile up hooks
+    private static final Runnable CLOSE_HOOK = EnrollmentIndex::disable;
+
+    private EnrollmentIndexLoader() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static synchronized EnrollmentIndex enable() throws SQLException {
+        if (Shards.isSharded()) {
+            throw new IllegalStateException("The enrollment index cannot be loaded from shards");
+        }
+        final EnrollmentIndex index = QueryExecutor.inTransaction(connection -> {
+            final EnrollmentIndex loaded = new EnrollmentIndex();
+            try (final ResultSet rs = connection.prepare("SELECT course_id, student_id FROM student_course").executeQuery()) {
+                while (rs.next()) {
+                    loaded.add(rs.getInt(1), rs.getInt(2));
+                }
+            }
+            return EnrollmentIndex.install(loaded);
+        });
+        ConnectionProvider.removeCloseHook(CLOSE_HOOK);
+        ConnectionProvider.onClose(CLOSE_HOOK);
+        return index;
+    }
+
+}
@@ -0,0 +1,314 @@
+package pl.edu.agh.iisg.to.replica;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.Shards;
+import pl.edu.agh.iisg.to.model.Student;
+
+/**
+ * Columnar in-process copy of the student, course and enrollment tables.
+ * <p>
+ * Students are held as parallel int columns with names interned in a string pool, and
+ * rosters as int arrays of student rows, so lookups by id or index number and roster
+ * reads never reach SQLite. The replica is loaded on the writer connection, which keeps
+ * writers out until it is installed; afterwards it only sees writes made through the
+ * models and the bulk importer, so tables changed with plain SQL require a {@link #reload()}.
+ */
+public final class ReadReplica {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private static volatile ReadReplica current;
+
+    // one hook for all reloads, registered while a replica is enabled
+    private static final Runnable CLOSE_HOOK = () -> current = null;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final StringPool names = new StringPool();
+
+    private final IntIntMap studentRowById;
+
+    private final IntIntMap studentRowByIndex;
+
+    private final IntIntMap courseRowById;
+
+    private int[] studentIds;
+
+    private int[] indexNumbers;
+
+    private int[] firstNames;
+
+    private int[] lastNames;
+
+    private int studentCount;
+
+    private IntList[] rosters;
+
+    // student rows of a roster, built on the first incremental add to it to reject duplicates in O(1)
+    private BitSet[] members;
+
+    private int courseCount;
+
+    private long enrollmentCount;
+
+    private ReadReplica(final int expectedStudents, final int expectedCourses) {
+        this.studentRowById = new IntIntMap(expectedStudents);
+        this.studentRowByIndex = new IntIntMap(expectedStudents);
+        this.courseRowById = new IntIntMap(expectedCourses);
+        final int capacity = Math.max(expectedStudents, 16);
+        this.studentIds = new int[capacity];
+        this.indexNumbers = new int[capacity];
+        this.firstNames = new int[capacity];
+        this.lastNames = new int[capacity];
+        this.rosters = new IntList[Math.max(expectedCourses, 16)];
+        this.members = new BitSet[rosters.length];
+    }
+
+    /**
+     * Loads the replica and routes model reads through it until {@link #disable()} is called
+     * or the connection pool is closed.
+     */
+    public static synchronized ReadReplica enable() throws SQLException {
+        if (Shards.isSharded()) {
+            throw new IllegalStateException("The read replica cannot be loaded from shards");
+        }
+        final ReadReplica replica = QueryExecutor.inTransaction(connection -> {
+            final ReadReplica loaded = load(connection);
+            current = loaded;
+            return loaded;
+        });
+        ConnectionProvider.removeCloseHook(CLOSE_HOOK);
+        ConnectionProvider.onClose(CLOSE_HOOK);
+        logger.info("Read replica loaded: " + replica.studentCount() + " students, " + replica.courseCount() + " courses, "
+                + replica.enrollmentCount() + " enrollments");
+        return replica;
+    }
+
+    public static synchronized void disable() {
+        current = null;
+        ConnectionProvider.removeCloseHook(CLOSE_HOOK);
+    }
+
+    public static synchronized ReadReplica reload() throws SQLException {
+        disable();
+        return enable();
+    }
+
+    public static Optional<ReadReplica> current() {
+        return Optional.ofNullable(current);
+    }
+
+    public Optional<Student> findById(final int id) {
+        lock.readLock().lock();
+        try {
+            return student(studentRowById.get(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Optional<Student> findByIndexNumber(final int indexNumber) {
+        lock.readLock().lock();
+        try {
+            return student(studentRowByIndex.get(indexNumber));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the roster of the given course, or empty if the course is not known to the replica.
+     */
+    public Optional<List<Student>> studentList(final int courseId) {
+        lock.readLock().lock();
+        try {
+            final int courseRow = courseRowById.get(courseId);
+            if (courseRow == IntIntMap.MISSING) {
+                return Optional.empty();
+            }
+            final IntList roster = rosters[courseRow];
+            final List<Student> students = new ArrayList<>(roster.size());
+            for (int i = 0; i < roster.size(); i++) {
+                students.add(materialize(roster.get(i)));
+            }
+            return Optional.of(students);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void addStudent(final int id, final String firstName, final String lastName, final int indexNumber) {
+        lock.writeLock().lock();
+        try {
+            appendStudent(id, firstName, lastName, indexNumber);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addCourse(final int id) {
+        lock.writeLock().lock();
+        try {
+            appendCourse(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addEnrollment(final int courseId, final int studentId) {
+        lock.writeLock().lock();
+        try {
+            final int courseRow = courseRowById.get(courseId);
+            final int studentRow = studentRowById.get(studentId);
+            if (courseRow != IntIntMap.MISSING && studentRow != IntIntMap.MISSING && !members(courseRow).get(studentRow)) {
+                members[courseRow].set(studentRow);
+                appendEnrollment(courseRow, studentRow);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int studentCount() {
+        lock.readLock().lock();
+        try {
+            return studentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int courseCount() {
+        lock.readLock().lock();
+        try {
+            return courseCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long enrollmentCount() {
+        lock.readLock().lock();
+        try {
+            return enrollmentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int internedNames() {
+        lock.readLock().lock();
+        try {
+            return names.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static ReadReplica load(final PooledConnection connection) throws SQLException {
+        final ReadReplica replica = new ReadReplica(count(connection, "SELECT COUNT(*) FROM student"),
+                count(connection, "SELECT COUNT(*) FROM course"));
+        try (final ResultSet rs = connection.prepare("SELECT id, first_name, last_name, index_number FROM student").executeQuery()) {
+            while (rs.next()) {
+                replica.appendStudent(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4));
+            }
+        }
+        try (final ResultSet rs = connection.prepare("SELECT id FROM course").executeQuery()) {
+            while (rs.next()) {
+                replica.appendCourse(rs.getInt(1));
+            }
+        }
+        // the primary key of student_course rules out duplicates, so they are not checked for
+        try (final ResultSet rs = connection.prepare("SELECT course_id, student_id FROM student_course").executeQuery()) {
+            while (rs.next()) {
+                final int courseRow = replica.courseRowById.get(rs.getInt(1));
+                final int studentRow = replica.studentRowById.get(rs.getInt(2));
+                if (courseRow != IntIntMap.MISSING && studentRow != IntIntMap.MISSING) {
+                    replica.appendEnrollment(courseRow, studentRow);
+                }
+            }
+        }
+        return replica;
+    }
+
+    private static int count(final PooledConnection connection, final String sql) throws SQLException {
+        final PreparedStatement statement = connection.prepare(sql);
+        try (final ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // appends are idempotent: a write that committed before the load may still be reported afterwards
+    private void appendStudent(final int id, final String firstName, final String lastName, final int indexNumber) {
+        if (studentRowById.get(id) != IntIntMap.MISSING) {
+            return;
+        }
+        if (studentCount == studentIds.length) {
+            final int capacity = studentCount << 1;
+            studentIds = Arrays.copyOf(studentIds, capacity);
+            indexNumbers = Arrays.copyOf(indexNumbers, capacity);
+            firstNames = Arrays.copyOf(firstNames, capacity);
+            lastNames = Arrays.copyOf(lastNames, capacity);
+        }
+        final int row = studentCount++;
+        studentIds[row] = id;
+        indexNumbers[row] = indexNumber;
+        firstNames[row] = names.intern(firstName);
+        lastNames[row] = names.intern(lastName);
+        studentRowById.put(id, row);
+        studentRowByIndex.put(indexNumber, row);
+    }
+
+    private void appendCourse(final int id) {
+        if (courseRowById.get(id) != IntIntMap.MISSING) {
+            return;
+        }
+        if (courseCount == rosters.length) {
+            rosters = Arrays.copyOf(rosters, courseCount << 1);
+            members = Arrays.copyOf(members, rosters.length);
+        }
+        final int row = courseCount++;
+        rosters[row] = new IntList(8);
+        courseRowById.put(id, row);
+    }
+
+    private void appendEnrollment(final int courseRow, final int studentRow) {
+        rosters[courseRow].add(studentRow);
+        enrollmentCount++;
+    }
+
+    private BitSet members(final int courseRow) {
+        if (members[courseRow] == null) {
+            final IntList roster = rosters[courseRow];
+            final BitSet rows = new BitSet();
+            for (int i = 0; i < roster.size(); i++) {
+                rows.set(roster.get(i));
+            }
+            members[courseRow] = rows;
+        }
+        return members[courseRow];
+    }
+
+    private Optional<Student> student(final int row) {
+        return row == IntIntMap.MISSING ? Optional.empty() : Optional.of(materialize(row));
+    }
+
+    private Student materialize(final int row) {
+        return new Student(studentIds[row], names.get(firstNames[row]), names.get(lastNames[row]), indexNumbers[row]);
+    }
+
+}
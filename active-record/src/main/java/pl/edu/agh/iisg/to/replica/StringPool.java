@@ -0,0 +1,36 @@
+package pl.edu.agh.iisg.to.replica;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores each distinct string once and refers to it by a dense int code.
+ */
+final class StringPool {
+
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    private final List<String> strings = new ArrayList<>();
+
+    int intern(final String value) {
+        final Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        final int created = strings.size();
+        strings.add(value);
+        codes.put(value, created);
+        return created;
+    }
+
+    String get(final int code) {
+        return strings.get(code);
+    }
+
+    int size() {
+        return strings.size();
+    }
+
+}
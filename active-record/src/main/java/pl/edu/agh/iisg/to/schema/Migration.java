@@ -0,0 +1,33 @@
+package pl.edu.agh.iisg.to.schema;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class Migration {
+
+    private final int version;
+
+    private final String description;
+
+    private final List<String> statements;
+
+    public Migration(final int version, final String description, final String... statements) {
+        this.version = version;
+        this.description = description;
+        this.statements = Collections.unmodifiableList(Arrays.asList(statements));
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public String description() {
+        return description;
+    }
+
+    public List<String> statements() {
+        return statements;
+    }
+
+}
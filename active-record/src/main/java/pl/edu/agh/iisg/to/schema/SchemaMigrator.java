@@ -0,0 +1,185 @@
+package pl.edu.agh.iisg.to.schema;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.PooledConnection;
+import pl.edu.agh.iisg.to.connection.ShardScope;
+
+/**
+ * Brings the database schema up to the latest version. Applied versions are recorded in
+ * schema_version; each migration runs in its own transaction together with its record,
+ * and a database that is already current costs a single query.
+ */
+public final class SchemaMigrator {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    public static final String VERSION_TABLE_NAME = "schema_version";
+
+    private static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            new Migration(1, "Create student, course, student_course and grade tables",
+                    "CREATE TABLE IF NOT EXISTS student (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "first_name VARCHAR(50) NOT NULL, " +
+                            "last_name VARCHAR(50) NOT NULL, " +
+                            "index_number int NOT NULL, " +
+                            "UNIQUE (index_number) " +
+                            ");",
+                    "CREATE TABLE IF NOT EXISTS course (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "name VARCHAR(50) NOT NULL, " +
+                            "UNIQUE (name) " +
+                            ");",
+                    "CREATE TABLE IF NOT EXISTS student_course (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "student_id INT NOT NULL, " +
+                            "course_id INT NOT NULL, " +
+                            "FOREIGN KEY(student_id) references student (id), " +
+                            "FOREIGN KEY(course_id) references course (id), " +
+                            "UNIQUE (student_id, course_id)" +
+                            ");",
+                    "CREATE TABLE IF NOT EXISTS grade (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "grade REAL NOT NULL, " +
+                            "student_id INT NOT NULL, " +
+                            "course_id INT NOT NULL, " +
+                            "FOREIGN KEY(student_id) references student (id), " +
+                            "FOREIGN KEY(course_id) references course (id) " +
+                            ");"),
+            new Migration(2, "Add covering indexes on grade",
+                    "CREATE INDEX IF NOT EXISTS grade_student_course_idx ON grade (student_id, course_id, grade)",
+                    "CREATE INDEX IF NOT EXISTS grade_course_idx ON grade (course_id, grade)"),
+            new Migration(3, "Cluster student_course by course in a WITHOUT ROWID table",
+                    "CREATE TABLE student_course_clustered (" +
+                            "student_id INT NOT NULL, " +
+                            "course_id INT NOT NULL, " +
+                            "PRIMARY KEY (course_id, student_id), " +
+                            "FOREIGN KEY(student_id) references student (id), " +
+                            "FOREIGN KEY(course_id) references course (id)" +
+                            ") WITHOUT ROWID;",
+                    "INSERT OR IGNORE INTO student_course_clustered (student_id, course_id) SELECT student_id, course_id FROM student_course",
+                    "DROP TABLE student_course",
+                    "ALTER TABLE student_course_clustered RENAME TO student_course",
+                    "CREATE INDEX student_course_student_idx ON student_course (student_id, course_id)"),
+            new Migration(4, "Add import_checkpoint table for resumable bulk imports",
+                    "CREATE TABLE IF NOT EXISTS import_checkpoint (" +
+                            "name TEXT PRIMARY KEY, " +
+                            "line INTEGER NOT NULL, " +
+                            "updated_at TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP" +
+                            ");"),
+            new Migration(5, "Index students by name for keyset pagination",
+                    "CREATE INDEX IF NOT EXISTS student_name_idx ON student (last_name, first_name)"),
+            new Migration(6, "Add student_course_average table for materialized report averages",
+                    "CREATE TABLE IF NOT EXISTS student_course_average (" +
+                            "student_id INT NOT NULL, " +
+                            "course_id INT NOT NULL, " +
+                            "grade_sum REAL NOT NULL, " +
+                            "grade_count INT NOT NULL, " +
+                            "PRIMARY KEY (student_id, course_id)" +
+                            ");")
+    ));
+
+    private SchemaMigrator() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version();
+    }
+
+    /**
+     * Brings every shard up to the latest version; when sharded, also makes each shard allocate
+     * course and student ids from its own block.
+     */
+    public static void migrate() throws SQLException {
+        for (int shard = 0; shard < ConnectionProvider.shardCount(); shard++) {
+            try (final ShardScope scope = ConnectionProvider.useShard(shard)) {
+                migrateCurrent();
+                if (ConnectionProvider.router().isPresent()) {
+                    seedIds("course", ConnectionProvider.router().get().blockStart(shard));
+                    seedIds("student", ConnectionProvider.router().get().blockStart(shard));
+                }
+            }
+        }
+    }
+
+    private static void seedIds(final String table, final int firstId) throws SQLException {
+        try (final PooledConnection pooled = ConnectionProvider.acquireWrite();
+             final Statement statement = pooled.connection().createStatement();
+             final PreparedStatement seed = pooled.connection().prepareStatement(
+                     "UPDATE sqlite_sequence SET seq = ? WHERE name = '" + table + "' AND seq < ?")) {
+            statement.executeUpdate("INSERT INTO sqlite_sequence (name, seq) "
+                    + "SELECT '" + table + "', 0 WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = '" + table + "')");
+            seed.setInt(1, firstId - 1);
+            seed.setInt(2, firstId - 1);
+            seed.executeUpdate();
+        }
+    }
+
+    private static void migrateCurrent() throws SQLException {
+        try (final PooledConnection pooled = ConnectionProvider.acquireWrite()) {
+            final Connection connection = pooled.connection();
+            int current = currentVersion(connection);
+            if (current >= latestVersion()) {
+                LOGGER.info(String.format("Schema is up to date (version %d)", current));
+                return;
+            }
+            if (current == 0) {
+                try (final Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE_NAME + " (" +
+                            "version INTEGER PRIMARY KEY, " +
+                            "description TEXT NOT NULL, " +
+                            "applied_at TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP" +
+                            ");");
+                }
+            }
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version() > current) {
+                    apply(connection, migration);
+                    current = migration.version();
+                }
+            }
+        }
+    }
+
+    private static int currentVersion(final Connection connection) {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("SELECT MAX(version) FROM " + VERSION_TABLE_NAME)) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        } catch (SQLException e) {
+            // no version table yet
+            return 0;
+        }
+    }
+
+    private static void apply(final Connection connection, final Migration migration) throws SQLException {
+        LOGGER.info(String.format("Applying migration %d: %s", migration.version(), migration.description()));
+        connection.setAutoCommit(false);
+        try (final Statement statement = connection.createStatement();
+             final PreparedStatement record = connection.prepareStatement(
+                     "INSERT INTO " + VERSION_TABLE_NAME + " (version, description) VALUES (?, ?)")) {
+            for (String sql : migration.statements()) {
+                statement.executeUpdate(sql);
+            }
+            record.setInt(1, migration.version());
+            record.setString(2, migration.description());
+            record.executeUpdate();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package pl.edu.agh.iisg.to.stats;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.ShardScope;
+import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.Shards;
+
+/**
+ * Loads the {@link GradeStatistics} from every shard and installs them before any shard's
+ * writer is released, so no grade committed meanwhile is missed.
+ */
+public final class GradeStatisticsLoader {
+
+    // one hook for all loads, so enabling again does not pile up hooks
+    private static final Runnable CLOSE_HOOK = GradeStatistics::disable;
+
+    private GradeStatisticsLoader() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static synchronized GradeStatistics enable() throws SQLException {
+        final GradeStatistics statistics = new GradeStatistics();
+        try (final ShardScope pinned = ConnectionProvider.pinRouting()) {
+            load(statistics, 0);
+        }
+        ConnectionProvider.removeCloseHook(CLOSE_HOOK);
+        ConnectionProvider.onClose(CLOSE_HOOK);
+        return statistics;
+    }
+
+    // keeps the writer of every shard loaded so far until all are loaded, so no grade commits
+    // between being read here and the statistics being installed
+    private static void load(final GradeStatistics statistics, final int shard) throws SQLException {
+        if (shard == ConnectionProvider.shardCount()) {
+            GradeStatistics.install(statistics);
+            return;
+        }
+        Shards.onShard(shard, () -> QueryExecutor.inTransaction(connection -> {
+            try (final ResultSet rs = connection.prepare("SELECT course_id, grade FROM grade").executeQuery()) {
+                while (rs.next()) {
+                    statistics.record(rs.getInt(1), rs.getFloat(2));
+                }
+            }
+            load(statistics, shard + 1);
+            return null;
+        }));
+    }
+
+}
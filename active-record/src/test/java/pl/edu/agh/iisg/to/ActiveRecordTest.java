@@ -1,9 +1,25 @@
 package pl.edu.agh.iisg.to;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -11,17 +27,52 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import pl.edu.agh.iisg.to.cache.EntityCache;
 import pl.edu.agh.iisg.to.connection.ConnectionProvider;
+import pl.edu.agh.iisg.to.connection.PoolMetrics;
+import pl.edu.agh.iisg.to.connection.ShardRebalancer;
+import pl.edu.agh.iisg.to.connection.ShardScope;
+import pl.edu.agh.iisg.to.connection.SnapshotMetrics;
+import pl.edu.agh.iisg.to.events.ChangeEvent;
+import pl.edu.agh.iisg.to.events.ChangeStream;
+import pl.edu.agh.iisg.to.events.EnrollmentEvent;
+import pl.edu.agh.iisg.to.events.GradeEvent;
+import pl.edu.agh.iisg.to.events.Subscription;
+import pl.edu.agh.iisg.to.executor.AsyncQueryExecutor;
+import pl.edu.agh.iisg.to.executor.BatchResult;
+import pl.edu.agh.iisg.to.executor.ColumnMapper;
 import pl.edu.agh.iisg.to.executor.QueryExecutor;
+import pl.edu.agh.iisg.to.executor.QueryStatistics;
+import pl.edu.agh.iisg.to.executor.UnitOfWork;
+import pl.edu.agh.iisg.to.importer.BulkImporter;
+import pl.edu.agh.iisg.to.importer.ImportReport;
+import pl.edu.agh.iisg.to.importer.JdbcImportStore;
 import pl.edu.agh.iisg.to.model.Course;
+import pl.edu.agh.iisg.to.model.CreateVerification;
 import pl.edu.agh.iisg.to.model.Grade;
 import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.replica.CoEnrollment;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndex;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndexLoader;
+import pl.edu.agh.iisg.to.replica.ReadReplica;
+import pl.edu.agh.iisg.to.query.Column;
+import pl.edu.agh.iisg.to.query.Insert;
+import pl.edu.agh.iisg.to.query.Select;
+import pl.edu.agh.iisg.to.query.Slot;
+import pl.edu.agh.iisg.to.query.SqlTemplate;
+import pl.edu.agh.iisg.to.schema.SchemaMigrator;
+import pl.edu.agh.iisg.to.stats.GradeStatistics;
+import pl.edu.agh.iisg.to.stats.GradeStatisticsLoader;
+import pl.edu.agh.iisg.to.stats.GradeSummary;
+import pl.edu.agh.iisg.to.stats.QuantileSketch;
 
 public class ActiveRecordTest {
 
     @BeforeClass
     public static void init() {
         ConnectionProvider.init("jdbc:sqlite:active_record_test.db");
+        CreateVerification.enable();
     }
 
     @Before
@@ -30,6 +81,8 @@ public class ActiveRecordTest {
         QueryExecutor.delete("DELETE FROM STUDENT");
         QueryExecutor.delete("DELETE FROM COURSE");
         QueryExecutor.delete("DELETE FROM GRADE");
+        Student.clearCache();
+        Course.clearCache();
     }
 
     @AfterClass
@@ -66,6 +119,31 @@ public class ActiveRecordTest {
         Assert.assertEquals(first.get(), second.get());
     }
 
+    @Test
+    public void studentIdentityCacheTest() {
+        Optional<Student> first = Student.create("Kasia", "Kowalska", 400124);
+        checkStudent(first);
+        Student byIndex = Student.findByIndexNumber(400124).get();
+        Assert.assertSame(byIndex, Student.findByIndexNumber(400124).get());
+        Assert.assertSame(byIndex, Student.findById(first.get().id()).get());
+
+        Student.evictFromCache(byIndex);
+        long misses = Student.cacheStats().misses();
+        Assert.assertEquals(byIndex, Student.findByIndexNumber(400124).get());
+        Assert.assertEquals(misses + 1, Student.cacheStats().misses());
+
+        EntityCache<Integer, Student> cache = new EntityCache<>(2, 60_000, Student::id, Student::indexNumber);
+        Student kasia = new Student(1, "Kasia", "Kowalska", 11);
+        cache.put(kasia);
+        cache.put(new Student(2, "Jan", "Nowak", 12));
+        Assert.assertSame(kasia, cache.getByKey(11).get());
+        cache.put(new Student(3, "Adam", "Kowalski", 13));
+        Assert.assertSame(kasia, cache.getById(1).get());
+        Assert.assertFalse(cache.getByKey(12).isPresent());
+        Assert.assertFalse(cache.getById(2).isPresent());
+        Assert.assertEquals(2, cache.stats().size());
+    }
+
     @Test
     public void createCourseTest() {
         Optional<Course> first = Course.create("TO");
@@ -83,6 +161,7 @@ public class ActiveRecordTest {
         checkCourse(first);
         Optional<Course> second = Course.findById(first.get().id());
         Assert.assertEquals(first.get(), second.get());
+        Assert.assertSame(second.get(), Course.findByName("TK").get());
     }
 
     @Test
@@ -111,6 +190,24 @@ public class ActiveRecordTest {
         Assert.assertTrue(students.contains(second.get()));
     }
 
+    @Test
+    public void courseStudentStreamTest() throws SQLException {
+        Optional<Course> course = Course.create("Streams");
+        checkCourse(course);
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            students.add(new Student(0, "Jan", "Nowak", 810000 + i));
+        }
+        course.get().enrollStudents(Student.createAll(students).inserted());
+        try (Stream<Student> roster = course.get().students(4)) {
+            Assert.assertEquals(20, roster.count());
+        }
+        try (Stream<Student> roster = course.get().students(4)) {
+            Assert.assertEquals(3, roster.limit(3).count());
+        }
+        Assert.assertEquals(0, ConnectionProvider.metrics().activeReaders());
+    }
+
     @Test
     public void cachedCourseStudentListTest() {
         Optional<Student> first = Student.create("Adam", "Paciaciak", 800125);
@@ -131,6 +228,25 @@ public class ActiveRecordTest {
         Assert.assertTrue(students2.contains(first.get()));
         Assert.assertTrue(students2.contains(second.get()));
     }
+
+    @Test
+    public void cachedStudentsListInvalidationTest() {
+        Optional<Student> first = Student.create("Adam", "Paciaciak", 800127);
+        checkStudent(first);
+        Optional<Student> second = Student.create("Jan", "Paciaciak", 800128);
+        checkStudent(second);
+        Optional<Course> third = Course.create("WDI 2");
+        checkCourse(third);
+        Assert.assertTrue(third.get().enrollStudent(first.get()));
+        Assert.assertEquals(1, third.get().cachedStudentsList().size());
+
+        long hits = Course.rosterCacheStats().hits();
+        Assert.assertEquals(1, Course.findById(third.get().id()).get().cachedStudentsList().size());
+        Assert.assertEquals(hits + 1, Course.rosterCacheStats().hits());
+
+        Assert.assertTrue(third.get().enrollStudent(second.get()));
+        Assert.assertEquals(2, third.get().cachedStudentsList().size());
+    }
     
     @Test
     public void gradeStudentTest() {
@@ -158,6 +274,727 @@ public class ActiveRecordTest {
         Assert.assertTrue(Float.compare(4.0f, report.get(third.get())) == 0);
     }
 
+    @Test
+    public void connectionPoolReleaseTest() {
+        Optional<Student> first = Student.create("Kasia", "Kowalska", 1100124);
+        checkStudent(first);
+        long checkouts = ConnectionProvider.metrics().checkouts();
+        for (int i = 0; i < 10; i++) {
+            Student.clearCache();
+            Assert.assertTrue(Student.findById(first.get().id()).isPresent());
+        }
+        PoolMetrics metrics = ConnectionProvider.metrics();
+        Assert.assertEquals(0, metrics.activeReaders());
+        Assert.assertFalse(metrics.writerActive());
+        Assert.assertTrue(metrics.checkouts() >= checkouts + 10);
+    }
+
+    @Test
+    public void statementCacheTest() {
+        Optional<Student> first = Student.create("Kasia", "Kowalska", 1200124);
+        checkStudent(first);
+        long hits = ConnectionProvider.metrics().statementCacheHits();
+        for (int i = 0; i < 10; i++) {
+            Student.clearCache();
+            Assert.assertEquals(first.get(), Student.findByIndexNumber(first.get().indexNumber()).get());
+        }
+        Assert.assertTrue(ConnectionProvider.metrics().statementCacheHits() > hits);
+        Assert.assertTrue(ConnectionProvider.metrics().statementCacheHitRate() > 0.0);
+    }
+
+    @Test
+    public void batchInsertTest() {
+        Optional<Student> existing = Student.create("Kasia", "Kowalska", 1300100);
+        checkStudent(existing);
+        List<Student> students = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            students.add(new Student(0, "Jan", "Nowak", 1300100 + i));
+        }
+        students.add(new Student(0, "Adam", "Kowalski", 1300100));
+        students.add(2, new Student(0, null, "Nowak", 1300199));
+        BatchResult<Student> created = Student.createAll(students, 2);
+        Assert.assertEquals(5, created.count(BatchResult.Status.INSERTED));
+        Assert.assertEquals(BatchResult.Status.FAILED, created.status(2));
+        Assert.assertEquals(BatchResult.Status.DUPLICATE, created.status(6));
+        Assert.assertFalse(Student.findByIndexNumber(1300199).isPresent());
+        for (Student student : created.inserted()) {
+            Assert.assertEquals(student, Student.findById(student.id()).get());
+        }
+
+        Optional<Course> course = Course.create("Batch");
+        checkCourse(course);
+        List<Student> enrolled = new ArrayList<>(created.inserted());
+        enrolled.add(created.inserted().get(0));
+        BatchResult<Student> enrollment = course.get().enrollStudents(enrolled, 4);
+        Assert.assertEquals(5, enrollment.count(BatchResult.Status.INSERTED));
+        Assert.assertEquals(BatchResult.Status.DUPLICATE, enrollment.status(5));
+        Assert.assertEquals(5, course.get().studentList().size());
+
+        Map<Student, Float> grades = new HashMap<>();
+        created.inserted().forEach(s -> grades.put(s, 4.0f));
+        Assert.assertEquals(5, Grade.gradeStudents(course.get(), grades, 3).count(BatchResult.Status.INSERTED));
+    }
+
+    @Test
+    public void materializedReportTest() throws SQLException {
+        Optional<Student> first = Student.create("Kasia", "Kowalska", 1000125);
+        checkStudent(first);
+        Optional<Course> second = Course.create("Bazy 3");
+        checkCourse(second);
+        Assert.assertTrue(Grade.gradeStudent(first.get(), second.get(), 5.0f));
+        Grade.enableMaterializedAverages();
+        try {
+            Assert.assertTrue(Grade.gradeStudent(first.get(), second.get(), 3.0f));
+            // the triggers outlive the pool, and so must the flag
+            ConnectionProvider.init("jdbc:sqlite:active_record_test.db");
+            Assert.assertTrue(Grade.materializedAveragesEnabled());
+            Map<Course, Float> report = first.get().createReport();
+            Assert.assertEquals(1, report.size());
+            Assert.assertTrue(Float.compare(4.0f, report.get(second.get())) == 0);
+        } finally {
+            Grade.disableMaterializedAverages();
+        }
+        ConnectionProvider.init("jdbc:sqlite:active_record_test.db");
+        Assert.assertFalse(Grade.materializedAveragesEnabled());
+    }
+
+    @Test
+    public void asyncWritesKeepOrderTest() throws Exception {
+        Optional<Student> first = Student.create("Kasia", "Kowalska", 1400124);
+        checkStudent(first);
+        Optional<Course> second = Course.create("Async");
+        checkCourse(second);
+        List<CompletableFuture<Integer>> writes = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            writes.add(AsyncQueryExecutor.insert("INSERT INTO grade (grade, student_id, course_id) VALUES (?, ?, ?)",
+                    (float) i, first.get().id(), second.get().id()));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+        for (int i = 1; i < writes.size(); i++) {
+            Assert.assertTrue(writes.get(i - 1).get() < writes.get(i).get());
+        }
+        int count = AsyncQueryExecutor.query("SELECT COUNT(*) FROM grade WHERE course_id = ?", rs -> rs.getInt(1), second.get().id()).get();
+        Assert.assertEquals(20, count);
+    }
+
+    @Test
+    public void writeBehindGradesTest() throws Exception {
+        Optional<Student> first = Student.create("Kasia", "Kowalska", 1500124);
+        checkStudent(first);
+        Optional<Course> second = Course.create("Write behind");
+        checkCourse(second);
+        long failures = Grade.writeBehindFailures();
+        Grade.enableWriteBehind(10, 60_000);
+        try {
+            List<CompletableFuture<Grade>> grades = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                grades.add(Grade.gradeStudentAsync(first.get(), second.get(), 4.0f));
+            }
+            Assert.assertTrue(Grade.gradeStudent(first.get(), second.get(), 5.0f));
+            Grade.flushWriteBehind();
+            for (CompletableFuture<Grade> grade : grades) {
+                Assert.assertTrue(grade.get().id() > 0);
+            }
+        } finally {
+            Grade.disableWriteBehind();
+        }
+        try (Stream<Grade> grades = Grade.streamByCourse(second.get())) {
+            Assert.assertEquals(26, grades.count());
+        }
+        Assert.assertEquals(failures, Grade.writeBehindFailures());
+    }
+
+    @Test
+    public void schemaVersionTest() throws SQLException {
+        SchemaMigrator.migrate();
+        int version = QueryExecutor.query("SELECT MAX(version) FROM schema_version", rs -> rs.getInt(1));
+        Assert.assertEquals(SchemaMigrator.latestVersion(), version);
+        int indexes = QueryExecutor.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ?",
+                rs -> rs.getInt(1), "grade_student_course_idx");
+        Assert.assertEquals(1, indexes);
+    }
+
+    @Test
+    public void queryStatisticsTest() {
+        QueryExecutor.resetStatistics();
+        Student.create("Adam", "Kowalski", 700001);
+        Student.create("Jan", "Nowak", 700002);
+        Optional<Course> course = Course.create("MOWNIT");
+        course.get().enrollStudent(Student.findByIndexNumber(700001).get());
+        course.get().enrollStudent(Student.findByIndexNumber(700002).get());
+        Assert.assertEquals(2, course.get().studentList().size());
+
+        Map<String, QueryStatistics> statistics = QueryExecutor.statistics();
+        QueryStatistics inserts = statistics.values().stream()
+                .filter(s -> s.template().toUpperCase().startsWith("INSERT INTO STUDENT "))
+                .findFirst().get();
+        Assert.assertEquals(2, inserts.calls());
+        Assert.assertEquals(2, inserts.rows());
+        Assert.assertFalse(inserts.template().contains("Kowalski"));
+        Assert.assertTrue(inserts.p50Nanos() <= inserts.p99Nanos());
+        Assert.assertTrue(inserts.p99Nanos() <= inserts.maxNanos());
+        long rosterRows = statistics.values().stream()
+                .filter(s -> s.template().toUpperCase().contains("JOIN"))
+                .mapToLong(QueryStatistics::rows)
+                .sum();
+        Assert.assertEquals(2, rosterRows);
+    }
+
+    @Test
+    public void columnMapperTest() throws SQLException {
+        Student.create("Adam", "Kowalski", 800001);
+        Student.create("Jan", "Nowak", 800002);
+        ColumnMapper<String> mapper = new ColumnMapper<>((rs, c) -> rs.getString(c[0]) + " " + rs.getInt(c[1]),
+                Student.Columns.LAST_NAME, Student.Columns.INDEX_NUMBER);
+
+        List<String> natural = QueryExecutor.queryList("SELECT * FROM student ORDER BY index_number", mapper);
+        List<String> reordered = QueryExecutor.queryList(
+                "SELECT index_number, id, last_name FROM student ORDER BY index_number", mapper);
+        Assert.assertEquals(2, natural.size());
+        Assert.assertEquals("Kowalski 800001", natural.get(0));
+        Assert.assertEquals(natural, reordered);
+        Assert.assertEquals("Nowak 800002",
+                QueryExecutor.queryFirst("SELECT last_name, index_number FROM student WHERE index_number = ?", mapper, 800002).get());
+    }
+
+    @Test
+    public void bulkImportTest() throws IOException, SQLException {
+        String firstPart = "# semester export\n"
+                + "student,Adam,Kowalski,900001\n"
+                + "student,\"Jan, Maria\",Nowak,900002\n"
+                + "course,TO\n"
+                + "enrollment,900001,TO\n"
+                + "enrollment,900002,TO\n";
+        String secondPart = "grade,900001,TO,4.5\n"
+                + "grade,900001,TO,3.5\n"
+                + "student,Adam,Kowalski,900001\n"
+                + "enrollment,900001,TO\n"
+                + "grade,123,TO,5.0\n"
+                + "student,Kasia\n";
+        String importName = "import-" + System.nanoTime();
+
+        ImportReport first = new BulkImporter(importName, 2, 4, new JdbcImportStore()).run(new StringReader(firstPart));
+        Assert.assertEquals(5, first.read());
+        Assert.assertEquals(5, first.imported());
+        Assert.assertEquals(3, first.chunks());
+        Assert.assertEquals(6, first.lastLine());
+
+        ImportReport second = new BulkImporter(importName, 2, 4, new JdbcImportStore()).run(new StringReader(firstPart + secondPart));
+        Assert.assertEquals(5, second.skipped());
+        Assert.assertEquals(6, second.read());
+        Assert.assertEquals(2, second.grades());
+        Assert.assertEquals(2, second.duplicates());
+        Assert.assertEquals(2, second.rejected());
+        Assert.assertEquals(12, second.lastLine());
+
+        Course course = Course.findByName("TO").get();
+        Assert.assertEquals(2, course.studentList().size());
+        Assert.assertEquals("Jan, Maria", Student.findByIndexNumber(900002).get().firstName());
+        Map<Course, Float> report = Student.findByIndexNumber(900001).get().createReport();
+        Assert.assertEquals(4.0f, report.get(course), 1e-6);
+    }
+
+    @Test
+    public void inMemorySnapshotTest() throws IOException, SQLException {
+        Path snapshot = Files.createTempFile("active-record-snapshot", ".db");
+        Files.delete(snapshot);
+        try {
+            ConnectionProvider.initInMemory(snapshot, 0);
+            SchemaMigrator.migrate();
+            Student.clearCache();
+            checkStudent(Student.create("Adam", "Kowalski", 910001));
+            ConnectionProvider.snapshot();
+            SnapshotMetrics metrics = ConnectionProvider.snapshotMetrics().get();
+            Assert.assertFalse(metrics.restored());
+            Assert.assertEquals(1, metrics.snapshots());
+            Assert.assertTrue(metrics.lastDurationNanos() > 0);
+            Assert.assertTrue(Files.exists(snapshot));
+
+            // not covered by the explicit snapshot, persisted when the pool is replaced
+            checkStudent(Student.create("Jan", "Nowak", 910002));
+            ConnectionProvider.initInMemory(snapshot, 0);
+            Student.clearCache();
+            Assert.assertTrue(ConnectionProvider.snapshotMetrics().get().restored());
+            Assert.assertTrue(Student.findByIndexNumber(910001).isPresent());
+            Assert.assertTrue(Student.findByIndexNumber(910002).isPresent());
+
+            // readers see the uncommitted row, which must not outlive the rollback in the cache
+            try {
+                QueryExecutor.inTransaction(connection -> {
+                    connection.connection().createStatement()
+                            .executeUpdate("INSERT INTO student (first_name, last_name, index_number) VALUES ('Anna', 'Nowak', 910003)");
+                    Assert.assertTrue(Student.findByIndexNumber(910003).isPresent());
+                    throw new SQLException("rolled back");
+                });
+                Assert.fail();
+            } catch (SQLException e) {
+                // expected
+            }
+            Assert.assertFalse(Student.findByIndexNumber(910003).isPresent());
+        } finally {
+            ConnectionProvider.init("jdbc:sqlite:active_record_test.db");
+            Student.clearCache();
+            Course.clearCache();
+            Files.deleteIfExists(snapshot);
+        }
+        Assert.assertFalse(ConnectionProvider.snapshotMetrics().isPresent());
+    }
+
+    @Test
+    public void readReplicaTest() throws IOException, SQLException {
+        Student loaded = Student.create("Adam", "Kowalski", 920001).get();
+        Course course = Course.create("Replicated").get();
+        Assert.assertTrue(course.enrollStudent(loaded));
+        try {
+            ReadReplica replica = ReadReplica.enable();
+            Assert.assertEquals(1, replica.studentCount());
+            Assert.assertEquals(1, replica.enrollmentCount());
+
+            Student created = Student.create("Jan", "Kowalski", 920002).get();
+            course.enrollStudents(Collections.singletonList(created));
+            new BulkImporter("replica-" + System.nanoTime(), new JdbcImportStore()).run(new StringReader("student,Anna,Kowalska,920003\nenrollment,920003,Replicated\n"));
+            // rows written with plain SQL are not seen by the replica
+            QueryExecutor.delete("DELETE FROM STUDENT_COURSE");
+
+            Assert.assertEquals(loaded, Student.findById(loaded.id()).get());
+            Assert.assertEquals(created, Student.findByIndexNumber(920002).get());
+            Assert.assertTrue(Student.findByIndexNumber(920003).isPresent());
+            Assert.assertFalse(Student.findByIndexNumber(920004).isPresent());
+            Assert.assertEquals(3, course.studentList().size());
+            Assert.assertEquals(5, replica.internedNames());
+            replica.addEnrollment(course.id(), loaded.id());
+            Assert.assertEquals(3, replica.enrollmentCount());
+
+            ReadReplica.reload();
+            Assert.assertTrue(course.studentList().isEmpty());
+        } finally {
+            ReadReplica.disable();
+        }
+        Assert.assertFalse(ReadReplica.current().isPresent());
+    }
+
+    @Test
+    public void enrollmentIndexTest() throws SQLException {
+        Student adam = Student.create("Adam", "Kowalski", 930001).get();
+        Student jan = Student.create("Jan", "Nowak", 930002).get();
+        Student kasia = Student.create("Kasia", "Kowalska", 930003).get();
+        Course first = Course.create("Index 1").get();
+        Course second = Course.create("Index 2").get();
+        first.enrollStudent(adam);
+        first.enrollStudent(jan);
+        try {
+            EnrollmentIndex index = EnrollmentIndexLoader.enable();
+            second.enrollStudents(Arrays.asList(adam, jan, kasia));
+
+            Assert.assertTrue(first.isEnrolled(jan));
+            Assert.assertFalse(first.isEnrolled(kasia));
+            Assert.assertEquals(3, index.courseSize(second.id()));
+            Assert.assertArrayEquals(new int[] { first.id(), second.id() }, index.courses(adam.id()));
+            Assert.assertArrayEquals(new int[] { adam.id(), jan.id() }, index.enrolledInBoth(first.id(), second.id()));
+            Assert.assertEquals(2, index.overlap(second.id(), first.id()));
+
+            List<CoEnrollment> coEnrolled = index.coEnrolled(adam.id(), 1);
+            Assert.assertEquals(1, coEnrolled.size());
+            Assert.assertEquals(jan.id(), coEnrolled.get(0).studentId());
+            Assert.assertEquals(2, coEnrolled.get(0).sharedCourses());
+            Assert.assertEquals(2, index.coEnrolled(kasia.id(), 5).size());
+        } finally {
+            EnrollmentIndex.disable();
+        }
+        Assert.assertTrue(second.isEnrolled(kasia));
+        Assert.assertFalse(first.isEnrolled(kasia));
+    }
+
+    @Test
+    public void keysetPaginationTest() {
+        Course course = Course.create("Paged").get();
+        String[][] names = { { "Jan", "Nowak" }, { "Adam", "Nowak" }, { "Anna", "Kowalska" }, { "Adam", "Nowak" }, { "Ewa", "Zielinska" } };
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            Student student = Student.create(names[i][0], names[i][1], 940001 + i).get();
+            course.enrollStudent(student);
+            Grade.gradeStudent(student, course, i % 2 == 0 ? 4.0f : 3.0f);
+            students.add(student);
+        }
+
+        Page<Student> roster = course.studentPage(2);
+        List<Student> paged = new ArrayList<>(roster.items());
+        while (roster.hasNext()) {
+            roster = course.studentPage(2, roster.next().get());
+            paged.addAll(roster.items());
+        }
+        Assert.assertEquals(students, paged);
+
+        Page<Student> byName = Student.pageByName(3);
+        Assert.assertEquals(Arrays.asList(students.get(2), students.get(1), students.get(3)), byName.items());
+        byName = Student.pageByName(3, byName.next().get());
+        Assert.assertEquals(Arrays.asList(students.get(0), students.get(4)), byName.items());
+        Assert.assertFalse(byName.hasNext());
+
+        List<Float> grades = new ArrayList<>();
+        Page<Grade> page = Grade.pageByCourse(course, 1);
+        grades.add(page.items().get(0).grade());
+        while (page.hasNext()) {
+            page = Grade.pageByCourse(course, 1, page.next().get());
+            page.items().forEach(g -> grades.add(g.grade()));
+        }
+        Assert.assertEquals(Arrays.asList(3.0f, 3.0f, 4.0f, 4.0f, 4.0f), grades);
+
+        try {
+            Grade.pageByCourse(course, 1, course.studentPage(1).next().get());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // roster tokens are not accepted by other listings
+        }
+    }
+
+    @Test
+    public void shardingTest() throws IOException, SQLException {
+        List<Path> files = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            files.add(Files.createTempFile("active-record-shard", ".db"));
+            addresses.add("jdbc:sqlite:" + files.get(i));
+        }
+        try {
+            ConnectionProvider.initSharded(addresses, 1000);
+            SchemaMigrator.migrate();
+            Student.clearCache();
+            Course.clearCache();
+            Student student = Student.create("Adam", "Kowalski", 950001).get();
+            Map<Integer, Course> byShard = new HashMap<>();
+            for (int i = 0; i < 3; i++) {
+                Course course = Course.create("Shard " + i).get();
+                Assert.assertTrue(course.enrollStudent(student));
+                Assert.assertTrue(Grade.gradeStudent(student, course, 3.0f + i));
+                byShard.put(course.id() / 1000, course);
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)), byShard.keySet());
+            Assert.assertEquals(3, student.createReport().size());
+            Student.clearCache();
+            Assert.assertEquals(student, Student.findByIndexNumber(950001).get());
+            Course moved = byShard.get(1);
+            Assert.assertEquals(moved, Course.findByName(moved.name()).get());
+
+            try {
+                ShardRebalancer.moveCourses(1500, 1600, 0);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // shard 1 still allocates ids from this range
+            }
+            Assert.assertEquals(1, ShardRebalancer.moveCourses(moved.id(), moved.id() + 1, 0));
+            Assert.assertEquals(0, ConnectionProvider.router().get().route(moved.id()));
+            try (ShardScope scope = ConnectionProvider.useShard(1)) {
+                Assert.assertEquals(0, QueryExecutor.query("SELECT COUNT(*) FROM course", rs -> rs.next() ? rs.getInt(1) : -1).intValue());
+            }
+            Course.clearCache();
+            Assert.assertEquals(moved, Course.findById(moved.id()).get());
+            Assert.assertEquals(Collections.singletonList(student), moved.studentList());
+            Assert.assertEquals(4.0f, student.createReport().get(moved), 1e-6);
+            // the move must not advance the course id sequence of the target shard
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                ids.add(Course.create("After move " + i).get().id());
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList(2, 1001, 2001)), ids);
+
+            // course names are unique across shards
+            for (int i = 0; i < 3; i++) {
+                Assert.assertFalse(Course.create("Shard " + i).isPresent());
+            }
+
+            // students live only on the shard owning their index number, which also allocates their id
+            Student jan = Student.create("Jan", "Nowak", 950002).get();
+            Assert.assertEquals(1000, jan.id());
+            List<Integer> perShard = new ArrayList<>();
+            for (int shard = 0; shard < 3; shard++) {
+                try (ShardScope scope = ConnectionProvider.useShard(shard)) {
+                    perShard.add(QueryExecutor.query("SELECT COUNT(*) FROM student", rs -> rs.next() ? rs.getInt(1) : -1));
+                }
+            }
+            Assert.assertEquals(Arrays.asList(1, 1, 0), perShard);
+            BatchResult<Student> batch = Student.createAll(Arrays.asList(new Student(0, "Anna", "Nowak", 950003),
+                    new Student(0, "Jan", "Nowak", 950002), new Student(0, "Ewa", "Nowak", 950004)));
+            Assert.assertEquals(Arrays.asList(BatchResult.Status.INSERTED, BatchResult.Status.DUPLICATE, BatchResult.Status.INSERTED),
+                    Arrays.asList(batch.status(0), batch.status(1), batch.status(2)));
+            Assert.assertEquals(2000, batch.value(0).get().id());
+            Page<Student> byName = Student.pageByName(3);
+            Assert.assertEquals(Arrays.asList("Adam", "Anna", "Ewa"), byName.items().stream().map(Student::firstName).collect(Collectors.toList()));
+            Assert.assertEquals(Collections.singletonList(jan), Student.pageByName(3, byName.next().get()).items());
+
+            // rosters resolve their students on the shards owning them
+            Course remote = byShard.get(2);
+            Assert.assertTrue(remote.enrollStudent(jan));
+            Assert.assertTrue(remote.enrollStudent(batch.value(0).get()));
+            Student.clearCache();
+            Assert.assertEquals(Arrays.asList(student, jan, batch.value(0).get()), remote.studentList());
+            Page<Student> first = remote.studentPage(2);
+            Assert.assertEquals(Arrays.asList(student, jan), first.items());
+            Assert.assertEquals(Collections.singletonList(batch.value(0).get()), remote.studentPage(2, first.next().get()).items());
+
+            try {
+                ReadReplica.enable();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // the replica would only see the first shard
+            }
+            try {
+                EnrollmentIndexLoader.enable();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // so would the index
+            }
+            try {
+                new BulkImporter("sharded", new JdbcImportStore()).run(new StringReader(""));
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // and the import
+            }
+        } finally {
+            ConnectionProvider.init("jdbc:sqlite:active_record_test.db");
+            Student.clearCache();
+            Course.clearCache();
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Assert.assertFalse(ConnectionProvider.router().isPresent());
+    }
+
+    @Test
+    public void changeStreamTest() throws Exception {
+        Student adam = Student.create("Adam", "Kowalski", 950001).get();
+        Student jan = Student.create("Jan", "Nowak", 950002).get();
+        Course course = Course.create("Changes").get();
+        BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        List<Long> sequences = Collections.synchronizedList(new ArrayList<>());
+        try (Subscription subscription = ChangeStream.subscribe((sequence, event) -> {
+            sequences.add(sequence);
+            events.add(event);
+        })) {
+            Assert.assertTrue(course.enrollStudent(adam));
+            Assert.assertFalse(course.enrollStudent(adam));
+            course.enrollStudents(Arrays.asList(adam, jan));
+            Assert.assertTrue(Grade.gradeStudent(adam, course, 4.5f));
+            Grade.enableWriteBehind(10, 60_000);
+            try {
+                Grade.gradeStudent(jan, course, 3.0f);
+            } finally {
+                Grade.disableWriteBehind();
+            }
+
+            ChangeEvent first = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(first instanceof EnrollmentEvent);
+            Assert.assertEquals(adam.id(), first.studentId());
+            Assert.assertEquals(course.id(), first.courseId());
+            ChangeEvent second = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(second instanceof EnrollmentEvent);
+            Assert.assertEquals(jan.id(), second.studentId());
+            GradeEvent graded = (GradeEvent) events.poll(5, TimeUnit.SECONDS);
+            Assert.assertEquals(adam.id(), graded.studentId());
+            Assert.assertEquals(4.5f, graded.grade(), 0.0f);
+            Assert.assertTrue(graded.gradeId() > 0);
+            GradeEvent buffered = (GradeEvent) events.poll(5, TimeUnit.SECONDS);
+            Assert.assertEquals(jan.id(), buffered.studentId());
+            Assert.assertTrue(buffered.gradeId() > graded.gradeId());
+            Assert.assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+
+            for (int i = 1; i < sequences.size(); i++) {
+                Assert.assertEquals(sequences.get(i - 1) + 1, (long) sequences.get(i));
+            }
+            Assert.assertEquals(ChangeStream.published(), subscription.delivered());
+        }
+        Assert.assertTrue(Grade.gradeStudent(jan, course, 5.0f));
+        Assert.assertTrue(events.isEmpty());
+
+        // a subscriber writing through the models could deadlock with a writer waiting for it
+        BlockingQueue<RuntimeException> rejected = new LinkedBlockingQueue<>();
+        try (Subscription subscription = ChangeStream.subscribe((sequence, event) -> {
+            try {
+                Student.create("Piotr", "Zielinski", 950003);
+            } catch (IllegalStateException e) {
+                rejected.add(e);
+            }
+            try {
+                ChangeStream.publish(event);
+            } catch (IllegalStateException e) {
+                rejected.add(e);
+            }
+        })) {
+            Assert.assertTrue(Grade.gradeStudent(adam, course, 3.0f));
+            Assert.assertNotNull(rejected.poll(5, TimeUnit.SECONDS));
+            Assert.assertNotNull(rejected.poll(5, TimeUnit.SECONDS));
+        }
+        Assert.assertFalse(Student.findByIndexNumber(950003).isPresent());
+    }
+
+    @Test
+    public void gradeStatisticsTest() throws SQLException {
+        Student adam = Student.create("Adam", "Kowalski", 960001).get();
+        Student jan = Student.create("Jan", "Nowak", 960002).get();
+        Course first = Course.create("Statistics 1").get();
+        Course second = Course.create("Statistics 2").get();
+        Grade.gradeStudent(adam, first, 3.0f);
+        Grade.gradeStudent(jan, first, 4.0f);
+        try {
+            GradeStatistics statistics = GradeStatisticsLoader.enable();
+            Grade.gradeStudent(adam, first, 5.0f);
+            Map<Student, Float> grades = new HashMap<>();
+            grades.put(adam, 2.0f);
+            grades.put(jan, 4.5f);
+            Grade.gradeStudents(second, grades);
+
+            GradeSummary summary = statistics.summary(first.id()).get();
+            Assert.assertEquals(3, summary.count());
+            Assert.assertEquals(4.0, summary.average(), 1e-6);
+            Assert.assertEquals(3.0, summary.min(), 0.0);
+            Assert.assertEquals(5.0, summary.max(), 0.0);
+            Assert.assertEquals(4.0, summary.median(), 4.0 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+            Assert.assertEquals(5.0, statistics.percentile(first.id(), 1.0).getAsDouble(), 0.0);
+
+            GradeSummary combined = statistics.combined(Arrays.asList(first.id(), second.id())).get();
+            Assert.assertEquals(5, combined.count());
+            Assert.assertEquals(2.0, combined.min(), 0.0);
+            Assert.assertFalse(statistics.summary(-1).isPresent());
+        } finally {
+            GradeStatistics.disable();
+        }
+
+        QuantileSketch sketch = new QuantileSketch(0.01, 64);
+        QuantileSketch other = new QuantileSketch(0.01, 64);
+        for (int i = 1; i <= 1000; i++) {
+            (i % 2 == 0 ? sketch : other).add(i);
+        }
+        sketch.merge(other);
+        Assert.assertEquals(1000, sketch.count());
+        Assert.assertEquals(900, sketch.quantile(0.9), 900 * 0.01 + 1);
+        Assert.assertEquals(500, sketch.quantile(0.5), 500 * 0.01 + 1);
+    }
+
+    @Test
+    public void queryTemplateTest() throws SQLException {
+        Column<Integer> id = Column.of(Student.TABLE_NAME, Student.Columns.ID, Integer.class);
+        Column<String> lastName = Column.of(Student.TABLE_NAME, Student.Columns.LAST_NAME, String.class);
+        Slot<String> name = lastName.slot();
+        SqlTemplate template = Select.from(Student.TABLE_NAME).columns(id)
+                .where(lastName.ge(name).and(lastName.gt(name).or(id.gt())))
+                .orderBy(lastName.asc(), id.desc())
+                .compile();
+
+        Assert.assertEquals("SELECT id FROM student WHERE last_name >= ? AND (last_name > ? OR id > ?) ORDER BY last_name, id DESC", template.sql());
+        Assert.assertEquals(2, template.slotCount());
+        Assert.assertArrayEquals(new Object[] { "Nowak", "Nowak", 7 }, template.args("Nowak", 7));
+        Assert.assertSame(template, Select.from(Student.TABLE_NAME).columns(id)
+                .where(lastName.ge(name).and(lastName.gt(name).or(id.gt())))
+                .orderBy(lastName.asc(), id.desc())
+                .compile());
+        try {
+            template.args(7, "Nowak");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals("INSERT OR IGNORE INTO student (last_name) VALUES (?)",
+                Insert.into(Student.TABLE_NAME).orIgnore().columns(lastName).compile().sql());
+
+        Student student = Student.create("Jan", "O'Brien", 970001).get();
+        Assert.assertEquals(Collections.singletonList(student.id()),
+                QueryExecutor.query(template, rs -> {
+                    List<Integer> ids = new ArrayList<>();
+                    while (rs.next()) {
+                        ids.add(rs.getInt(1));
+                    }
+                    return ids;
+                }, "O'Brien", 0));
+        Course course = Course.create("Bob's course").get();
+        Course.clearCache();
+        Assert.assertEquals(course, Course.findByName("Bob's course").get());
+    }
+
+    @Test
+    public void unitOfWorkTest() throws Exception {
+        Course course = Course.create("Unit of work").get();
+        BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        try (Subscription subscription = ChangeStream.subscribe((sequence, event) -> events.add(event))) {
+            Student adam;
+            try (UnitOfWork unit = UnitOfWork.begin()) {
+                adam = Student.create("Adam", "Kowalski", 980001).get();
+                Assert.assertTrue(course.enrollStudent(adam));
+                Assert.assertTrue(course.isEnrolled(adam));
+                try (UnitOfWork nested = UnitOfWork.begin()) {
+                    Student jan = Student.create("Jan", "Nowak", 980002).get();
+                    Assert.assertTrue(course.enrollStudent(jan));
+                    Assert.assertTrue(Grade.gradeStudent(jan, course, 3.0f));
+                }
+                Assert.assertEquals(Collections.singletonList(adam), course.studentList());
+                Assert.assertTrue(Grade.gradeStudentAsync(adam, course, 4.0f).isDone());
+                Assert.assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+                unit.commit();
+            }
+            Assert.assertFalse(UnitOfWork.isActive());
+            Assert.assertEquals(Collections.singletonList(adam), course.studentList());
+            Assert.assertFalse(Student.findByIndexNumber(980002).isPresent());
+            Assert.assertEquals(4.0f, adam.createReport().get(course), 0.01f);
+
+            ChangeEvent enrolled = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(enrolled instanceof EnrollmentEvent);
+            Assert.assertEquals(adam.id(), enrolled.studentId());
+            GradeEvent graded = (GradeEvent) events.poll(5, TimeUnit.SECONDS);
+            Assert.assertEquals(adam.id(), graded.studentId());
+            Assert.assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+        }
+
+        try (UnitOfWork unit = UnitOfWork.begin()) {
+            Student.create("Anna", "Nowak", 980003);
+            Assert.assertTrue(Student.findByIndexNumber(980003).isPresent());
+        }
+        Assert.assertFalse(Student.findByIndexNumber(980003).isPresent());
+
+        try (UnitOfWork outer = UnitOfWork.begin(); UnitOfWork inner = UnitOfWork.begin()) {
+            outer.commit();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertFalse(UnitOfWork.isActive());
+
+        // closing a unit over an open inner one rolls both back and releases the writer before failing
+        try {
+            try (UnitOfWork outer = UnitOfWork.begin()) {
+                Student.create("Ewa", "Nowak", 980004);
+                UnitOfWork.begin();
+            }
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertFalse(UnitOfWork.isActive());
+        Assert.assertFalse(Student.findByIndexNumber(980004).isPresent());
+        Assert.assertTrue(CompletableFuture.supplyAsync(() -> Student.create("Ewa", "Nowak", 980004)).get(5, TimeUnit.SECONDS).isPresent());
+        Student.clearCache();
+        Assert.assertTrue(Student.findByIndexNumber(980004).isPresent());
+
+        // a unit runs every query on one connection, so a roster query must not reuse the statement under an open roster stream
+        Course large = Course.create("Unit of work streams").get();
+        Course small = Course.create("Unit of work lists").get();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(large.enrollStudent(Student.create("Stream", "Student " + i, 980010 + i).get()));
+        }
+        Assert.assertTrue(small.enrollStudent(Student.create("List", "Student", 980020).get()));
+        try (UnitOfWork unit = UnitOfWork.begin(); Stream<Student> students = large.students()) {
+            Assert.assertEquals(Collections.nCopies(5, 1), students.map(student -> small.studentList().size()).collect(Collectors.toList()));
+        }
+
+        // a roster cached by another thread before the unit commits must not outlive the commit
+        Student late = Student.create("Late", "Student", 980021).get();
+        try (UnitOfWork unit = UnitOfWork.begin()) {
+            Assert.assertTrue(small.enrollStudent(late));
+            Assert.assertEquals(1, CompletableFuture.supplyAsync(small::cachedStudentsList).get().size());
+            unit.commit();
+        }
+        Assert.assertEquals(2, small.cachedStudentsList().size());
+    }
+
     private void checkStudent(final Optional<Student> student) {
         Assert.assertTrue(student.isPresent());
         student.ifPresent(s -> {
@@ -0,0 +1,94 @@
+package pl.edu.agh.iisg.to.connection;
+
+/**
+ * Named sets of SQLite pragmas applied to every connection when it is opened.
+ * The active profile is chosen with the {@value #PROPERTY} system property, which
+ * both persistence layers read, so they run with the same settings; each applies
+ * them to its connections in its own way (SqlitePragmas).
+ */
+public enum SqliteProfile {
+
+    /** Rollback journal with a full fsync on every commit; the SQLite defaults with a larger page cache. */
+    DURABLE("durable", "DELETE", "FULL", 0, -8_000, "DEFAULT", 5_000),
+
+    /** WAL with fsync only at checkpoints; a crash may lose the last commits but never corrupts the file. */
+    THROUGHPUT("throughput", "WAL", "NORMAL", 268_435_456L, -65_536, "MEMORY", 5_000),
+
+    /** WAL so readers never block on the writer, with a large memory map and page cache for lookups. */
+    READ_MOSTLY("read-mostly", "WAL", "NORMAL", 1_073_741_824L, -131_072, "MEMORY", 10_000);
+
+    public static final String PROPERTY = "sqlite.profile";
+
+    private final String profileName;
+
+    private final String journalMode;
+
+    private final String synchronous;
+
+    private final long mmapSize;
+
+    private final int cacheSize;
+
+    private final String tempStore;
+
+    private final int busyTimeoutMillis;
+
+    SqliteProfile(final String profileName, final String journalMode, final String synchronous, final long mmapSize,
+                  final int cacheSize, final String tempStore, final int busyTimeoutMillis) {
+        this.profileName = profileName;
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+    }
+
+    public static SqliteProfile fromSystemProperty() {
+        return byName(System.getProperty(PROPERTY, DURABLE.profileName));
+    }
+
+    public static SqliteProfile byName(final String name) {
+        for (SqliteProfile profile : values()) {
+            if (profile.profileName.equalsIgnoreCase(name) || profile.name().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown SQLite profile: " + name);
+    }
+
+    public String profileName() {
+        return profileName;
+    }
+
+    public String journalMode() {
+        return journalMode;
+    }
+
+    public String synchronous() {
+        return synchronous;
+    }
+
+    public long mmapSize() {
+        return mmapSize;
+    }
+
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    public String tempStore() {
+        return tempStore;
+    }
+
+    public int busyTimeoutMillis() {
+        return busyTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (journal_mode=%s, synchronous=%s, mmap_size=%d, cache_size=%d, temp_store=%s, busy_timeout=%d)",
+                profileName, journalMode, synchronous, mmapSize, cacheSize, tempStore, busyTimeoutMillis);
+    }
+
+}
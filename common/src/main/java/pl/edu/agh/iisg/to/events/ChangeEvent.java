@@ -0,0 +1,25 @@
+package pl.edu.agh.iisg.to.events;
+
+/**
+ * A committed write, published to the {@link ChangeStream} after its transaction committed.
+ */
+public abstract class ChangeEvent {
+
+    private final int studentId;
+
+    private final int courseId;
+
+    ChangeEvent(final int studentId, final int courseId) {
+        this.studentId = studentId;
+        this.courseId = courseId;
+    }
+
+    public int studentId() {
+        return studentId;
+    }
+
+    public int courseId() {
+        return courseId;
+    }
+
+}
@@ -0,0 +1,101 @@
+package pl.edu.agh.iisg.to.events;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-producer ring buffer. Producers claim a sequence with one atomic increment and mark
+ * the slot published once the event is written; subscriptions read slots in sequence order.
+ * A producer that would overwrite a slot some subscription has not read yet waits for it.
+ */
+final class ChangeRingBuffer {
+
+    private static final int SPINS = 100;
+
+    private static final long PARK_NANOS = 50_000;
+
+    private final int mask;
+
+    private final ChangeEvent[] events;
+
+    private final AtomicLongArray published;
+
+    private final AtomicLong next = new AtomicLong();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    ChangeRingBuffer(final int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.events = new ChangeEvent[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            published.set(slot, -1);
+        }
+    }
+
+    long publish(final ChangeEvent event) {
+        if (Subscription.isSubscriberThread()) {
+            // the subscription would wait for its own cursor once the buffer is full
+            throw new IllegalStateException("Change subscribers cannot publish events");
+        }
+        final long sequence = next.getAndIncrement();
+        final long wrapPoint = sequence - events.length;
+        for (int attempt = 0; wrapPoint >= slowestCursor(); attempt++) {
+            idle(attempt);
+        }
+        final int slot = (int) sequence & mask;
+        events[slot] = event;
+        published.set(slot, sequence);
+        return sequence;
+    }
+
+    long next() {
+        return next.get();
+    }
+
+    Subscription subscribe(final ChangeSubscriber subscriber) {
+        final Subscription subscription = new Subscription(this, subscriber, next.get());
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    void unsubscribe(final Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Returns the event at the sequence once it is published; the caller must advance its
+     * cursor only after it is done with the event, as that frees the slot for producers.
+     */
+    ChangeEvent poll(final long sequence) {
+        final int slot = (int) sequence & mask;
+        return published.get(slot) == sequence ? events[slot] : null;
+    }
+
+    static void idle(final int attempt) {
+        if (attempt < SPINS) {
+            return;
+        }
+        if (attempt < 2 * SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private long slowestCursor() {
+        long slowest = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            slowest = Math.min(slowest, subscription.cursor());
+        }
+        return slowest;
+    }
+
+}
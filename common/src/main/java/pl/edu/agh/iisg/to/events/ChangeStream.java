@@ -0,0 +1,44 @@
+package pl.edu.agh.iisg.to.events;
+
+/**
+ * In-process stream of committed enrollments and grades. Writers publish after their
+ * transaction committed and before letting the next writer commit, so sequence order is
+ * commit order. A subscriber that falls a whole buffer behind holds up the writers instead
+ * of losing events; the buffer size is read from the changes.buffer.size system property.
+ */
+public final class ChangeStream {
+
+    public static final String BUFFER_SIZE_PROPERTY = "changes.buffer.size";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final ChangeRingBuffer buffer = new ChangeRingBuffer(Integer.getInteger(BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE));
+
+    private ChangeStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static long publish(final ChangeEvent event) {
+        return buffer.publish(event);
+    }
+
+    /**
+     * Whether the current thread delivers events to a subscriber. Such threads must not
+     * publish or write: a writer waiting for the subscriber holds what the write would need.
+     */
+    public static boolean isSubscriberThread() {
+        return Subscription.isSubscriberThread();
+    }
+
+    public static Subscription subscribe(final ChangeSubscriber subscriber) {
+        return buffer.subscribe(subscriber);
+    }
+
+    /**
+     * Number of events published since start-up, which is also the sequence of the next one.
+     */
+    public static long published() {
+        return buffer.next();
+    }
+
+}
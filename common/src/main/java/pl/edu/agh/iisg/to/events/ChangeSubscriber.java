@@ -0,0 +1,14 @@
+package pl.edu.agh.iisg.to.events;
+
+@FunctionalInterface
+public interface ChangeSubscriber {
+
+    /**
+     * Called on the subscription's own thread, once per event published after subscribing,
+     * in publication order and with consecutive sequences. Writes made from here are rejected
+     * with an IllegalStateException, since a full buffer would deadlock them; hand them over
+     * to another thread instead.
+     */
+    void onEvent(long sequence, ChangeEvent event);
+
+}
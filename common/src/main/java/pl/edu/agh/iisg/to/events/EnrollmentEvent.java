@@ -0,0 +1,14 @@
+package pl.edu.agh.iisg.to.events;
+
+public final class EnrollmentEvent extends ChangeEvent {
+
+    public EnrollmentEvent(final int studentId, final int courseId) {
+        super(studentId, courseId);
+    }
+
+    @Override
+    public String toString() {
+        return "EnrollmentEvent{studentId=" + studentId() + ", courseId=" + courseId() + "}";
+    }
+
+}
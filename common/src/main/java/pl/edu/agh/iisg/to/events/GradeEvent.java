@@ -0,0 +1,28 @@
+package pl.edu.agh.iisg.to.events;
+
+public final class GradeEvent extends ChangeEvent {
+
+    private final int gradeId;
+
+    private final float grade;
+
+    public GradeEvent(final int gradeId, final int studentId, final int courseId, final float grade) {
+        super(studentId, courseId);
+        this.gradeId = gradeId;
+        this.grade = grade;
+    }
+
+    public int gradeId() {
+        return gradeId;
+    }
+
+    public float grade() {
+        return grade;
+    }
+
+    @Override
+    public String toString() {
+        return "GradeEvent{gradeId=" + gradeId + ", studentId=" + studentId() + ", courseId=" + courseId() + ", grade=" + grade + "}";
+    }
+
+}
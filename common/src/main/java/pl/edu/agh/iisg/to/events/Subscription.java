@@ -0,0 +1,96 @@
+package pl.edu.agh.iisg.to.events;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A subscriber attached to the change stream, fed by its own daemon thread. Closing it
+ * delivers the events already published and releases the buffer slots it was holding.
+ */
+public final class Subscription implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private static final ThreadLocal<Subscription> current = new ThreadLocal<>();
+
+    private final ChangeRingBuffer buffer;
+
+    private final ChangeSubscriber subscriber;
+
+    private final AtomicLong cursor;
+
+    private final Thread thread;
+
+    private volatile boolean active = true;
+
+    Subscription(final ChangeRingBuffer buffer, final ChangeSubscriber subscriber, final long from) {
+        this.buffer = buffer;
+        this.subscriber = subscriber;
+        this.cursor = new AtomicLong(from);
+        this.thread = new Thread(this::run, "change-subscriber-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    static boolean isSubscriberThread() {
+        return current.get() != null;
+    }
+
+    long cursor() {
+        return cursor.get();
+    }
+
+    /**
+     * Number of events delivered so far, counted from the stream's start rather than the subscription's.
+     */
+    public long delivered() {
+        return cursor.get();
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public void close() {
+        active = false;
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        buffer.unsubscribe(this);
+    }
+
+    private void run() {
+        current.set(this);
+        int attempt = 0;
+        while (true) {
+            final long sequence = cursor.get();
+            final ChangeEvent event = buffer.poll(sequence);
+            if (event == null) {
+                if (!active) {
+                    return;
+                }
+                ChangeRingBuffer.idle(attempt++);
+                continue;
+            }
+            attempt = 0;
+            try {
+                subscriber.onEvent(sequence, event);
+            } catch (RuntimeException e) {
+                LOGGER.warning("Change subscriber failed on " + event + ": " + e.getMessage());
+            }
+            cursor.lazySet(sequence + 1);
+        }
+    }
+
+}
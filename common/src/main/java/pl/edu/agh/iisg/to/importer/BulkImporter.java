@@ -0,0 +1,253 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Imports students, courses, enrollments and grades from CSV (see CsvRecordParser for the format).
+ * A parser thread feeds a bounded queue; the calling thread drains it in chunks, resolves
+ * index numbers and course names to ids and writes each chunk in one transaction together
+ * with a checkpoint. Running an import again under the same name resumes after the last
+ * committed line, so a failed import can be restarted with the same file. The database is
+ * written through the given {@link ImportStore} of the backend.
+ */
+public final class BulkImporter {
+
+    private static final Logger LOGGER = Logger.getGlobal();
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+    private final String importName;
+
+    private final int chunkSize;
+
+    private final int queueCapacity;
+
+    private final ImportStore store;
+
+    public BulkImporter(final String importName, final ImportStore store) {
+        this(importName, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CAPACITY, store);
+    }
+
+    public BulkImporter(final String importName, final int chunkSize, final int queueCapacity, final ImportStore store) {
+        if (chunkSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Chunk size and queue capacity must be positive");
+        }
+        this.importName = importName;
+        this.chunkSize = chunkSize;
+        this.queueCapacity = queueCapacity;
+        this.store = store;
+    }
+
+    public ImportReport run(final Path file) throws IOException, SQLException {
+        try (final Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return run(reader);
+        }
+    }
+
+    public ImportReport run(final Reader source) throws IOException, SQLException {
+        final long start = System.nanoTime();
+        final long checkpoint = store.checkpoint(importName);
+        final BlockingQueue<ImportRecord> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final Parser parser = new Parser(source, checkpoint, queue);
+        final Thread parserThread = new Thread(parser, "import-parser-" + importName);
+        parserThread.setDaemon(true);
+        parserThread.start();
+
+        final KeyResolver resolver = new KeyResolver();
+        final Counts total = new Counts();
+        long lastLine = checkpoint;
+        final List<ImportRecord> chunk = new ArrayList<>(chunkSize);
+        try {
+            boolean done = false;
+            while (!done) {
+                chunk.add(queue.take());
+                queue.drainTo(chunk, chunkSize - 1);
+                if (chunk.get(chunk.size() - 1) == ImportRecord.END) {
+                    chunk.remove(chunk.size() - 1);
+                    done = true;
+                }
+                if (!chunk.isEmpty()) {
+                    total.add(writeChunk(chunk, resolver));
+                    lastLine = chunk.get(chunk.size() - 1).line();
+                    store.committed();
+                    chunk.clear();
+                }
+            }
+            parserThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import " + importName + " interrupted at line " + lastLine, e);
+        } finally {
+            parserThread.interrupt();
+        }
+        if (parser.failure != null) {
+            throw parser.failure;
+        }
+        final ImportReport report = new ImportReport(total.read, parser.skipped, total.students, total.courses,
+                total.enrollments, total.grades, total.duplicates, total.rejected, total.chunks, lastLine,
+                System.nanoTime() - start);
+        LOGGER.info("Import " + importName + " finished: " + report);
+        return report;
+    }
+
+    private Counts writeChunk(final List<ImportRecord> chunk, final KeyResolver resolver) throws SQLException {
+        final Counts counts = store.write(transaction -> {
+            resolver.prefetch(chunk, transaction);
+            final Counts written = new Counts();
+            for (ImportRecord record : chunk) {
+                write(record, transaction, resolver, written);
+            }
+            transaction.saveCheckpoint(importName, chunk.get(chunk.size() - 1).line());
+            return written;
+        });
+        counts.read = chunk.size();
+        counts.chunks = 1;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Import %s committed lines up to %d", importName, chunk.get(chunk.size() - 1).line()));
+        }
+        return counts;
+    }
+
+    private static void write(final ImportRecord record, final ImportTransaction transaction, final KeyResolver resolver,
+                              final Counts counts) throws SQLException {
+        switch (record.kind()) {
+            case STUDENT:
+                if (resolver.student(record.indexNumber()).isPresent()) {
+                    counts.duplicates++;
+                } else {
+                    resolver.putStudent(record.indexNumber(),
+                            transaction.insertStudent(record.firstName(), record.lastName(), record.indexNumber()));
+                    counts.students++;
+                }
+                return;
+            case COURSE:
+                if (resolver.course(record.courseName()).isPresent()) {
+                    counts.duplicates++;
+                } else {
+                    resolver.putCourse(record.courseName(), transaction.insertCourse(record.courseName()));
+                    counts.courses++;
+                }
+                return;
+            case ENROLLMENT:
+            case GRADE:
+                final Optional<Integer> student = resolver.student(record.indexNumber());
+                final Optional<Integer> course = resolver.course(record.courseName());
+                if (!student.isPresent() || !course.isPresent()) {
+                    reject(record, "unknown student or course", counts);
+                } else if (record.kind() == ImportRecord.Kind.GRADE) {
+                    transaction.grade(student.get(), course.get(), record.grade());
+                    counts.grades++;
+                } else if (transaction.enroll(student.get(), course.get())) {
+                    counts.enrollments++;
+                } else {
+                    counts.duplicates++;
+                }
+                return;
+            default:
+                reject(record, record.error(), counts);
+        }
+    }
+
+    private static void reject(final ImportRecord record, final String reason, final Counts counts) {
+        counts.rejected++;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Rejected import line %d: %s", record.line(), reason));
+        }
+    }
+
+    private static final class Counts {
+
+        private long read;
+
+        private long students;
+
+        private long courses;
+
+        private long enrollments;
+
+        private long grades;
+
+        private long duplicates;
+
+        private long rejected;
+
+        private long chunks;
+
+        private void add(final Counts other) {
+            read += other.read;
+            students += other.students;
+            courses += other.courses;
+            enrollments += other.enrollments;
+            grades += other.grades;
+            duplicates += other.duplicates;
+            rejected += other.rejected;
+            chunks += other.chunks;
+        }
+
+    }
+
+    private static final class Parser implements Runnable {
+
+        private final BufferedReader reader;
+
+        private final long resumeAfter;
+
+        private final BlockingQueue<ImportRecord> queue;
+
+        // both are published to the importing thread by the END record
+        private long skipped;
+
+        private IOException failure;
+
+        private Parser(final Reader source, final long resumeAfter, final BlockingQueue<ImportRecord> queue) {
+            this.reader = source instanceof BufferedReader ? (BufferedReader) source : new BufferedReader(source);
+            this.resumeAfter = resumeAfter;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long line = 0;
+                String text;
+                while ((text = reader.readLine()) != null) {
+                    line++;
+                    if (CsvRecordParser.isSkipped(text)) {
+                        continue;
+                    }
+                    if (line <= resumeAfter) {
+                        skipped++;
+                        continue;
+                    }
+                    queue.put(CsvRecordParser.parse(line, text));
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                queue.put(ImportRecord.END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
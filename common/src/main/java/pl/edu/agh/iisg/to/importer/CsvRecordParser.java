@@ -0,0 +1,98 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses import lines of the form
+ * <pre>
+ * student,first name,last name,index number
+ * course,name
+ * enrollment,index number,course name
+ * grade,index number,course name,grade
+ * </pre>
+ * Fields may be double-quoted, with "" standing for a quote inside a quoted field.
+ * Malformed lines become INVALID records instead of failing the import.
+ */
+final class CsvRecordParser {
+
+    private CsvRecordParser() {
+        throw new UnsupportedOperationException();
+    }
+
+    static boolean isSkipped(final String text) {
+        final String trimmed = text.trim();
+        return trimmed.isEmpty() || trimmed.startsWith("#");
+    }
+
+    static ImportRecord parse(final long line, final String text) {
+        final List<String> fields = split(text);
+        try {
+            switch (fields.get(0).trim().toLowerCase()) {
+                case "student":
+                    expect(fields, 4);
+                    return ImportRecord.student(line, required(fields.get(1)), required(fields.get(2)), parseInt(fields.get(3)));
+                case "course":
+                    expect(fields, 2);
+                    return ImportRecord.course(line, required(fields.get(1)));
+                case "enrollment":
+                    expect(fields, 3);
+                    return ImportRecord.enrollment(line, parseInt(fields.get(1)), required(fields.get(2)));
+                case "grade":
+                    expect(fields, 4);
+                    return ImportRecord.grade(line, parseInt(fields.get(1)), required(fields.get(2)), Float.parseFloat(fields.get(3).trim()));
+                default:
+                    return ImportRecord.invalid(line, "Unknown record type: " + fields.get(0));
+            }
+        } catch (IllegalArgumentException e) {
+            return ImportRecord.invalid(line, e.getMessage());
+        }
+    }
+
+    private static void expect(final List<String> fields, final int count) {
+        if (fields.size() != count) {
+            throw new IllegalArgumentException(String.format("Expected %d fields, found %d", count, fields.size()));
+        }
+    }
+
+    private static String required(final String field) {
+        final String value = field.trim();
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Empty field");
+        }
+        return value;
+    }
+
+    private static int parseInt(final String field) {
+        return Integer.parseInt(field.trim());
+    }
+
+    private static List<String> split(final String text) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+}
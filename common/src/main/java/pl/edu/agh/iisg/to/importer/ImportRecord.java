@@ -0,0 +1,103 @@
+package pl.edu.agh.iisg.to.importer;
+
+/**
+ * One parsed line of an import file. Students and courses are referenced by their
+ * natural keys, the index number and the course name.
+ */
+final class ImportRecord {
+
+    enum Kind {
+        STUDENT, COURSE, ENROLLMENT, GRADE, INVALID, END
+    }
+
+    static final ImportRecord END = new ImportRecord(Kind.END, -1, null, null, 0, null, 0, null);
+
+    private final Kind kind;
+
+    private final long line;
+
+    private final String firstName;
+
+    private final String lastName;
+
+    private final int indexNumber;
+
+    private final String courseName;
+
+    private final float grade;
+
+    private final String error;
+
+    private ImportRecord(final Kind kind, final long line, final String firstName, final String lastName,
+                         final int indexNumber, final String courseName, final float grade, final String error) {
+        this.kind = kind;
+        this.line = line;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.indexNumber = indexNumber;
+        this.courseName = courseName;
+        this.grade = grade;
+        this.error = error;
+    }
+
+    static ImportRecord student(final long line, final String firstName, final String lastName, final int indexNumber) {
+        return new ImportRecord(Kind.STUDENT, line, firstName, lastName, indexNumber, null, 0, null);
+    }
+
+    static ImportRecord course(final long line, final String courseName) {
+        return new ImportRecord(Kind.COURSE, line, null, null, 0, courseName, 0, null);
+    }
+
+    static ImportRecord enrollment(final long line, final int indexNumber, final String courseName) {
+        return new ImportRecord(Kind.ENROLLMENT, line, null, null, indexNumber, courseName, 0, null);
+    }
+
+    static ImportRecord grade(final long line, final int indexNumber, final String courseName, final float grade) {
+        return new ImportRecord(Kind.GRADE, line, null, null, indexNumber, courseName, grade, null);
+    }
+
+    static ImportRecord invalid(final long line, final String error) {
+        return new ImportRecord(Kind.INVALID, line, null, null, 0, null, 0, error);
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    long line() {
+        return line;
+    }
+
+    String firstName() {
+        return firstName;
+    }
+
+    String lastName() {
+        return lastName;
+    }
+
+    int indexNumber() {
+        return indexNumber;
+    }
+
+    String courseName() {
+        return courseName;
+    }
+
+    float grade() {
+        return grade;
+    }
+
+    String error() {
+        return error;
+    }
+
+    boolean referencesStudent() {
+        return kind == Kind.STUDENT || kind == Kind.ENROLLMENT || kind == Kind.GRADE;
+    }
+
+    boolean referencesCourse() {
+        return kind == Kind.COURSE || kind == Kind.ENROLLMENT || kind == Kind.GRADE;
+    }
+
+}
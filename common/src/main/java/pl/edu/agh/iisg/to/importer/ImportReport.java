@@ -0,0 +1,119 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.util.concurrent.TimeUnit;
+
+public final class ImportReport {
+
+    private final long read;
+
+    private final long skipped;
+
+    private final long students;
+
+    private final long courses;
+
+    private final long enrollments;
+
+    private final long grades;
+
+    private final long duplicates;
+
+    private final long rejected;
+
+    private final long chunks;
+
+    private final long lastLine;
+
+    private final long elapsedNanos;
+
+    ImportReport(final long read, final long skipped, final long students, final long courses, final long enrollments,
+                 final long grades, final long duplicates, final long rejected, final long chunks, final long lastLine,
+                 final long elapsedNanos) {
+        this.read = read;
+        this.skipped = skipped;
+        this.students = students;
+        this.courses = courses;
+        this.enrollments = enrollments;
+        this.grades = grades;
+        this.duplicates = duplicates;
+        this.rejected = rejected;
+        this.chunks = chunks;
+        this.lastLine = lastLine;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Records read in this run, not counting the ones skipped as already imported.
+     */
+    public long read() {
+        return read;
+    }
+
+    /**
+     * Records at or before the checkpoint of a previous run.
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    public long students() {
+        return students;
+    }
+
+    public long courses() {
+        return courses;
+    }
+
+    public long enrollments() {
+        return enrollments;
+    }
+
+    public long grades() {
+        return grades;
+    }
+
+    public long imported() {
+        return students + courses + enrollments + grades;
+    }
+
+    /**
+     * Students, courses and enrollments that already existed.
+     */
+    public long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Malformed records and records referencing unknown students or courses.
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    public long chunks() {
+        return chunks;
+    }
+
+    /**
+     * Line number of the checkpoint stored by this run.
+     */
+    public long lastLine() {
+        return lastLine;
+    }
+
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double recordsPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : read * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImportReport[read=%d, skipped=%d, students=%d, courses=%d, enrollments=%d, grades=%d, duplicates=%d, rejected=%d, chunks=%d, lastLine=%d, elapsed=%dms, %.0f records/s]",
+                read, skipped, students, courses, enrollments, grades, duplicates, rejected, chunks, lastLine,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), recordsPerSecond());
+    }
+
+}
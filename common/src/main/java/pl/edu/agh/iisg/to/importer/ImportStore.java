@@ -0,0 +1,29 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.sql.SQLException;
+
+/**
+ * Backend of BulkImporter.
+ */
+public interface ImportStore {
+
+    @FunctionalInterface
+    interface ImportWork<T> {
+
+        T write(ImportTransaction transaction) throws SQLException;
+
+    }
+
+    /**
+     * Returns the last line committed by the named import, or 0 if it never ran.
+     */
+    long checkpoint(String importName) throws SQLException;
+
+    <T> T write(ImportWork<T> work) throws SQLException;
+
+    /**
+     * Called after each committed chunk, e.g. to drop cached state the chunk made stale.
+     */
+    void committed();
+
+}
@@ -0,0 +1,29 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes of one import chunk; everything done through it is committed or rolled back together.
+ */
+public interface ImportTransaction {
+
+    Map<Integer, Integer> findStudentIds(Collection<Integer> indexNumbers) throws SQLException;
+
+    Map<String, Integer> findCourseIds(Collection<String> names) throws SQLException;
+
+    int insertStudent(String firstName, String lastName, int indexNumber) throws SQLException;
+
+    int insertCourse(String name) throws SQLException;
+
+    /**
+     * Returns false if the student is already enrolled.
+     */
+    boolean enroll(int studentId, int courseId) throws SQLException;
+
+    void grade(int studentId, int courseId, float grade) throws SQLException;
+
+    void saveCheckpoint(String importName, long line) throws SQLException;
+
+}
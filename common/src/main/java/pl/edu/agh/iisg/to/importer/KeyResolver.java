@@ -0,0 +1,77 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Maps natural keys to ids for the duration of one import run. Keys a chunk refers to
+ * and that are not cached yet are looked up in batches before the chunk is written,
+ * and ids of rows inserted by the import are added as they are generated.
+ */
+final class KeyResolver {
+
+    static final int LOOKUP_BATCH_SIZE = 500;
+
+    private final Map<Integer, Integer> studentIds = new HashMap<>();
+
+    private final Map<String, Integer> courseIds = new HashMap<>();
+
+    void prefetch(final List<ImportRecord> chunk, final ImportTransaction transaction) throws SQLException {
+        final Set<Integer> students = new LinkedHashSet<>();
+        final Set<String> courses = new LinkedHashSet<>();
+        for (ImportRecord record : chunk) {
+            if (record.referencesStudent() && !studentIds.containsKey(record.indexNumber())) {
+                students.add(record.indexNumber());
+            }
+            if (record.referencesCourse() && !courseIds.containsKey(record.courseName())) {
+                courses.add(record.courseName());
+            }
+        }
+        for (List<Integer> batch : partition(students)) {
+            studentIds.putAll(transaction.findStudentIds(batch));
+        }
+        for (List<String> batch : partition(courses)) {
+            courseIds.putAll(transaction.findCourseIds(batch));
+        }
+    }
+
+    Optional<Integer> student(final int indexNumber) {
+        return Optional.ofNullable(studentIds.get(indexNumber));
+    }
+
+    Optional<Integer> course(final String name) {
+        return Optional.ofNullable(courseIds.get(name));
+    }
+
+    void putStudent(final int indexNumber, final int id) {
+        studentIds.put(indexNumber, id);
+    }
+
+    void putCourse(final String name, final int id) {
+        courseIds.put(name, id);
+    }
+
+    private static <K> List<List<K>> partition(final Collection<K> keys) {
+        final List<List<K>> batches = new ArrayList<>();
+        List<K> batch = new ArrayList<>(LOOKUP_BATCH_SIZE);
+        for (K key : keys) {
+            batch.add(key);
+            if (batch.size() == LOOKUP_BATCH_SIZE) {
+                batches.add(batch);
+                batch = new ArrayList<>(LOOKUP_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+}
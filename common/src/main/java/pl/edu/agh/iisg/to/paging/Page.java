@@ -0,0 +1,54 @@
+package pl.edu.agh.iisg.to.paging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * One page of a keyset-paginated listing together with the token of the next page.
+ */
+public final class Page<T> {
+
+    private final List<T> items;
+
+    private final String next;
+
+    private Page(final List<T> items, final String next) {
+        this.items = Collections.unmodifiableList(items);
+        this.next = next;
+    }
+
+    /**
+     * Builds a page from a query that fetched up to {@code limit + 1} rows; the extra row
+     * only tells whether another page follows and is not returned.
+     */
+    public static <T> Page<T> of(final List<T> fetched, final int limit, final Function<T, String> tokenOf) {
+        if (fetched.size() <= limit) {
+            return new Page<>(new ArrayList<>(fetched), null);
+        }
+        final List<T> items = new ArrayList<>(fetched.subList(0, limit));
+        return new Page<>(items, tokenOf.apply(items.get(limit - 1)));
+    }
+
+    public static <T> Page<T> empty() {
+        return new Page<>(Collections.<T>emptyList(), null);
+    }
+
+    public List<T> items() {
+        return items;
+    }
+
+    /**
+     * Returns the token to pass for the following page, or empty on the last page.
+     */
+    public Optional<String> next() {
+        return Optional.ofNullable(next);
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+}
@@ -0,0 +1,82 @@
+package pl.edu.agh.iisg.to.paging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token holding the sort key of the last row of a page. The token
+ * names the listing it belongs to, so it cannot be replayed against a different one.
+ */
+public final class PageToken {
+
+    private static final byte INT = 'I';
+
+    private static final byte FLOAT = 'F';
+
+    private static final byte STRING = 'S';
+
+    private PageToken() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static String encode(final String listing, final Object... keys) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(listing);
+            out.writeByte(keys.length);
+            for (Object key : keys) {
+                if (key instanceof Integer) {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) key);
+                } else if (key instanceof Float) {
+                    out.writeByte(FLOAT);
+                    out.writeFloat((Float) key);
+                } else if (key instanceof String) {
+                    out.writeByte(STRING);
+                    out.writeUTF((String) key);
+                } else {
+                    throw new IllegalArgumentException("Unsupported key type: " + key);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the keys stored in the token; throws IllegalArgumentException if the token is
+     * malformed or was issued for another listing.
+     */
+    public static Object[] decode(final String listing, final String token) {
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            if (!listing.equals(in.readUTF())) {
+                throw new IllegalArgumentException("Page token belongs to another listing");
+            }
+            final Object[] keys = new Object[in.readUnsignedByte()];
+            for (int i = 0; i < keys.length; i++) {
+                final byte type = in.readByte();
+                if (type == INT) {
+                    keys[i] = in.readInt();
+                } else if (type == FLOAT) {
+                    keys[i] = in.readFloat();
+                } else if (type == STRING) {
+                    keys[i] = in.readUTF();
+                } else {
+                    throw new IllegalArgumentException("Malformed page token");
+                }
+            }
+            if (in.available() > 0) {
+                throw new IllegalArgumentException("Malformed page token");
+            }
+            return keys;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed page token", e);
+        }
+    }
+
+}
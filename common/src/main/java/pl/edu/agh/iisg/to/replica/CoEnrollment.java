@@ -0,0 +1,44 @@
+package pl.edu.agh.iisg.to.replica;
+
+/**
+ * A student together with the number of courses they share with another student.
+ */
+public final class CoEnrollment {
+
+    private final int studentId;
+
+    private final int sharedCourses;
+
+    CoEnrollment(final int studentId, final int sharedCourses) {
+        this.studentId = studentId;
+        this.sharedCourses = sharedCourses;
+    }
+
+    public int studentId() {
+        return studentId;
+    }
+
+    public int sharedCourses() {
+        return sharedCourses;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final CoEnrollment that = (CoEnrollment) o;
+        return studentId == that.studentId && sharedCourses == that.sharedCourses;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * studentId + sharedCourses;
+    }
+
+    @Override
+    public String toString() {
+        return "CoEnrollment{studentId=" + studentId + ", sharedCourses=" + sharedCourses + "}";
+    }
+
+}
@@ -0,0 +1,279 @@
+package pl.edu.agh.iisg.to.replica;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * In-memory adjacency of the student_course table in both directions.
+ * <p>
+ * Each course keeps a bit set indexed by student id, which makes membership checks constant
+ * time and intersections a word-wise AND; each student keeps a sorted array of course ids.
+ * Student ids are dense autoincrement keys, so a course's bit set costs at most one bit per
+ * student in the database. It follows enrollments made through the models or DAOs and the
+ * bulk importer only.
+ * <p>
+ * Each backend loads the table into a new index and installs it; see EnrollmentIndexLoader.
+ */
+public final class EnrollmentIndex {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private static final int[] NONE = new int[0];
+
+    private static final Comparator<CoEnrollment> RANKING = Comparator.comparingInt(CoEnrollment::sharedCourses)
+            .reversed().thenComparingInt(CoEnrollment::studentId);
+
+    private static volatile EnrollmentIndex current;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final IntIntMap courseRows = new IntIntMap(64);
+
+    private final IntIntMap studentRows = new IntIntMap(1024);
+
+    private BitSet[] courseStudents = new BitSet[64];
+
+    private int[] courseSizes = new int[64];
+
+    private int courseCount;
+
+    private int[][] studentCourses = new int[1024][];
+
+    private int[] studentCourseCounts = new int[1024];
+
+    private int studentCount;
+
+    private long enrollmentCount;
+
+    /**
+     * Serves the loaded index through {@link #current()} until it is disabled.
+     */
+    public static synchronized EnrollmentIndex install(final EnrollmentIndex index) {
+        current = index;
+        logger.info("Enrollment index loaded: " + index.enrollmentCount() + " enrollments");
+        return index;
+    }
+
+    public static synchronized void disable() {
+        current = null;
+    }
+
+    /**
+     * Disables the given index unless another one was installed since.
+     */
+    public static synchronized void disable(final EnrollmentIndex index) {
+        if (current == index) {
+            current = null;
+        }
+    }
+
+    public static Optional<EnrollmentIndex> current() {
+        return Optional.ofNullable(current);
+    }
+
+    /**
+     * Records an enrollment; returns false if it was already known.
+     */
+    public boolean add(final int courseId, final int studentId) {
+        lock.writeLock().lock();
+        try {
+            return insert(courseId, studentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isEnrolled(final int courseId, final int studentId) {
+        lock.readLock().lock();
+        try {
+            final int row = courseRows.get(courseId);
+            return row != IntIntMap.MISSING && studentId >= 0 && courseStudents[row].get(studentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int courseSize(final int courseId) {
+        lock.readLock().lock();
+        try {
+            final int row = courseRows.get(courseId);
+            return row == IntIntMap.MISSING ? 0 : courseSizes[row];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of the students enrolled in the course, in ascending order.
+     */
+    public int[] students(final int courseId) {
+        lock.readLock().lock();
+        try {
+            final int row = courseRows.get(courseId);
+            return row == IntIntMap.MISSING ? NONE : courseStudents[row].stream().toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of the courses the student is enrolled in, in ascending order.
+     */
+    public int[] courses(final int studentId) {
+        lock.readLock().lock();
+        try {
+            final int row = studentRows.get(studentId);
+            return row == IntIntMap.MISSING ? NONE : Arrays.copyOf(studentCourses[row], studentCourseCounts[row]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of the students enrolled in both courses, in ascending order.
+     */
+    public int[] enrolledInBoth(final int firstCourseId, final int secondCourseId) {
+        lock.readLock().lock();
+        try {
+            return intersection(firstCourseId, secondCourseId).stream().toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int overlap(final int firstCourseId, final int secondCourseId) {
+        lock.readLock().lock();
+        try {
+            return intersection(firstCourseId, secondCourseId).cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} students sharing the most courses with the given one, most
+     * shared first and ties broken by student id.
+     */
+    public List<CoEnrollment> coEnrolled(final int studentId, final int limit) {
+        if (limit < 1) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            final int row = studentRows.get(studentId);
+            if (row == IntIntMap.MISSING) {
+                return Collections.emptyList();
+            }
+            final IntIntMap shared = new IntIntMap(64);
+            final IntList candidates = new IntList(64);
+            for (int i = 0; i < studentCourseCounts[row]; i++) {
+                final BitSet students = courseStudents[courseRows.get(studentCourses[row][i])];
+                for (int other = students.nextSetBit(0); other >= 0; other = students.nextSetBit(other + 1)) {
+                    if (other == studentId) {
+                        continue;
+                    }
+                    final int count = shared.get(other);
+                    if (count == IntIntMap.MISSING) {
+                        candidates.add(other);
+                        shared.put(other, 1);
+                    } else {
+                        shared.put(other, count + 1);
+                    }
+                }
+            }
+            final PriorityQueue<CoEnrollment> top = new PriorityQueue<>(limit + 1, RANKING.reversed());
+            for (int i = 0; i < candidates.size(); i++) {
+                final int other = candidates.get(i);
+                top.add(new CoEnrollment(other, shared.get(other)));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+            final List<CoEnrollment> ranked = new ArrayList<>(top);
+            ranked.sort(RANKING);
+            return ranked;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long enrollmentCount() {
+        lock.readLock().lock();
+        try {
+            return enrollmentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private BitSet intersection(final int firstCourseId, final int secondCourseId) {
+        final int first = courseRows.get(firstCourseId);
+        final int second = courseRows.get(secondCourseId);
+        if (first == IntIntMap.MISSING || second == IntIntMap.MISSING) {
+            return new BitSet();
+        }
+        final BitSet both = (BitSet) courseStudents[first].clone();
+        both.and(courseStudents[second]);
+        return both;
+    }
+
+    private boolean insert(final int courseId, final int studentId) {
+        final int courseRow = courseRow(courseId);
+        if (courseStudents[courseRow].get(studentId)) {
+            return false;
+        }
+        courseStudents[courseRow].set(studentId);
+        courseSizes[courseRow]++;
+
+        final int studentRow = studentRow(studentId);
+        final int count = studentCourseCounts[studentRow];
+        int[] courses = studentCourses[studentRow];
+        if (count == courses.length) {
+            courses = studentCourses[studentRow] = Arrays.copyOf(courses, count << 1);
+        }
+        final int position = -Arrays.binarySearch(courses, 0, count, courseId) - 1;
+        System.arraycopy(courses, position, courses, position + 1, count - position);
+        courses[position] = courseId;
+        studentCourseCounts[studentRow]++;
+        enrollmentCount++;
+        return true;
+    }
+
+    private int courseRow(final int courseId) {
+        int row = courseRows.get(courseId);
+        if (row == IntIntMap.MISSING) {
+            if (courseCount == courseStudents.length) {
+                courseStudents = Arrays.copyOf(courseStudents, courseCount << 1);
+                courseSizes = Arrays.copyOf(courseSizes, courseCount << 1);
+            }
+            row = courseCount++;
+            courseStudents[row] = new BitSet();
+            courseRows.put(courseId, row);
+        }
+        return row;
+    }
+
+    private int studentRow(final int studentId) {
+        int row = studentRows.get(studentId);
+        if (row == IntIntMap.MISSING) {
+            if (studentCount == studentCourses.length) {
+                studentCourses = Arrays.copyOf(studentCourses, studentCount << 1);
+                studentCourseCounts = Arrays.copyOf(studentCourseCounts, studentCount << 1);
+            }
+            row = studentCount++;
+            studentCourses[row] = new int[4];
+            studentRows.put(studentId, row);
+        }
+        return row;
+    }
+
+}
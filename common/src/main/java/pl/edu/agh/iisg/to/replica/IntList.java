@@ -0,0 +1,33 @@
+package pl.edu.agh.iisg.to.replica;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of ints.
+ */
+final class IntList {
+
+    private int[] elements;
+
+    private int size;
+
+    IntList(final int initialCapacity) {
+        this.elements = new int[Math.max(initialCapacity, 4)];
+    }
+
+    void add(final int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size++] = value;
+    }
+
+    int get(final int index) {
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,109 @@
+package pl.edu.agh.iisg.to.stats;
+
+/**
+ * Counts per bucket index in a dense window over at most maxBuckets consecutive indexes.
+ * Once the indexes in use would span more than that, the lowest buckets are folded into the
+ * lowest one kept, which only costs accuracy at the low end of the distribution.
+ */
+final class BucketStore {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final int maxBuckets;
+
+    private long[] counts;
+
+    // bucket index held by counts[0]
+    private int offset;
+
+    private int minIndex;
+
+    private int maxIndex;
+
+    private long total;
+
+    BucketStore(final int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+    }
+
+    long total() {
+        return total;
+    }
+
+    void add(final int index, final long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (total == 0) {
+            counts = new long[Math.min(INITIAL_CAPACITY, maxBuckets)];
+            offset = index - counts.length / 2;
+            minIndex = index;
+            maxIndex = index;
+        }
+        final int target = Math.max(index, maxIndex - maxBuckets + 1);
+        if (target > maxIndex) {
+            foldBelow(target - maxBuckets + 1);
+            maxIndex = target;
+        }
+        minIndex = Math.min(minIndex, target);
+        ensureWindow();
+        counts[target - offset] += count;
+        total += count;
+    }
+
+    void addTo(final BucketStore target) {
+        for (int index = minIndex; total > 0 && index <= maxIndex; index++) {
+            target.add(index, counts[index - offset]);
+        }
+    }
+
+    /**
+     * Returns the index of the bucket holding the value of the given zero-based rank, counting
+     * from the lowest index, or from the highest one when descending.
+     */
+    int indexAtRank(final long rank, final boolean descending) {
+        long seen = 0;
+        for (int i = 0; i <= maxIndex - minIndex; i++) {
+            final int index = descending ? maxIndex - i : minIndex + i;
+            seen += counts[index - offset];
+            if (seen > rank) {
+                return index;
+            }
+        }
+        return descending ? minIndex : maxIndex;
+    }
+
+    private void foldBelow(final int floor) {
+        if (minIndex >= floor) {
+            return;
+        }
+        long folded = 0;
+        for (int index = minIndex; index < floor && index <= maxIndex; index++) {
+            folded += counts[index - offset];
+            counts[index - offset] = 0;
+        }
+        minIndex = floor;
+        // the new maximum is set by the caller; the floor bucket must fit the window before it is written
+        maxIndex = Math.max(maxIndex, floor);
+        ensureWindow();
+        counts[floor - offset] += folded;
+    }
+
+    private void ensureWindow() {
+        if (minIndex >= offset && maxIndex < offset + counts.length) {
+            return;
+        }
+        final int needed = maxIndex - minIndex + 1;
+        final int capacity = Math.min(maxBuckets, Math.max(needed, counts.length * 2));
+        final int newOffset = minIndex - (capacity - needed) / 2;
+        final long[] resized = new long[capacity];
+        final int from = Math.max(offset, newOffset);
+        final int to = Math.min(offset + counts.length, newOffset + capacity);
+        for (int index = from; index < to; index++) {
+            resized[index - newOffset] = counts[index - offset];
+        }
+        counts = resized;
+        offset = newOffset;
+    }
+
+}
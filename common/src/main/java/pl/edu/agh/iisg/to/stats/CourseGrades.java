@@ -0,0 +1,56 @@
+package pl.edu.agh.iisg.to.stats;
+
+/**
+ * Running statistics of one course. The summary is rebuilt on the first read after a change,
+ * so repeated reads cost a field load.
+ */
+final class CourseGrades {
+
+    private final QuantileSketch sketch = new QuantileSketch();
+
+    private long count;
+
+    private double sum;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private GradeSummary summary;
+
+    synchronized void add(final double grade) {
+        count++;
+        sum += grade;
+        min = Math.min(min, grade);
+        max = Math.max(max, grade);
+        sketch.add(grade);
+        summary = null;
+    }
+
+    synchronized void addTo(final CourseGrades target) {
+        target.merge(count, sum, min, max, sketch);
+    }
+
+    synchronized GradeSummary summary() {
+        if (summary == null) {
+            summary = new GradeSummary(count, count == 0 ? Double.NaN : sum / count, min, max, percentile(0.5));
+        }
+        return summary;
+    }
+
+    // sketch values are clamped to the exact extremes, which keeps min and max quantiles exact
+    synchronized double percentile(final double q) {
+        final double value = sketch.quantile(q);
+        return Double.isNaN(value) ? value : Math.max(min, Math.min(max, value));
+    }
+
+    private synchronized void merge(final long count, final double sum, final double min, final double max, final QuantileSketch sketch) {
+        this.count += count;
+        this.sum += sum;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.sketch.merge(sketch);
+        this.summary = null;
+    }
+
+}
@@ -0,0 +1,90 @@
+package pl.edu.agh.iisg.to.stats;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * In-memory grade statistics per course: exact count, average, minimum and maximum from
+ * running sums, and median and percentiles from a {@link QuantileSketch} of bounded size.
+ * It is loaded from the grade table once and then follows grades committed through the
+ * models or DAOs and the bulk importer.
+ * <p>
+ * Each backend loads the table into new statistics and installs them; see GradeStatisticsLoader.
+ */
+public final class GradeStatistics {
+
+    private static final Logger logger = Logger.getGlobal();
+
+    private static volatile GradeStatistics current;
+
+    private final Map<Integer, CourseGrades> courses = new ConcurrentHashMap<>();
+
+    /**
+     * Serves the loaded statistics through {@link #current()} until they are disabled.
+     */
+    public static synchronized GradeStatistics install(final GradeStatistics statistics) {
+        current = statistics;
+        logger.info("Grade statistics loaded for " + statistics.courseCount() + " courses");
+        return statistics;
+    }
+
+    public static synchronized void disable() {
+        current = null;
+    }
+
+    /**
+     * Disables the given statistics unless others were installed since.
+     */
+    public static synchronized void disable(final GradeStatistics statistics) {
+        if (current == statistics) {
+            current = null;
+        }
+    }
+
+    public static Optional<GradeStatistics> current() {
+        return Optional.ofNullable(current);
+    }
+
+    public void record(final int courseId, final float grade) {
+        courses.computeIfAbsent(courseId, id -> new CourseGrades()).add(grade);
+    }
+
+    public Optional<GradeSummary> summary(final int courseId) {
+        final CourseGrades grades = courses.get(courseId);
+        return grades == null ? Optional.empty() : Optional.of(grades.summary());
+    }
+
+    /**
+     * Returns the approximate grade at the quantile, between 0 and 1, of the course's grades.
+     */
+    public OptionalDouble percentile(final int courseId, final double q) {
+        final CourseGrades grades = courses.get(courseId);
+        return grades == null ? OptionalDouble.empty() : OptionalDouble.of(grades.percentile(q));
+    }
+
+    /**
+     * Merges the statistics of the given courses, e.g. the courses of one programme; this
+     * costs one sketch merge per course.
+     */
+    public Optional<GradeSummary> combined(final Collection<Integer> courseIds) {
+        final CourseGrades combined = new CourseGrades();
+        boolean found = false;
+        for (Integer courseId : courseIds) {
+            final CourseGrades grades = courses.get(courseId);
+            if (grades != null) {
+                grades.addTo(combined);
+                found = true;
+            }
+        }
+        return found ? Optional.of(combined.summary()) : Optional.empty();
+    }
+
+    public int courseCount() {
+        return courses.size();
+    }
+
+}
@@ -0,0 +1,52 @@
+package pl.edu.agh.iisg.to.stats;
+
+/**
+ * Grade statistics of a course at one point in time. Count, average, minimum and maximum are
+ * exact; the median comes from the course's quantile sketch.
+ */
+public final class GradeSummary {
+
+    private final long count;
+
+    private final double average;
+
+    private final double min;
+
+    private final double max;
+
+    private final double median;
+
+    GradeSummary(final long count, final double average, final double min, final double max, final double median) {
+        this.count = count;
+        this.average = average;
+        this.min = min;
+        this.max = max;
+        this.median = median;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double average() {
+        return average;
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    public double median() {
+        return median;
+    }
+
+    @Override
+    public String toString() {
+        return "GradeSummary{count=" + count + ", average=" + average + ", min=" + min + ", max=" + max + ", median=" + median + "}";
+    }
+
+}
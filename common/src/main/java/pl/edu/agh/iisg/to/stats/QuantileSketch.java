@@ -0,0 +1,111 @@
+package pl.edu.agh.iisg.to.stats;
+
+/**
+ * Mergeable quantile sketch with relative error guarantees (DDSketch). Values are counted in
+ * logarithmic buckets whose bounds grow by a factor of (1 + a) / (1 - a), so any quantile is
+ * answered within a relative error of a, using at most maxBuckets buckets per sign. Sketches
+ * with the same accuracy merge by adding their bucket counts. Not thread-safe.
+ */
+public final class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+    // magnitudes below this are counted as zero
+    private static final double MIN_INDEXABLE = 1e-9;
+
+    private final double relativeAccuracy;
+
+    private final int maxBuckets;
+
+    private final double gamma;
+
+    private final double logGamma;
+
+    private final BucketStore positive;
+
+    private final BucketStore negative;
+
+    private long zeroCount;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    public QuantileSketch(final double relativeAccuracy, final int maxBuckets) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1 || maxBuckets < 1) {
+            throw new IllegalArgumentException("Invalid sketch parameters: " + relativeAccuracy + ", " + maxBuckets);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxBuckets = maxBuckets;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.positive = new BucketStore(maxBuckets);
+        this.negative = new BucketStore(maxBuckets);
+    }
+
+    public void add(final double value) {
+        if (value > MIN_INDEXABLE) {
+            positive.add(index(value), 1);
+        } else if (value < -MIN_INDEXABLE) {
+            negative.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+    }
+
+    public void merge(final QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches of different accuracy");
+        }
+        other.positive.addTo(positive);
+        other.negative.addTo(negative);
+        zeroCount += other.zeroCount;
+    }
+
+    public QuantileSketch copy() {
+        final QuantileSketch copy = new QuantileSketch(relativeAccuracy, maxBuckets);
+        copy.merge(this);
+        return copy;
+    }
+
+    public long count() {
+        return negative.total() + zeroCount + positive.total();
+    }
+
+    /**
+     * Returns the value at the given quantile, between 0 and 1, or NaN when the sketch is empty.
+     */
+    public double quantile(final double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+        }
+        final long count = count();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final long rank = (long) (q * (count - 1));
+        if (rank < negative.total()) {
+            return -value(negative.indexAtRank(rank, true));
+        }
+        if (rank < negative.total() + zeroCount) {
+            return 0;
+        }
+        return value(positive.indexAtRank(rank - negative.total() - zeroCount, false));
+    }
+
+    public double relativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private int index(final double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    // the point of bucket (gamma^(i-1), gamma^i] that is within the relative accuracy of both bounds
+    private double value(final int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+}
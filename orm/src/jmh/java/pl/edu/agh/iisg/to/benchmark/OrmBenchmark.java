@@ -0,0 +1,168 @@
+package pl.edu.agh.iisg.to.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.edu.agh.iisg.to.connection.SqliteProfile;
+import pl.edu.agh.iisg.to.dao.CourseDao;
+import pl.edu.agh.iisg.to.dao.GradeDao;
+import pl.edu.agh.iisg.to.dao.StudentDao;
+import pl.edu.agh.iisg.to.model.Course;
+import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.session.SessionService;
+
+/**
+ * DAO counterparts of ActiveRecordBenchmark, with the same method names and parameters.
+ * Every trial runs in its own fork, so the database URL and profile are passed to
+ * SessionService through system properties before it is first used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrmBenchmark {
+
+    private static final int FIRST_INDEX_NUMBER = 1_000_000;
+
+    private static final int REPORT_COURSES = 10;
+
+    @Param({"1000", "10000"})
+    public int students;
+
+    @Param({"file", "memory"})
+    public String storage;
+
+    @Param({"durable", "throughput", "read-mostly"})
+    public String profile;
+
+    private final StudentDao studentDao = new StudentDao();
+
+    private final CourseDao courseDao = new CourseDao();
+
+    private final GradeDao gradeDao = new GradeDao();
+
+    private File database;
+
+    private List<Student> population;
+
+    private int rosterId;
+
+    private Student reportStudent;
+
+    private Course gradedCourse;
+
+    private int nextIndexNumber;
+
+    private Course enrollmentCourse;
+
+    private int nextEnrollment;
+
+    private int enrollmentCourses;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty(SessionService.JDBC_URL_PROPERTY, jdbcAddress());
+        System.setProperty(SqliteProfile.PROPERTY, profile);
+        SessionService.openSession();
+
+        population = new ArrayList<>(students);
+        for (int i = 0; i < students; i++) {
+            population.add(studentDao.create("Jan", "Nowak", FIRST_INDEX_NUMBER + i).get());
+        }
+        nextIndexNumber = FIRST_INDEX_NUMBER + students;
+
+        Course roster = courseDao.create("Roster").get();
+        for (Student student : population) {
+            courseDao.enrollStudent(roster, student);
+        }
+        rosterId = roster.id();
+
+        reportStudent = population.get(0);
+        for (int i = 0; i < REPORT_COURSES; i++) {
+            Course course = courseDao.create("Report " + i).get();
+            gradeDao.gradeStudent(reportStudent, course, 3.0f + i % 3);
+            gradeDao.gradeStudent(reportStudent, course, 3.0f + i % 3);
+            gradedCourse = course;
+        }
+        enrollmentCourse = courseDao.create("Enrollment 0").get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SessionService.closeSession();
+        if (database != null) {
+            database.delete();
+        }
+    }
+
+    @Benchmark
+    public Optional<Student> createStudent() {
+        return studentDao.create("Jan", "Kowalski", nextIndexNumber++);
+    }
+
+    @Benchmark
+    public Optional<Student> findByIndexNumber() {
+        return studentDao.findByIndexNumber(FIRST_INDEX_NUMBER + ThreadLocalRandom.current().nextInt(students));
+    }
+
+    @Benchmark
+    public boolean enrollStudent() {
+        if (nextEnrollment == population.size()) {
+            enrollmentCourse = courseDao.create("Enrollment " + ++enrollmentCourses).get();
+            nextEnrollment = 0;
+        }
+        return courseDao.enrollStudent(enrollmentCourse, population.get(nextEnrollment++));
+    }
+
+    /**
+     * Counterpart of Course.studentList: the persistence context is cleared first, since it
+     * would otherwise keep serving the already initialized collection.
+     */
+    @Benchmark
+    public int studentList() {
+        SessionService.getSession().clear();
+        return courseDao.findById(rosterId).get().studentSet().size();
+    }
+
+    @Benchmark
+    public Map<Course, Float> createReport() {
+        return studentDao.createReport(reportStudent);
+    }
+
+    @Benchmark
+    public boolean gradeStudent() {
+        return gradeDao.gradeStudent(reportStudent, gradedCourse, 4.0f);
+    }
+
+    private String jdbcAddress() throws IOException {
+        if ("memory".equals(storage)) {
+            return "jdbc:sqlite:file:orm-benchmark?mode=memory&cache=shared";
+        }
+        database = File.createTempFile("orm-benchmark", ".db");
+        database.deleteOnExit();
+        return "jdbc:sqlite:" + database.getAbsolutePath();
+    }
+
+}
@@ -1,18 +1,27 @@
 package pl.edu.agh.iisg.to.dao;
 
+import java.util.List;
 import java.util.Optional;
 
 import javax.persistence.PersistenceException;
 
+import pl.edu.agh.iisg.to.events.ChangeStream;
+import pl.edu.agh.iisg.to.events.EnrollmentEvent;
 import pl.edu.agh.iisg.to.model.Course;
 import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.paging.PageToken;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndex;
 
 public class CourseDao extends GenericDao<Course> {
 
+	private static final String ROSTER_PAGE = "roster";
+
 	public Optional<Course> create(final String name) {
 		try {
-			save(new Course(name));
-			return findByName(name);
+			Course course = new Course(name);
+			save(course);
+			return Optional.of(course);
 		} catch (PersistenceException e) {
 			e.printStackTrace();
 		}
@@ -42,7 +51,53 @@ public class CourseDao extends GenericDao<Course> {
 	}
 
 	public boolean enrollStudent(final Course course, final Student student) {
-		// TODO implement
+		if (course.studentSet().contains(student)) {
+			return false;
+		}
+		course.studentSet().add(student);
+		student.courseSet().add(course);
+		try {
+			update(course, () -> ChangeStream.publish(new EnrollmentEvent(student.id(), course.id())));
+			EnrollmentIndex.current().ifPresent(i -> i.add(course.id(), student.id()));
+			return true;
+		} catch (PersistenceException e) {
+			course.studentSet().remove(student);
+			student.courseSet().remove(course);
+			e.printStackTrace();
+		}
 		return false;
 	}
+
+	public boolean isEnrolled(final Course course, final Student student) {
+		Optional<EnrollmentIndex> index = EnrollmentIndex.current();
+		if (index.isPresent()) {
+			return index.get().isEnrolled(course.id(), student.id());
+		}
+		return course.studentSet().contains(student);
+	}
+
+	/**
+	 * Returns the first page of the roster ordered by student id; later pages are read with
+	 * the returned token instead of loading the whole student set.
+	 */
+	public Page<Student> studentPage(final Course course, final int limit) {
+		return studentPage(course, limit, 0);
+	}
+
+	public Page<Student> studentPage(final Course course, final int limit, final String token) {
+		return studentPage(course, limit, (Integer) PageToken.decode(ROSTER_PAGE, token)[0]);
+	}
+
+	private Page<Student> studentPage(final Course course, final int limit, final int afterStudentId) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Page size must be positive: " + limit);
+		}
+		List<Student> students = currentSession()
+				.createQuery("SELECT s FROM Course c JOIN c.studentSet s WHERE c.id = :id AND s.id > :after ORDER BY s.id", Student.class)
+				.setParameter("id", course.id())
+				.setParameter("after", afterStudentId)
+				.setMaxResults(limit + 1)
+				.getResultList();
+		return Page.of(students, limit, s -> PageToken.encode(ROSTER_PAGE, s.id()));
+	}
 }
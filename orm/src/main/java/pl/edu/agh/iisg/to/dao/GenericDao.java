@@ -5,24 +5,58 @@ import javax.persistence.PersistenceException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 
+import pl.edu.agh.iisg.to.events.ChangeStream;
 import pl.edu.agh.iisg.to.session.SessionService;
 
 public abstract class GenericDao<T> {
 
+	// held across commit and after-commit callbacks, so callbacks run in commit order
+	private static final Object COMMIT_ORDER = new Object();
+
+	private static final Runnable NO_CALLBACK = () -> { };
+
 	public void save(final T object) throws PersistenceException {
+		save(object, NO_CALLBACK);
+	}
+
+	public void update(final T object) throws PersistenceException {
+		update(object, NO_CALLBACK);
+	}
+
+	/**
+	 * Like {@link #save(Object)}, running afterCommit once the transaction committed and before
+	 * any other DAO write commits.
+	 */
+	public void save(final T object, final Runnable afterCommit) throws PersistenceException {
+		checkNotSubscriber();
 		final Session session = SessionService.getSession();
 		final Transaction tx = session.beginTransaction();
 		session.save(object);
 		session.merge(object);
-		tx.commit();
+		commit(tx, afterCommit);
 	}
 
-	public void update(final T object) throws PersistenceException {
+	public void update(final T object, final Runnable afterCommit) throws PersistenceException {
+		checkNotSubscriber();
 		final Session session = SessionService.getSession();
 		final Transaction tx = session.beginTransaction();
 		session.update(object);
 		session.merge(object);
-		tx.commit();
+		commit(tx, afterCommit);
+	}
+
+	// a commit publishing into a full change buffer waits for the subscribers while holding COMMIT_ORDER
+	private static void checkNotSubscriber() {
+		if (ChangeStream.isSubscriberThread()) {
+			throw new IllegalStateException("Change subscribers cannot write");
+		}
+	}
+
+	private static void commit(final Transaction tx, final Runnable afterCommit) {
+		synchronized (COMMIT_ORDER) {
+			tx.commit();
+			afterCommit.run();
+		}
 	}
 
 	public Session currentSession() {
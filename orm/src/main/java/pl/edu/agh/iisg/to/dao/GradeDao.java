@@ -1,15 +1,64 @@
 package pl.edu.agh.iisg.to.dao;
 
+import java.util.List;
+
+import javax.persistence.PersistenceException;
+
+import org.hibernate.query.Query;
+
+import pl.edu.agh.iisg.to.events.ChangeStream;
+import pl.edu.agh.iisg.to.events.GradeEvent;
 import pl.edu.agh.iisg.to.model.Course;
 import pl.edu.agh.iisg.to.model.Grade;
 import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.paging.PageToken;
+import pl.edu.agh.iisg.to.stats.GradeStatistics;
 
 public class GradeDao extends GenericDao<Grade> {
 
+    private static final String COURSE_PAGE = "grades-by-course";
+
     public boolean gradeStudent(final Student student, final Course course, final float grade) {
-        //TODO implement
-        return true;
+        try {
+            Grade newGrade = new Grade(student, course, grade);
+            save(newGrade, () -> {
+                GradeStatistics.current().ifPresent(s -> s.record(course.id(), grade));
+                ChangeStream.publish(new GradeEvent(newGrade.id(), student.id(), course.id(), grade));
+            });
+            student.gradeSet().add(newGrade);
+            course.gradeSet().add(newGrade);
+            return true;
+        } catch (PersistenceException e) {
+            e.printStackTrace();
+        }
+        return false;
     }
 
+    /**
+     * Returns the first page of the grades given in the course, ordered by grade and id;
+     * later pages are read with the returned token.
+     */
+    public Page<Grade> pageByCourse(final Course course, final int limit) {
+        return readPage(currentSession().createQuery("SELECT g FROM Grade g WHERE g.course = :course ORDER BY g.grade, g.id", Grade.class)
+                .setParameter("course", course), limit);
+    }
+
+    public Page<Grade> pageByCourse(final Course course, final int limit, final String token) {
+        Object[] after = PageToken.decode(COURSE_PAGE, token);
+        return readPage(currentSession().createQuery("SELECT g FROM Grade g WHERE g.course = :course "
+                + "AND g.grade >= :grade AND (g.grade > :grade OR g.id > :id) ORDER BY g.grade, g.id", Grade.class)
+                .setParameter("course", course)
+                .setParameter("grade", after[0])
+                .setParameter("id", after[1]), limit);
+    }
+
+    private static Page<Grade> readPage(final Query<Grade> query, final int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + limit);
+        }
+        List<Grade> grades = query.setMaxResults(limit + 1).getResultList();
+        return Page.of(grades, limit, g -> PageToken.encode(COURSE_PAGE, g.grade(), g.id()));
+    }
 
 }
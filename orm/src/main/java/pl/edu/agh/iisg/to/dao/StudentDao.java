@@ -1,27 +1,81 @@
 package pl.edu.agh.iisg.to.dao;
 
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+import javax.persistence.PersistenceException;
+
+import org.hibernate.query.Query;
+
 import pl.edu.agh.iisg.to.model.Course;
 import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.paging.PageToken;
 
 public class StudentDao extends GenericDao<Student> {
 
+    private static final String NAME_PAGE = "students-by-name";
+
     public Optional<Student> create(final String firstName, final String lastName, final int indexNumber) {
-    	//TODO - implement
+        try {
+            Student student = new Student(firstName, lastName, indexNumber);
+            save(student);
+            return Optional.of(student);
+        } catch (PersistenceException e) {
+            e.printStackTrace();
+        }
         return Optional.empty();
     }
 
     public Optional<Student> findByIndexNumber(final int indexNumber) {
-    	//TODO - implement
+        try {
+            Student student = currentSession().createQuery("SELECT s FROM Student s WHERE s.indexNumber = :indexNumber", Student.class)
+                    .setParameter("indexNumber", indexNumber).getSingleResult();
+            return Optional.of(student);
+        } catch (PersistenceException e) {
+            e.printStackTrace();
+        }
         return Optional.empty();
     }
 
+    /**
+     * Returns the first page of students ordered by last name, first name and id; later pages
+     * are read with the returned token and seek on student_name_idx.
+     */
+    public Page<Student> pageByName(final int limit) {
+        return readPage(currentSession().createQuery("SELECT s FROM Student s ORDER BY s.lastName, s.firstName, s.id", Student.class), limit);
+    }
+
+    public Page<Student> pageByName(final int limit, final String token) {
+        Object[] after = PageToken.decode(NAME_PAGE, token);
+        return readPage(currentSession().createQuery("SELECT s FROM Student s WHERE s.lastName >= :lastName "
+                + "AND (s.lastName > :lastName OR s.firstName > :firstName OR (s.firstName = :firstName AND s.id > :id)) "
+                + "ORDER BY s.lastName, s.firstName, s.id", Student.class)
+                .setParameter("lastName", after[0])
+                .setParameter("firstName", after[1])
+                .setParameter("id", after[2]), limit);
+    }
+
+    private static Page<Student> readPage(final Query<Student> query, final int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + limit);
+        }
+        // rendered as "limit ?" by the SQLiteDialect limit handler
+        List<Student> students = query.setMaxResults(limit + 1).getResultList();
+        return Page.of(students, limit, s -> PageToken.encode(NAME_PAGE, s.lastName(), s.firstName(), s.id()));
+    }
+
     public Map<Course, Float> createReport(final Student student) {
-        //TODO additional task
-        return Collections.emptyMap();
+        Map<Course, Float> report = new HashMap<>();
+        List<Object[]> averages = currentSession()
+                .createQuery("SELECT g.course, AVG(g.grade) FROM Grade g WHERE g.student = :student GROUP BY g.course", Object[].class)
+                .setParameter("student", student).getResultList();
+        for (Object[] row : averages) {
+            report.put((Course) row[0], ((Double) row[1]).floatValue());
+        }
+        return report;
     }
 
 }
@@ -0,0 +1,191 @@
+package pl.edu.agh.iisg.to.importer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import pl.edu.agh.iisg.to.model.Course;
+import pl.edu.agh.iisg.to.model.Grade;
+import pl.edu.agh.iisg.to.model.ImportCheckpoint;
+import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndex;
+import pl.edu.agh.iisg.to.session.SessionService;
+import pl.edu.agh.iisg.to.stats.GradeStatistics;
+
+/**
+ * Writes import chunks in a session of their own, so the current session is left alone.
+ * Ids come from the table generator, which commits on a separate connection; SQLite would
+ * block that commit while the chunk transaction holds even a read lock. Lookups therefore
+ * run in short transactions of their own, and the chunk session issues no SQL until all
+ * of its entities are saved: enrollments and the checkpoint are written after the flush.
+ */
+public final class HibernateImportStore implements ImportStore {
+
+    // Course.studentSet owns the join table and keeps the course id in student_id
+    private static final String ENROLL_SQL = "INSERT OR IGNORE INTO student_course (student_id, course_id) VALUES (:courseId, :studentId)";
+
+    // enrollments of the last chunk, handed to the index once it has committed
+    private List<int[]> committedEnrollments = new ArrayList<>();
+
+    // statistics updates of the last chunk's grades, applied once it has committed
+    private List<Runnable> committedGrades = new ArrayList<>();
+
+    @Override
+    public long checkpoint(final String importName) {
+        return read(session -> {
+            ImportCheckpoint checkpoint = session.get(ImportCheckpoint.class, importName);
+            return checkpoint == null ? 0L : checkpoint.line();
+        });
+    }
+
+    @Override
+    public <T> T write(final ImportWork<T> work) throws SQLException {
+        final Session session = SessionService.newSession();
+        try {
+            session.setHibernateFlushMode(FlushMode.COMMIT);
+            final Transaction tx = session.beginTransaction();
+            try {
+                final HibernateImportTransaction transaction = new HibernateImportTransaction(session);
+                final T result = work.write(transaction);
+                transaction.writeDeferred();
+                tx.commit();
+                committedEnrollments = transaction.enrollments;
+                committedGrades = transaction.grades;
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+                throw e;
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public void committed() {
+        EnrollmentIndex.current().ifPresent(index -> committedEnrollments.forEach(e -> index.add(e[1], e[0])));
+        committedEnrollments = new ArrayList<>();
+        committedGrades.forEach(Runnable::run);
+        committedGrades = new ArrayList<>();
+    }
+
+    private static <T> T read(final Function<Session, T> query) {
+        final Session session = SessionService.newSession();
+        try {
+            final Transaction tx = session.beginTransaction();
+            try {
+                return query.apply(session);
+            } finally {
+                tx.commit();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static final class HibernateImportTransaction implements ImportTransaction {
+
+        private final Session session;
+
+        private final Map<Integer, Set<Integer>> rosters = new HashMap<>();
+
+        private final List<int[]> enrollments = new ArrayList<>();
+
+        private final List<Runnable> grades = new ArrayList<>();
+
+        private ImportCheckpoint checkpoint;
+
+        private HibernateImportTransaction(final Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public Map<Integer, Integer> findStudentIds(final Collection<Integer> indexNumbers) {
+            return read(lookup -> {
+                Map<Integer, Integer> ids = new HashMap<>();
+                List<Object[]> rows = lookup.createQuery("SELECT s.indexNumber, s.id FROM Student s WHERE s.indexNumber IN (:keys)", Object[].class)
+                        .setParameterList("keys", indexNumbers).getResultList();
+                for (Object[] row : rows) {
+                    ids.put((Integer) row[0], (Integer) row[1]);
+                }
+                return ids;
+            });
+        }
+
+        @Override
+        public Map<String, Integer> findCourseIds(final Collection<String> names) {
+            return read(lookup -> {
+                Map<String, Integer> ids = new HashMap<>();
+                List<Object[]> rows = lookup.createQuery("SELECT c.name, c.id FROM Course c WHERE c.name IN (:keys)", Object[].class)
+                        .setParameterList("keys", names).getResultList();
+                for (Object[] row : rows) {
+                    ids.put((String) row[0], (Integer) row[1]);
+                }
+                return ids;
+            });
+        }
+
+        @Override
+        public int insertStudent(final String firstName, final String lastName, final int indexNumber) {
+            return (Integer) session.save(new Student(firstName, lastName, indexNumber));
+        }
+
+        @Override
+        public int insertCourse(final String name) {
+            return (Integer) session.save(new Course(name));
+        }
+
+        @Override
+        public boolean enroll(final int studentId, final int courseId) {
+            if (!roster(courseId).add(studentId)) {
+                return false;
+            }
+            enrollments.add(new int[] { studentId, courseId });
+            return true;
+        }
+
+        @Override
+        public void grade(final int studentId, final int courseId, final float grade) {
+            session.save(new Grade(session.load(Student.class, studentId), session.load(Course.class, courseId), grade));
+            grades.add(() -> GradeStatistics.current().ifPresent(s -> s.record(courseId, grade)));
+        }
+
+        @Override
+        public void saveCheckpoint(final String importName, final long line) {
+            checkpoint = new ImportCheckpoint(importName, line);
+        }
+
+        private Set<Integer> roster(final int courseId) {
+            return rosters.computeIfAbsent(courseId, id -> read(lookup -> new HashSet<>(
+                    lookup.createQuery("SELECT s.id FROM Course c JOIN c.studentSet s WHERE c.id = :id", Integer.class)
+                            .setParameter("id", id).getResultList())));
+        }
+
+        private void writeDeferred() {
+            session.flush();
+            for (int[] enrollment : enrollments) {
+                session.createNativeQuery(ENROLL_SQL)
+                        .setParameter("studentId", enrollment[0])
+                        .setParameter("courseId", enrollment[1])
+                        .executeUpdate();
+            }
+            if (checkpoint != null) {
+                session.merge(checkpoint);
+            }
+        }
+
+    }
+
+}
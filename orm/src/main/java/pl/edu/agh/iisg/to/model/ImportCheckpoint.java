@@ -0,0 +1,42 @@
+package pl.edu.agh.iisg.to.model;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = ImportCheckpoint.TABLE_NAME)
+public class ImportCheckpoint {
+
+    public static final String TABLE_NAME = "import_checkpoint";
+
+    @Id
+    @Column(name = Columns.NAME, length = 100)
+    private String name;
+
+    @Column(name = Columns.LINE, nullable = false)
+    private long line;
+
+    ImportCheckpoint() {
+    }
+
+    public ImportCheckpoint(final String name, final long line) {
+        this.name = name;
+        this.line = line;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long line() {
+        return line;
+    }
+
+    public static class Columns {
+
+        public static final String NAME = "name";
+
+        public static final String LINE = "line";
+
+    }
+
+}
@@ -5,7 +5,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 @Entity
-@Table(name = Student.TABLE_NAME)
+@Table(name = Student.TABLE_NAME, indexes = @Index(name = "student_name_idx", columnList = Student.Columns.LAST_NAME + ", " + Student.Columns.FIRST_NAME))
 public class Student {
 
     public static final String TABLE_NAME = "student";
@@ -0,0 +1,41 @@
+package pl.edu.agh.iisg.to.replica;
+
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import pl.edu.agh.iisg.to.session.SessionService;
+
+/**
+ * Loads the {@link EnrollmentIndex} in a session of its own. Enrollments committed by other
+ * sessions while it loads may be missed, so it is meant to be enabled at startup.
+ */
+public final class EnrollmentIndexLoader {
+
+    private EnrollmentIndexLoader() {
+        throw new UnsupportedOperationException();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static synchronized EnrollmentIndex enable() {
+        final EnrollmentIndex index = new EnrollmentIndex();
+        final Session session = SessionService.newSession();
+        try {
+            final Transaction tx = session.beginTransaction();
+            try {
+                // Course.studentSet owns the join table and keeps the course id in student_id
+                final List<Object[]> rows = session.createNativeQuery("SELECT student_id, course_id FROM student_course").getResultList();
+                for (Object[] row : rows) {
+                    index.add(((Number) row[0]).intValue(), ((Number) row[1]).intValue());
+                }
+            } finally {
+                tx.commit();
+            }
+        } finally {
+            session.close();
+        }
+        return EnrollmentIndex.install(index);
+    }
+
+}
@@ -1,21 +1,54 @@
 package pl.edu.agh.iisg.to.session;
 
+import java.util.logging.Logger;
+
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
 
+import pl.edu.agh.iisg.to.connection.SqliteProfile;
+
 public class SessionService {
 
-	private static final SessionFactory sessionFactory = new Configuration().configure() // configures settings from
-																							// hibernate.cfg.xml
-			.buildSessionFactory();
+	private static final Logger logger = Logger.getGlobal();
+
+	// overrides connection.url from hibernate.cfg.xml, e.g. to point benchmarks at a scratch database
+	public static final String JDBC_URL_PROPERTY = "orm.jdbc.url";
+
+	private static final SqliteProfile profile = SqliteProfile.fromSystemProperty();
+
+	private static final SessionFactory sessionFactory = buildSessionFactory();
 	
 	private static Session session;
+
+	static {
+		logger.info("SQLite profile: " + profile);
+	}
+	
+	private static SessionFactory buildSessionFactory() {
+		Configuration configuration = new Configuration().configure(); // configures settings from hibernate.cfg.xml
+		String url = System.getProperty(JDBC_URL_PROPERTY);
+		if (url != null) {
+			configuration.setProperty("hibernate.connection.url", url);
+		}
+		return SqlitePragmas.configure(profile, configuration).buildSessionFactory();
+	}
 	
 	public static void openSession() {
 		session = sessionFactory.openSession();
+		session.doWork(connection -> SqlitePragmas.applySessionPragmas(profile, connection));
 	}
 	
+	/**
+	 * Opens a session independent of the current one, e.g. for batch work that must not
+	 * fill or clear the current persistence context. The caller closes it.
+	 */
+	public static Session newSession() {
+		Session session = sessionFactory.openSession();
+		session.doWork(connection -> SqlitePragmas.applySessionPragmas(profile, connection));
+		return session;
+	}
+
 	public static Session getSession() {
 		return session;
 	}
@@ -23,4 +56,8 @@ public class SessionService {
 	public static void closeSession() {
 		session.close();
 	}
+
+	public static SqliteProfile profile() {
+		return profile;
+	}
 }
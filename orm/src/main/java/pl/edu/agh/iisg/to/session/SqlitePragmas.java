@@ -0,0 +1,42 @@
+package pl.edu.agh.iisg.to.session;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.hibernate.cfg.Configuration;
+
+import pl.edu.agh.iisg.to.connection.SqliteProfile;
+
+/**
+ * Applies the pragmas of a {@link SqliteProfile} to the connections Hibernate opens.
+ */
+public final class SqlitePragmas {
+
+    private SqlitePragmas() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Passes the pragmas the SQLite driver understands as connection properties, so they are
+     * applied whenever Hibernate opens a physical connection.
+     */
+    public static Configuration configure(final SqliteProfile profile, final Configuration configuration) {
+        return configuration
+                .setProperty("hibernate.connection.journal_mode", profile.journalMode())
+                .setProperty("hibernate.connection.synchronous", profile.synchronous())
+                .setProperty("hibernate.connection.cache_size", String.valueOf(profile.cacheSize()))
+                .setProperty("hibernate.connection.temp_store", profile.tempStore())
+                .setProperty("hibernate.connection.busy_timeout", String.valueOf(profile.busyTimeoutMillis()));
+    }
+
+    /**
+     * mmap_size is not among the driver's connection properties, so it is set on the session's connection.
+     */
+    public static void applySessionPragmas(final SqliteProfile profile, final Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA mmap_size = " + profile.mmapSize());
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package pl.edu.agh.iisg.to.stats;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import pl.edu.agh.iisg.to.session.SessionService;
+
+/**
+ * Loads the {@link GradeStatistics} in a session of its own, scrolling over the grade table.
+ * Grades committed by other sessions while it loads may be missed, so it is meant to be
+ * enabled at startup.
+ */
+public final class GradeStatisticsLoader {
+
+    private GradeStatisticsLoader() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static synchronized GradeStatistics enable() {
+        final GradeStatistics statistics = new GradeStatistics();
+        final Session session = SessionService.newSession();
+        try {
+            final Transaction tx = session.beginTransaction();
+            try (final ScrollableResults rows = session.createNativeQuery("SELECT course_id, grade FROM grade").scroll(ScrollMode.FORWARD_ONLY)) {
+                while (rows.next()) {
+                    statistics.record(((Number) rows.get(0)).intValue(), ((Number) rows.get(1)).floatValue());
+                }
+            } finally {
+                tx.commit();
+            }
+        } finally {
+            session.close();
+        }
+        return GradeStatistics.install(statistics);
+    }
+
+}
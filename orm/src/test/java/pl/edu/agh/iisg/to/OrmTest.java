@@ -1,8 +1,17 @@
 package pl.edu.agh.iisg.to;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -12,9 +21,26 @@ import org.junit.Test;
 import pl.edu.agh.iisg.to.dao.CourseDao;
 import pl.edu.agh.iisg.to.dao.GradeDao;
 import pl.edu.agh.iisg.to.dao.StudentDao;
+import pl.edu.agh.iisg.to.events.ChangeEvent;
+import pl.edu.agh.iisg.to.events.ChangeStream;
+import pl.edu.agh.iisg.to.events.EnrollmentEvent;
+import pl.edu.agh.iisg.to.events.GradeEvent;
+import pl.edu.agh.iisg.to.events.Subscription;
+import pl.edu.agh.iisg.to.importer.BulkImporter;
+import pl.edu.agh.iisg.to.importer.HibernateImportStore;
+import pl.edu.agh.iisg.to.importer.ImportReport;
 import pl.edu.agh.iisg.to.model.Course;
+import pl.edu.agh.iisg.to.model.Grade;
 import pl.edu.agh.iisg.to.model.Student;
+import pl.edu.agh.iisg.to.paging.Page;
+import pl.edu.agh.iisg.to.replica.CoEnrollment;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndex;
+import pl.edu.agh.iisg.to.replica.EnrollmentIndexLoader;
 import pl.edu.agh.iisg.to.session.SessionService;
+import pl.edu.agh.iisg.to.stats.GradeStatistics;
+import pl.edu.agh.iisg.to.stats.GradeStatisticsLoader;
+import pl.edu.agh.iisg.to.stats.GradeSummary;
+import pl.edu.agh.iisg.to.stats.QuantileSketch;
 
 public class OrmTest {
 
@@ -129,6 +155,153 @@ public class OrmTest {
         Assert.assertTrue(Float.compare(4.0f, report.get(third.get())) == 0);
     }
 
+    @Test
+    public void bulkImportTest() throws IOException, SQLException {
+        String firstPart = "# semester export\n"
+                + "student,Adam,Kowalski,900001\n"
+                + "student,\"Jan, Maria\",Nowak,900002\n"
+                + "course,Bulk\n"
+                + "enrollment,900001,Bulk\n"
+                + "enrollment,900002,Bulk\n";
+        String secondPart = "grade,900001,Bulk,4.5\n"
+                + "grade,900001,Bulk,3.5\n"
+                + "student,Adam,Kowalski,900001\n"
+                + "enrollment,900001,Bulk\n"
+                + "grade,123,Bulk,5.0\n"
+                + "student,Kasia\n";
+        String importName = "import-" + System.nanoTime();
+
+        ImportReport first = new BulkImporter(importName, 2, 4, new HibernateImportStore()).run(new StringReader(firstPart));
+        Assert.assertEquals(5, first.read());
+        Assert.assertEquals(5, first.imported());
+        Assert.assertEquals(3, first.chunks());
+        Assert.assertEquals(6, first.lastLine());
+
+        ImportReport second = new BulkImporter(importName, 2, 4, new HibernateImportStore()).run(new StringReader(firstPart + secondPart));
+        Assert.assertEquals(5, second.skipped());
+        Assert.assertEquals(6, second.read());
+        Assert.assertEquals(2, second.grades());
+        Assert.assertEquals(2, second.duplicates());
+        Assert.assertEquals(2, second.rejected());
+        Assert.assertEquals(12, second.lastLine());
+
+        Course course = courseDao.findByName("Bulk").get();
+        Assert.assertEquals(2, course.studentSet().size());
+        Student student = studentDao.findByIndexNumber(900001).get();
+        Assert.assertTrue(course.studentSet().contains(student));
+        Assert.assertEquals("Jan, Maria", studentDao.findByIndexNumber(900002).get().firstName());
+        Assert.assertEquals(4.0f, studentDao.createReport(student).get(course), 1e-6);
+    }
+
+    @Test
+    public void enrollmentIndexTest() throws IOException, SQLException {
+        Student adam = studentDao.create("Adam", "Kowalski", 930001).get();
+        Student jan = studentDao.create("Jan", "Nowak", 930002).get();
+        Course first = courseDao.create("Index 1").get();
+        Course second = courseDao.create("Index 2").get();
+        Assert.assertTrue(courseDao.enrollStudent(first, adam));
+        try {
+            EnrollmentIndex index = EnrollmentIndexLoader.enable();
+            Assert.assertTrue(index.isEnrolled(first.id(), adam.id()));
+            Assert.assertTrue(courseDao.enrollStudent(first, jan));
+            Assert.assertTrue(courseDao.enrollStudent(second, adam));
+            new BulkImporter("index-" + System.nanoTime(), new HibernateImportStore()).run(new StringReader("enrollment,930002,Index 2\n"));
+
+            Assert.assertTrue(courseDao.isEnrolled(second, jan));
+            Assert.assertEquals(2, index.courseSize(first.id()));
+            Assert.assertArrayEquals(new int[] { first.id(), second.id() }, index.courses(adam.id()));
+            Assert.assertEquals(2, index.overlap(first.id(), second.id()));
+            List<CoEnrollment> coEnrolled = index.coEnrolled(jan.id(), 3);
+            Assert.assertEquals(1, coEnrolled.size());
+            Assert.assertEquals(adam.id(), coEnrolled.get(0).studentId());
+            Assert.assertEquals(2, coEnrolled.get(0).sharedCourses());
+        } finally {
+            EnrollmentIndex.disable();
+        }
+    }
+
+    @Test
+    public void keysetPaginationTest() {
+        Course course = courseDao.create("Paged").get();
+        String[][] names = { { "Jan", "Paginowski" }, { "Adam", "Paginowski" }, { "Anna", "Paginowska" } };
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            Student student = studentDao.create(names[i][0], names[i][1], 940001 + i).get();
+            courseDao.enrollStudent(course, student);
+            gradeDao.gradeStudent(student, course, i % 2 == 0 ? 4.0f : 3.0f);
+            students.add(student);
+        }
+
+        Page<Student> roster = courseDao.studentPage(course, 2);
+        Assert.assertEquals(students.subList(0, 2), roster.items());
+        roster = courseDao.studentPage(course, 2, roster.next().get());
+        Assert.assertEquals(students.subList(2, 3), roster.items());
+        Assert.assertFalse(roster.hasNext());
+
+        List<Student> byName = new ArrayList<>();
+        Page<Student> page = studentDao.pageByName(1);
+        byName.addAll(page.items());
+        while (page.hasNext()) {
+            page = studentDao.pageByName(1, page.next().get());
+            byName.addAll(page.items());
+        }
+        int first = byName.indexOf(students.get(2));
+        Assert.assertEquals(Arrays.asList(students.get(2), students.get(1), students.get(0)), byName.subList(first, first + 3));
+
+        Page<Grade> grades = gradeDao.pageByCourse(course, 2);
+        Assert.assertEquals(3.0f, grades.items().get(0).grade(), 0);
+        Assert.assertEquals(4.0f, grades.items().get(1).grade(), 0);
+        grades = gradeDao.pageByCourse(course, 2, grades.next().get());
+        Assert.assertEquals(1, grades.items().size());
+        Assert.assertFalse(grades.hasNext());
+    }
+
+    @Test
+    public void changeStreamTest() throws InterruptedException {
+        Student adam = studentDao.create("Adam", "Kowalski", 950001).get();
+        Course course = courseDao.create("Changes").get();
+        BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        try (Subscription subscription = ChangeStream.subscribe((sequence, event) -> events.add(event))) {
+            Assert.assertTrue(courseDao.enrollStudent(course, adam));
+            Assert.assertFalse(courseDao.enrollStudent(course, adam));
+            Assert.assertTrue(gradeDao.gradeStudent(adam, course, 4.5f));
+
+            ChangeEvent enrolled = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(enrolled instanceof EnrollmentEvent);
+            Assert.assertEquals(adam.id(), enrolled.studentId());
+            Assert.assertEquals(course.id(), enrolled.courseId());
+            GradeEvent graded = (GradeEvent) events.poll(5, TimeUnit.SECONDS);
+            Assert.assertEquals(adam.id(), graded.studentId());
+            Assert.assertEquals(4.5f, graded.grade(), 0.0f);
+            Assert.assertTrue(graded.gradeId() > 0);
+            Assert.assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void gradeStatisticsTest() {
+        Student adam = studentDao.create("Adam", "Kowalski", 960001).get();
+        Student jan = studentDao.create("Jan", "Nowak", 960002).get();
+        Course course = courseDao.create("Statistics").get();
+        gradeDao.gradeStudent(adam, course, 3.0f);
+        gradeDao.gradeStudent(jan, course, 4.0f);
+        try {
+            GradeStatistics statistics = GradeStatisticsLoader.enable();
+            gradeDao.gradeStudent(adam, course, 5.0f);
+
+            GradeSummary summary = statistics.summary(course.id()).get();
+            Assert.assertEquals(3, summary.count());
+            Assert.assertEquals(4.0, summary.average(), 1e-6);
+            Assert.assertEquals(3.0, summary.min(), 0.0);
+            Assert.assertEquals(5.0, summary.max(), 0.0);
+            Assert.assertEquals(4.0, summary.median(), 4.0 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+            Assert.assertEquals(3.0, statistics.percentile(course.id(), 0.0).getAsDouble(), 0.0);
+            Assert.assertFalse(statistics.summary(-1).isPresent());
+        } finally {
+            GradeStatistics.disable();
+        }
+    }
+
     private void checkStudent(final Optional<Student> student) {
         Assert.assertTrue(student.isPresent());
         student.ifPresent(s -> {